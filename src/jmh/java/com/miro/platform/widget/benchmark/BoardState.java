@@ -0,0 +1,73 @@
+package com.miro.platform.widget.benchmark;
+
+import com.miro.platform.widget.WidgetApplication;
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.service.WidgetService;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A whole application context per trial, so services get their real repo, locks and transactions.
+ * Board is filled with zIndexes 0..boardSize-1 before measuring.
+ */
+@State(Scope.Benchmark)
+public class BoardState {
+    @Param({"custom", "treap", "columnar", "h2"})
+    public String storage;
+
+    @Param({"1000", "10000", "100000"})
+    public int boardSize;
+
+    @Param({"stamped"})
+    public String concurrency;
+
+    public WidgetService service;
+    public long[] ids;
+    private ConfigurableApplicationContext context;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        context = new SpringApplicationBuilder(WidgetApplication.class)
+                .web(WebApplicationType.NONE)
+                //As arguments, application.properties would take precedence over default properties
+                .run("--service.type=" + ("h2".equals(storage) ? "h2Service" : "customService"),
+                        "--storage.type=" + storage,
+                        "--concurrency.type=" + concurrency,
+                        "--spring.main.banner-mode=off",
+                        "--spring.devtools.restart.enabled=false",
+                        "--logging.level.root=WARN");
+        service = context.getBean(WidgetService.class);
+        for (long zIndex = 0; zIndex < boardSize; zIndex++) {
+            service.addWidget(newWidget(zIndex));
+        }
+        List<WidgetRecord> widgets = service.findAll();
+        ids = widgets.stream().mapToLong(WidgetRecord::getId).toArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    public long randomId() {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+
+    public static Widget newWidget(Long zIndex) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return Widget.Builder
+                .emptyWidget()
+                .withX((long) random.nextInt(10_000))
+                .withY((long) random.nextInt(10_000))
+                .withWidth((long) random.nextInt(1, 200))
+                .withHeight((long) random.nextInt(1, 200))
+                .withZIndex(zIndex)
+                .build();
+    }
+}
@@ -0,0 +1,70 @@
+package com.miro.platform.widget.benchmark;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the benchmarks once per thread count, from 1 to 64 threads unless -t is given.
+ * Accepts the usual JMH command line, e.g. "WidgetServiceBenchmark.shiftHeavy -p storage=custom,treap -p boardSize=1000".
+ * Every run is written as JSON to target/jmh/threads-N.json.
+ */
+public class WidgetBenchmarkRunner {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        int[] threadCounts = commandLine.getThreads().hasValue() ?
+                new int[]{commandLine.getThreads().get()} :
+                THREAD_COUNTS;
+
+        File resultDir = new File("target/jmh");
+        resultDir.mkdirs();
+        List<RunResult> results = new ArrayList<>();
+        for (int threads : threadCounts) {
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLine)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(new File(resultDir, "threads-" + threads + ".json").getPath());
+            if (commandLine.getIncludes().isEmpty())
+                options.include(WidgetServiceBenchmark.class.getSimpleName());
+            results.addAll(new Runner(options.build()).run());
+        }
+
+        //JMH prints each run on its own, this puts all thread counts side by side
+        System.out.println();
+        System.out.printf("%-45s %-30s %8s %15s %12s%n", "Benchmark", "Params", "Threads", "Score", "Error");
+        for (RunResult result : results) {
+            System.out.printf("%-45s %-30s %8d %15.3f %12.3f %s%n",
+                    shortName(result.getParams().getBenchmark()),
+                    paramsOf(result),
+                    result.getParams().getThreads(),
+                    result.getPrimaryResult().getScore(),
+                    result.getPrimaryResult().getScoreError(),
+                    result.getPrimaryResult().getScoreUnit());
+        }
+    }
+
+    private static String shortName(String benchmark) {
+        return benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+    }
+
+    private static String paramsOf(RunResult result) {
+        StringBuilder params = new StringBuilder();
+        for (String key : result.getParams().getParamsKeys()) {
+            if (params.length() > 0)
+                params.append(' ');
+            params.append(key).append('=').append(result.getParams().getParam(key));
+        }
+        return params.toString();
+    }
+}
@@ -0,0 +1,75 @@
+package com.miro.platform.widget.benchmark;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Operations go through WidgetService, the same path as the REST layer.
+ * Thread count is set by {@link WidgetBenchmarkRunner}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WidgetServiceBenchmark {
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * 90% findById, 10% in place update
+     */
+    @Benchmark
+    public Object readHeavy(BoardState board) {
+        if (ThreadLocalRandom.current().nextInt(10) == 0)
+            return updateInPlace(board);
+        return board.service.findById(board.randomId());
+    }
+
+    /**
+     * 10% findById, 90% in place update
+     */
+    @Benchmark
+    public Object writeHeavy(BoardState board) {
+        if (ThreadLocalRandom.current().nextInt(10) == 0)
+            return board.service.findById(board.randomId());
+        return updateInPlace(board);
+    }
+
+    /**
+     * Inserting under the bottom widget shifts the whole board, removing it keeps board size stable
+     */
+    @Benchmark
+    public WidgetRecord shiftHeavy(BoardState board) {
+        long bottom = board.service.findAll(1, 1).get(0).getzIndex();
+        WidgetRecord added = board.service.addWidget(BoardState.newWidget(bottom));
+        board.service.removeWidget(added.getId());
+        return added;
+    }
+
+    @Benchmark
+    public List<WidgetRecord> pagination(BoardState board) {
+        int pages = (board.boardSize + PAGE_SIZE - 1) / PAGE_SIZE;
+        return board.service.findAll(ThreadLocalRandom.current().nextInt(pages) + 1, PAGE_SIZE);
+    }
+
+    /**
+     * Same random depth as pagination, through the zIndex cursor instead of the page offset
+     */
+    @Benchmark
+    public List<WidgetRecord> keysetPagination(BoardState board) {
+        long afterZ = ThreadLocalRandom.current().nextInt(board.boardSize) - 1L;
+        return board.service.findAfterZindex(afterZ, PAGE_SIZE);
+    }
+
+    private static WidgetRecord updateInPlace(BoardState board) {
+        long id = board.randomId();
+        Widget widget = board.service.findById(id).toWidget();
+        widget.setX((long) ThreadLocalRandom.current().nextInt(10_000));
+        return board.service.updateWidget(id, widget);
+    }
+}
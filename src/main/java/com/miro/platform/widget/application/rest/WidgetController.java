@@ -1,46 +1,333 @@
 package com.miro.platform.widget.application.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.platform.widget.application.rest.binary.WidgetBinaryFormat;
+import com.miro.platform.widget.application.rest.cache.ResponseCacheStats;
+import com.miro.platform.widget.application.rest.cache.WidgetResponseCache;
+import com.miro.platform.widget.application.rest.request.WidgetBatchRequest;
+import com.miro.platform.widget.application.rest.response.WidgetCursorPage;
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeFeed;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.service.WidgetBoardRegistry;
 import com.miro.platform.widget.domain.service.WidgetService;
+import com.miro.platform.widget.domain.spatial.Rectangle;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.List;
+import java.util.OptionalLong;
 
+/**
+ * Every /widgets route also exists under /boards/{boardId}, for the boards of {@link WidgetBoardRegistry}.
+ * The response cache and the change stream are only for the unscoped routes.
+ */
 @RestController
 public class WidgetController {
     WidgetService widgetService;
+    private final WidgetBoardRegistry boards;
+    private final WidgetChangeFeed changeFeed;
+    private final WidgetResponseCache responseCache;
+    private final ObjectMapper objectMapper;
+    private final long feedTimeoutMillis;
+
+    //ETag suffix of binary lists
+    private static final String BINARY = "-b";
 
     @Autowired
-    public WidgetController(WidgetService widgetService) {
+    public WidgetController(WidgetService widgetService, WidgetBoardRegistry boards, WidgetChangeFeed changeFeed,
+                            WidgetResponseCache responseCache, ObjectMapper objectMapper,
+                            @Value("${feed.timeout-ms:1800000}") long feedTimeoutMillis) {
         this.widgetService = widgetService;
+        this.boards = boards;
+        this.changeFeed = changeFeed;
+        this.responseCache = responseCache;
+        this.objectMapper = objectMapper;
+        this.feedTimeoutMillis = feedTimeoutMillis;
+    }
+
+    /**
+     * Conditional GETs: answers null when the client's If-None-Match is still current,
+     * Spring then sends a 304 without serializing anything. Otherwise the JSON comes from the response cache.
+     */
+    @GetMapping({"/widgets/{id}", "/boards/{boardId}/widgets/{id}"})
+    ResponseEntity<byte[]> getWidget(@PathVariable(required = false) String boardId, @PathVariable Long id,
+                                     WebRequest request) {
+        WidgetRecord widget = service(boardId).findById(id);
+        if (request.checkNotModified(etag(widget.getVersionTag())))
+            return null;
+        return json(boardId == null ? responseCache.getWidget(widget) : toJson(widget));
+    }
+
+    @GetMapping({"/widgets", "/boards/{boardId}/widgets"})
+    ResponseEntity<byte[]> getWidgetList(@PathVariable(required = false) String boardId,
+                                         @RequestParam(value = "page") int page,
+                                         @RequestParam(value = "size", defaultValue = "10") int size,
+                                         WebRequest request) {
+        WidgetService service = service(boardId);
+        if (boardNotModified(service, request))
+            return null;
+        return json(boardId == null ? responseCache.getPage(page, size) : toJson(service.findAll(page, size)));
+    }
+
+    /**
+     * Same lists as compact binary (see {@link WidgetBinaryFormat}) for clients sending Accept: application/x-widgets
+     */
+    @GetMapping(value = {"/widgets", "/boards/{boardId}/widgets"}, produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+    List<WidgetRecord> getWidgetListBinary(@PathVariable(required = false) String boardId,
+                                           @RequestParam(value = "page") int page,
+                                           @RequestParam(value = "size", defaultValue = "10") int size,
+                                           WebRequest request) {
+        WidgetService service = service(boardId);
+        return boardNotModified(service, request, BINARY) ? null : service.findAll(page, size);
+    }
+
+    /**
+     * Keyset pagination: either from the cursor of the previous page or after a given zIndex
+     */
+    @GetMapping(value = {"/widgets", "/boards/{boardId}/widgets"}, params = {"limit", "!page"})
+    ResponseEntity<byte[]> getWidgetsAfter(@PathVariable(required = false) String boardId,
+                                           @RequestParam(value = "limit") int limit,
+                                           @RequestParam(value = "afterZ", required = false) Long afterZ,
+                                           @RequestParam(value = "cursor", required = false) String cursor,
+                                           WebRequest request) {
+        Long zIndex = cursorZindex(afterZ, cursor);
+        WidgetService service = service(boardId);
+        if (boardNotModified(service, request))
+            return null;
+        return json(boardId == null ? responseCache.getPageAfter(zIndex, limit) :
+                toJson(WidgetCursorPage.of(service.findAfterZindex(zIndex, limit), limit)));
+    }
+
+    @GetMapping(value = {"/widgets", "/boards/{boardId}/widgets"}, params = {"limit", "!page"},
+            produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+    WidgetCursorPage getWidgetsAfterBinary(@PathVariable(required = false) String boardId,
+                                           @RequestParam(value = "limit") int limit,
+                                           @RequestParam(value = "afterZ", required = false) Long afterZ,
+                                           @RequestParam(value = "cursor", required = false) String cursor,
+                                           WebRequest request) {
+        Long zIndex = cursorZindex(afterZ, cursor);
+        WidgetService service = service(boardId);
+        return boardNotModified(service, request, BINARY) ? null :
+                WidgetCursorPage.of(service.findAfterZindex(zIndex, limit), limit);
+    }
+
+    private static Long cursorZindex(Long afterZ, String cursor) {
+        if (afterZ != null && cursor != null)
+            throw new IllegalArgumentException("Only one of afterZ and cursor can be given");
+        return cursor != null ? Long.valueOf(WidgetCursorPage.decode(cursor)) : afterZ;
+    }
+
+    @GetMapping(value = {"/widgets", "/boards/{boardId}/widgets"}, params = {"x1", "y1", "x2", "y2"})
+    List<WidgetRecord> getWidgetsInArea(@PathVariable(required = false) String boardId,
+                                  @RequestParam(value = "x1") long x1,
+                                  @RequestParam(value = "y1") long y1,
+                                  @RequestParam(value = "x2") long x2,
+                                  @RequestParam(value = "y2") long y2,
+                                  WebRequest request) {
+        WidgetService service = service(boardId);
+        return boardNotModified(service, request) ? null : service.findInArea(new Rectangle(x1, y1, x2, y2));
+    }
+
+    @GetMapping(value = {"/widgets", "/boards/{boardId}/widgets"}, params = {"x1", "y1", "x2", "y2"},
+            produces = WidgetBinaryFormat.MEDIA_TYPE_VALUE)
+    List<WidgetRecord> getWidgetsInAreaBinary(@PathVariable(required = false) String boardId,
+                                              @RequestParam(value = "x1") long x1,
+                                              @RequestParam(value = "y1") long y1,
+                                              @RequestParam(value = "x2") long x2,
+                                              @RequestParam(value = "y2") long y2,
+                                              WebRequest request) {
+        WidgetService service = service(boardId);
+        return boardNotModified(service, request, BINARY) ? null : service.findInArea(new Rectangle(x1, y1, x2, y2));
+    }
+
+    /**
+     * Hit test: the topmost widget covering the point (empty list when there's none),
+     * or with stack=true every widget covering it, topmost first
+     */
+    @GetMapping({"/widgets/at", "/boards/{boardId}/widgets/at"})
+    List<WidgetRecord> getWidgetsAt(@PathVariable(required = false) String boardId,
+                                    @RequestParam(value = "x") long x,
+                                    @RequestParam(value = "y") long y,
+                                    @RequestParam(value = "stack", defaultValue = "false") boolean stack,
+                                    WebRequest request) {
+        WidgetService service = service(boardId);
+        if (boardNotModified(service, request))
+            return null;
+        List<WidgetRecord> widgets = service.findAtPoint(x, y);
+        return stack || widgets.size() <= 1 ? widgets : widgets.subList(0, 1);
+    }
+
+    /**
+     * Other widgets intersecting the widget, sorted by zIndex, e.g. for snapping while it's dragged
+     */
+    @GetMapping({"/widgets/{id}/overlaps", "/boards/{boardId}/widgets/{id}/overlaps"})
+    List<WidgetRecord> getOverlappingWidgets(@PathVariable(required = false) String boardId, @PathVariable Long id,
+                                             WebRequest request) {
+        WidgetService service = service(boardId);
+        return boardNotModified(service, request) ? null : service.findOverlapping(id);
+    }
+
+    //Unscoped routes use the configured service, the others their board's
+    private WidgetService service(String boardId) {
+        return boardId == null ? widgetService : boards.get(boardId);
+    }
+
+    private boolean boardNotModified(WidgetService service, WebRequest request) {
+        return boardNotModified(service, request, "");
+    }
+
+    //Lists are tagged with the board version, read before the widgets so they're at least as new as the tag.
+    //Every representation of the same URL needs its own tag
+    private boolean boardNotModified(WidgetService service, WebRequest request, String representation) {
+        OptionalLong version = service.getVersion();
+        return version.isPresent() && request.checkNotModified(etag(version.getAsLong(), representation));
+    }
+
+    private static String etag(long version) {
+        return etag(version, "");
+    }
+
+    private static String etag(long version, String representation) {
+        return '"' + Long.toHexString(version) + representation + '"';
+    }
+
+    private static ResponseEntity<byte[]> json(byte[] body) {
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    private byte[] toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Can't serialize response", e);
+        }
+    }
+
+    /**
+     * Whole board as a JSON array sorted by zIndex, written widget by widget to the response
+     * (from the published list in memory, or a database cursor on H2), so memory doesn't grow with the board
+     */
+    @GetMapping(value = {"/widgets/export", "/boards/{boardId}/widgets/export"}, produces = MediaType.APPLICATION_JSON_VALUE)
+    ResponseEntity<StreamingResponseBody> exportWidgets(@PathVariable(required = false) String boardId) {
+        WidgetService service = service(boardId);
+        StreamingResponseBody body = out -> {
+            //A failure half way leaves the array unclosed, so clients can't take a partial board for a whole one
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)
+                    .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT)) {
+                generator.writeStartArray();
+                service.forEachSorted(widget -> {
+                    try {
+                        generator.writeObject(widget);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(body);
+    }
+
+    @GetMapping("/widgets/cache/stats")
+    ResponseCacheStats getResponseCacheStats() {
+        return responseCache.getStats();
+    }
+
+    /**
+     * Server-sent events, every "changes" event is a JSON array of the changes applied since the previous one,
+     * with the board version after them as id. Shifts are relative, so they only apply on top of that previous state.
+     * A client reconnecting with Last-Event-ID (or since=) first gets what it missed: one "changes" event, or
+     * a "resync" event with all widgets (same body as changes?since=) when those changes aren't kept anymore.
+     * Without a board version (transactional H2) there are no ids, clients read the widgets again on reconnect.
+     */
+    @GetMapping(value = "/widgets/changes", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    SseEmitter streamChanges(@RequestParam(value = "since", required = false) Long since,
+                             @RequestHeader(value = "Last-Event-ID", required = false) Long lastEventId) {
+        SseEmitter emitter = new SseEmitter(feedTimeoutMillis);
+        WidgetChangeFeed.Subscription subscription = changeFeed.subscribeHeld(
+                (version, events) -> sendEvent(emitter, "changes", version, events));
+        emitter.onCompletion(subscription::close);
+        emitter.onTimeout(subscription::close);
+        emitter.onError(e -> subscription.close());
+
+        Long from = lastEventId != null ? lastEventId : since;
+        if (from == null || widgetService.getVersion().isEmpty()) {
+            subscription.resume();
+            return emitter;
+        }
+        //Held writes the catch up already covers are dropped on resume
+        try {
+            WidgetChanges missed = widgetService.findChangesSince(from);
+            if (missed.isResync())
+                sendEvent(emitter, "resync", missed.getVersion(), missed);
+            else if (!missed.getChanges().isEmpty())
+                sendEvent(emitter, "changes", missed.getVersion(), missed.getChanges());
+            subscription.resumeAfter(missed.getVersion());
+        } catch (RuntimeException e) {
+            subscription.close();
+            throw e;
+        }
+        return emitter;
+    }
+
+    private static void sendEvent(SseEmitter emitter, String name, long version, Object data) {
+        SseEmitter.SseEventBuilder event = SseEmitter.event().name(name);
+        if (version != 0)
+            event.id(Long.toString(version));
+        event.data(data, MediaType.APPLICATION_JSON);
+        try {
+            emitter.send(event);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    @GetMapping("/widgets/{id}")
-    Widget getWidget(@PathVariable Long id) {
-        return widgetService.findById(id);
+    /**
+     * Polling alternative to the stream: what changed since the version of the previous answer,
+     * or all widgets when those changes aren't kept anymore (the first call can pass 0)
+     */
+    @GetMapping(value = {"/widgets/changes", "/boards/{boardId}/widgets/changes"}, params = "since",
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    WidgetChanges getChangesSince(@PathVariable(required = false) String boardId,
+                                  @RequestParam(value = "since") long since) {
+        return service(boardId).findChangesSince(since);
     }
 
-    @GetMapping("/widgets")
-    List<Widget> getWidgetList(@RequestParam(value = "page") int page,
-                                     @RequestParam(value = "size", defaultValue = "10") int size) {
-        return widgetService.findAll(page, size);
+    @PostMapping({"/widgets", "/boards/{boardId}/widgets"})
+    WidgetRecord createWidget(@PathVariable(required = false) String boardId, @RequestBody Widget widget) {
+        return service(boardId).addWidget(widget);
     }
 
-    @PostMapping("/widgets")
-    Widget createWidget(@RequestBody Widget widget) {
-        return widgetService.addWidget(widget);
+    /**
+     * All operations are applied, in order, or none of them
+     */
+    @PostMapping({"/widgets/batch", "/boards/{boardId}/widgets/batch"})
+    List<WidgetRecord> applyBatch(@PathVariable(required = false) String boardId,
+                                  @RequestBody WidgetBatchRequest request) {
+        return service(boardId).applyBatch(request.toCommands());
     }
 
-    @PutMapping("/widgets/{id}")
-    Widget updateWidget(@RequestBody Widget widget, @PathVariable Long id) {
-        return widgetService.updateWidget(id, widget);
+    @PutMapping({"/widgets/{id}", "/boards/{boardId}/widgets/{id}"})
+    WidgetRecord updateWidget(@PathVariable(required = false) String boardId, @RequestBody Widget widget,
+                              @PathVariable Long id) {
+        return service(boardId).updateWidget(id, widget);
     }
 
-    @DeleteMapping("/widgets/{id}")
-    ResponseEntity<?> deleteWidget(@PathVariable Long id) {
-        widgetService.removeWidget(id);
+    @DeleteMapping({"/widgets/{id}", "/boards/{boardId}/widgets/{id}"})
+    ResponseEntity<?> deleteWidget(@PathVariable(required = false) String boardId, @PathVariable Long id) {
+        service(boardId).removeWidget(id);
         return ResponseEntity.noContent().build();
     }
 
@@ -0,0 +1,114 @@
+package com.miro.platform.widget.application.rest.binary;
+
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.springframework.http.MediaType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact encoding of widget lists, for clients loading large boards over slow links.
+ * Every number is a varint (7 bits per byte, lowest group first, high bit set while more follow)
+ * of the zigzag encoded value, so small values of either sign take a byte or two.
+ * <ul>
+ *     <li>list: number of widgets, then per widget: id, zIndex minus the previous widget's zIndex (lists are sorted,
+ *     so it's mostly 1 or a small gap), x, y, width, height, lastUpdate millis minus the previous widget's</li>
+ *     <li>cursor page: list, then the length of nextCursor in UTF-8 bytes (0 when there's none) and its bytes</li>
+ * </ul>
+ * Deltas start from 0 and wrap around like long arithmetic, both sides compute them the same way.
+ */
+public final class WidgetBinaryFormat {
+    public static final String MEDIA_TYPE_VALUE = "application/x-widgets";
+    public static final MediaType MEDIA_TYPE = MediaType.valueOf(MEDIA_TYPE_VALUE);
+
+    private WidgetBinaryFormat() {
+    }
+
+    public static void writeList(List<WidgetRecord> widgets, OutputStream out) throws IOException {
+        writeVarLong(widgets.size(), out);
+        long previousZindex = 0;
+        long previousUpdate = 0;
+        for (WidgetRecord widget : widgets) {
+            writeVarLong(widget.getId(), out);
+            writeVarLong(widget.getzIndex() - previousZindex, out);
+            writeVarLong(widget.getX(), out);
+            writeVarLong(widget.getY(), out);
+            writeVarLong(widget.getWidth(), out);
+            writeVarLong(widget.getHeight(), out);
+            writeVarLong(widget.getLastUpdateMillis() - previousUpdate, out);
+            previousZindex = widget.getzIndex();
+            previousUpdate = widget.getLastUpdateMillis();
+        }
+    }
+
+    public static void writeCursor(String cursor, OutputStream out) throws IOException {
+        byte[] bytes = cursor == null ? new byte[0] : cursor.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length, out);
+        out.write(bytes);
+    }
+
+    public static List<WidgetRecord> readList(InputStream in) throws IOException {
+        int count = readLength(in);
+        List<WidgetRecord> widgets = new ArrayList<>(count);
+        long zIndex = 0;
+        long lastUpdate = 0;
+        for (int i = 0; i < count; i++) {
+            long id = readVarLong(in);
+            zIndex += readVarLong(in);
+            long x = readVarLong(in);
+            long y = readVarLong(in);
+            long width = readVarLong(in);
+            long height = readVarLong(in);
+            lastUpdate += readVarLong(in);
+            widgets.add(new WidgetRecord(id, x, y, width, height, zIndex, lastUpdate));
+        }
+        return widgets;
+    }
+
+    /**
+     * @return nextCursor, null when there's none
+     */
+    public static String readCursor(InputStream in) throws IOException {
+        int length = readLength(in);
+        if (length == 0)
+            return null;
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length < length)
+            throw new EOFException("Truncated cursor");
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeVarLong(long value, OutputStream out) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) (zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    static long readVarLong(InputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0)
+                throw new EOFException("Truncated widget list");
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readLength(InputStream in) throws IOException {
+        long length = readVarLong(in);
+        if (length < 0 || length > Integer.MAX_VALUE)
+            throw new IOException("Malformed length: " + length);
+        return (int) length;
+    }
+}
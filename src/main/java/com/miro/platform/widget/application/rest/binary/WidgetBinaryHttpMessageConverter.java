@@ -0,0 +1,82 @@
+package com.miro.platform.widget.application.rest.binary;
+
+import com.miro.platform.widget.application.rest.response.WidgetCursorPage;
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractGenericHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+import java.util.List;
+
+/**
+ * Writes widget lists and cursor pages as {@link WidgetBinaryFormat}, widget by widget straight to the response.
+ * Only used when the handler explicitly produces that media type, so it's never picked for a wildcard Accept.
+ * Write only, the format is for reads.
+ */
+@Component
+public class WidgetBinaryHttpMessageConverter extends AbstractGenericHttpMessageConverter<Object> {
+    private static final int BUFFER_SIZE = 8192;
+
+    public WidgetBinaryHttpMessageConverter() {
+        super(WidgetBinaryFormat.MEDIA_TYPE);
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return List.class.isAssignableFrom(clazz) || WidgetCursorPage.class.isAssignableFrom(clazz);
+    }
+
+    @Override
+    public boolean canWrite(Type type, Class<?> clazz, MediaType mediaType) {
+        if (mediaType == null || mediaType.isWildcardType() || mediaType.isWildcardSubtype() || !canWrite(mediaType))
+            return false;
+        if (WidgetCursorPage.class.isAssignableFrom(clazz))
+            return true;
+        if (!List.class.isAssignableFrom(clazz) || type == null)
+            return false;
+        Class<?> element = ResolvableType.forType(type).asCollection().resolveGeneric(0);
+        return element != null && WidgetRecord.class.isAssignableFrom(element);
+    }
+
+    @Override
+    public boolean canRead(Type type, Class<?> contextClass, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    public boolean canRead(Class<?> clazz, MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void writeInternal(Object body, Type type, HttpOutputMessage outputMessage) throws IOException {
+        OutputStream out = new BufferedOutputStream(outputMessage.getBody(), BUFFER_SIZE);
+        if (body instanceof WidgetCursorPage) {
+            WidgetCursorPage page = (WidgetCursorPage) body;
+            WidgetBinaryFormat.writeList(page.getWidgets(), out);
+            WidgetBinaryFormat.writeCursor(page.getNextCursor(), out);
+        } else {
+            WidgetBinaryFormat.writeList((List<WidgetRecord>) body, out);
+        }
+        out.flush();
+    }
+
+    @Override
+    protected Object readInternal(Class<?> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Widget binary format is write only", inputMessage);
+    }
+
+    @Override
+    public Object read(Type type, Class<?> contextClass, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("Widget binary format is write only", inputMessage);
+    }
+}
@@ -0,0 +1,326 @@
+package com.miro.platform.widget.application.rest.cache;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.platform.widget.application.rest.response.WidgetCursorPage;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.service.WidgetService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Serialized JSON of widgets and pages, so hot reads skip Jackson (and the lastUpdate formatting) altogether.
+ * A widget entry is served while the widget's version tag is the one it was serialized with.
+ * A page entry keeps the board version it's valid at, once the board moved on the changes since then
+ * are checked against what the page covers (its ids and zIndex range, shifted ranges too), and only a change
+ * that may show on the page drops it. Past max-bytes entries are evicted in approximate LRU order: each entry keeps
+ * the clock of its last read, and eviction drops the least recent of a few entries sampled round the map.
+ * Reads take no lock and only write the entry's clock when a put moved the clock since.
+ * Without a board version (transactional H2) pages aren't cached.
+ */
+@Component
+public class WidgetResponseCache {
+    //Entries sampled for each eviction
+    private static final int EVICTION_SAMPLE = 8;
+
+    private final WidgetService widgetService;
+    private final ObjectMapper objectMapper;
+    private final long maxBytes;
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    //Moves on every put only, so reads between two puts share one value
+    private final AtomicLong clock = new AtomicLong();
+    //Guarded by entries, each eviction samples on from where the previous one stopped
+    private Iterator<Map.Entry<Key, Entry>> evictionCursor;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    @Autowired
+    public WidgetResponseCache(WidgetService widgetService, ObjectMapper objectMapper,
+                               @Value("${cache.response.max-bytes:16777216}") long maxBytes,
+                               ObjectProvider<MeterRegistry> meterRegistry) {
+        this(widgetService, objectMapper, maxBytes);
+        meterRegistry.ifAvailable(this::bindMetrics);
+    }
+
+    public WidgetResponseCache(WidgetService widgetService, ObjectMapper objectMapper, long maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Response cache size can't be negative");
+        this.widgetService = widgetService;
+        this.objectMapper = objectMapper;
+        this.maxBytes = maxBytes;
+    }
+
+    public byte[] getWidget(WidgetRecord widget) {
+        Key key = new Key(Key.WIDGET, widget.getId(), 0);
+        Entry entry = get(key);
+        if (entry != null) {
+            if (entry.version == widget.getVersionTag()) {
+                hits.increment();
+                return entry.body;
+            }
+            invalidate(key, entry);
+        }
+        misses.increment();
+        byte[] body = serialize(widget);
+        put(key, new Entry(body, widget.getVersionTag()));
+        return body;
+    }
+
+    /**
+     * Offset pages move with any widget added, removed or moved below them, and a removed or updated
+     * widget may have been below: only adds and shifts not reaching the page keep it
+     */
+    public byte[] getPage(int page, int size) {
+        return getPage(new Key(Key.PAGE, page, size), () -> widgetService.findAll(page, size), widgets -> widgets,
+                null, size, true);
+    }
+
+    /**
+     * Keyset pages only cover zIndexes above the cursor, changes of other widgets above the page keep them
+     */
+    public byte[] getPageAfter(Long zIndex, int limit) {
+        Key key = zIndex == null ? new Key(Key.FIRST, 0, limit) : new Key(Key.AFTER, zIndex, limit);
+        return getPage(key, () -> widgetService.findAfterZindex(zIndex, limit),
+                widgets -> WidgetCursorPage.of(widgets, limit), zIndex, limit, false);
+    }
+
+    private byte[] getPage(Key key, Supplier<List<WidgetRecord>> read, Function<List<WidgetRecord>, Object> toBody,
+                           Long afterZindex, int size, boolean offset) {
+        OptionalLong version = widgetService.getVersion();
+        if (version.isEmpty()) {
+            misses.increment();
+            return serialize(toBody.apply(read.get()));
+        }
+
+        Entry entry = get(key);
+        if (entry != null) {
+            if (isValid((PageEntry) entry, version.getAsLong())) {
+                hits.increment();
+                return entry.body;
+            }
+            invalidate(key, entry);
+        }
+        misses.increment();
+        //Read after the version, so the page is at least as new as the version it's kept with
+        List<WidgetRecord> widgets = read.get();
+        byte[] body = serialize(toBody.apply(widgets));
+        put(key, new PageEntry(body, version.getAsLong(), afterZindex, widgets, size, offset));
+        return body;
+    }
+
+    private boolean isValid(PageEntry entry, long version) {
+        if (entry.version == version)
+            return true;
+        //A resync would read the whole board just to drop the page
+        WidgetChanges changes = widgetService.findDeltaSince(entry.version);
+        if (changes == null)
+            return false;
+        for (WidgetChangeEvent event : changes.getChanges()) {
+            if (entry.isAffectedBy(event))
+                return false;
+        }
+        //Nothing on the page changed, checking from the newer version next time
+        entry.version = changes.getVersion();
+        return true;
+    }
+
+    private Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            long now = clock.get();
+            //Hot entries stay unwritten between puts instead of bouncing their cache line between readers
+            if (entry.accessed != now)
+                entry.accessed = now;
+        }
+        return entry;
+    }
+
+    private void put(Key key, Entry entry) {
+        if (entry.body.length > maxBytes)
+            return;
+        entry.accessed = clock.incrementAndGet();
+        Entry previous = entries.put(key, entry);
+        long total = bytes.addAndGet(previous == null ? entry.body.length : entry.body.length - previous.body.length);
+        if (total > maxBytes)
+            evict();
+    }
+
+    private void evict() {
+        synchronized (entries) {
+            while (bytes.get() > maxBytes && !entries.isEmpty()) {
+                Map.Entry<Key, Entry> eldest = null;
+                for (int sampled = 0; sampled < Math.min(EVICTION_SAMPLE, entries.size()); sampled++) {
+                    if (evictionCursor == null || !evictionCursor.hasNext())
+                        evictionCursor = entries.entrySet().iterator();
+                    if (!evictionCursor.hasNext())
+                        break;
+                    Map.Entry<Key, Entry> candidate = evictionCursor.next();
+                    if (eldest == null || candidate.getValue().accessed < eldest.getValue().accessed)
+                        eldest = candidate;
+                }
+                //Fails when it was invalidated or replaced meanwhile, the loop then samples again
+                if (eldest != null && entries.remove(eldest.getKey(), eldest.getValue())) {
+                    bytes.addAndGet(-eldest.getValue().body.length);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    private void invalidate(Key key, Entry entry) {
+        //Another reader may have put a newer one already
+        if (entries.remove(key, entry)) {
+            bytes.addAndGet(-entry.body.length);
+            invalidations.increment();
+        }
+    }
+
+    private byte[] serialize(Object body) {
+        try {
+            return objectMapper.writeValueAsBytes(body);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Can't serialize response", e);
+        }
+    }
+
+    public ResponseCacheStats getStats() {
+        return new ResponseCacheStats(hits.sum(), misses.sum(), invalidations.sum(), evictions.sum(),
+                entries.size(), bytes.get());
+    }
+
+    /**
+     * widgets.response-cache.hits, misses, invalidations and evictions counters and the widgets.response-cache.bytes gauge
+     */
+    public void bindMetrics(MeterRegistry registry) {
+        FunctionCounter.builder("widgets.response-cache.hits", hits, LongAdder::sum)
+                .description("Responses served from the cache")
+                .register(registry);
+        FunctionCounter.builder("widgets.response-cache.misses", misses, LongAdder::sum)
+                .description("Responses serialized again")
+                .register(registry);
+        FunctionCounter.builder("widgets.response-cache.invalidations", invalidations, LongAdder::sum)
+                .description("Entries dropped as a change showed on them")
+                .register(registry);
+        FunctionCounter.builder("widgets.response-cache.evictions", evictions, LongAdder::sum)
+                .description("Entries dropped to stay within max-bytes")
+                .register(registry);
+        Gauge.builder("widgets.response-cache.bytes", bytes, AtomicLong::get)
+                .description("Serialized bytes kept")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+
+    private static final class Key {
+        static final int WIDGET = 0;
+        static final int PAGE = 1;
+        static final int FIRST = 2;
+        static final int AFTER = 3;
+        private final int kind;
+        private final long a;
+        private final long b;
+
+        Key(int kind, long a, long b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return kind == key.kind && a == key.a && b == key.b;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, a, b);
+        }
+    }
+
+    private static class Entry {
+        final byte[] body;
+        //Version tag of the widget, or board version a page is valid at
+        volatile long version;
+        //Clock of the last read, for eviction
+        volatile long accessed;
+
+        Entry(byte[] body, long version) {
+            this.body = body;
+            this.version = version;
+        }
+    }
+
+    private static final class PageEntry extends Entry {
+        //zIndexes the page covers, to is MAX_VALUE when the page isn't full (widgets added above show on it)
+        private final long from;
+        private final long to;
+        private final long[] sortedIds;
+        private final boolean offset;
+
+        PageEntry(byte[] body, long version, Long afterZindex, List<WidgetRecord> widgets, int size, boolean offset) {
+            super(body, version);
+            this.offset = offset;
+            if (offset) {
+                from = widgets.isEmpty() ? Long.MIN_VALUE : widgets.get(0).getzIndex();
+            } else {
+                from = afterZindex == null || afterZindex == Long.MAX_VALUE ? Long.MIN_VALUE : afterZindex + 1;
+            }
+            to = widgets.size() < size ? Long.MAX_VALUE : widgets.get(widgets.size() - 1).getzIndex();
+            sortedIds = widgets.stream().mapToLong(WidgetRecord::getId).sorted().toArray();
+        }
+
+        boolean isAffectedBy(WidgetChangeEvent event) {
+            switch (event.getType()) {
+                case ADD:
+                    long zIndex = event.getWidget().getzIndex();
+                    return zIndex <= to && (offset || zIndex >= from);
+                case UPDATE:
+                    return offset || contains(event.getId()) || covers(event.getWidget().getzIndex());
+                case REMOVE:
+                    return offset || contains(event.getId());
+                case SHIFT:
+                    //Widgets of the page move, and for keyset pages widgets right below may move onto it
+                    long lowest = offset ? from : saturatedSubtract(from, event.getBy());
+                    return event.getFrom() <= to && (event.getTo() == null || event.getTo() > lowest);
+                default:
+                    return true;
+            }
+        }
+
+        private boolean covers(long zIndex) {
+            return zIndex >= from && zIndex <= to;
+        }
+
+        private boolean contains(long id) {
+            return Arrays.binarySearch(sortedIds, id) >= 0;
+        }
+
+        private static long saturatedSubtract(long value, long by) {
+            return value < Long.MIN_VALUE + by ? Long.MIN_VALUE : value - by;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.miro.platform.widget.application.rest.exception;
+
+import com.miro.platform.widget.application.rest.response.GenericJsonResponse;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Requests the widgets can't be read or written with: bad cursors, pages, geometry, batch operations
+ */
+@ControllerAdvice
+public class InvalidRequestAdvice {
+
+    @ResponseBody
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public GenericJsonResponse invalidRequestHandler(IllegalArgumentException ex) {
+        return new GenericJsonResponse(ex.getMessage());
+    }
+}
@@ -0,0 +1,46 @@
+package com.miro.platform.widget.application.rest.exception;
+
+import com.miro.platform.widget.application.rest.response.GenericJsonResponse;
+import com.miro.platform.widget.domain.concurrency.TransactionalStrategy;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Writes that kept losing races with other writers (transactional mode) or clashing with stored widgets
+ */
+@ControllerAdvice
+public class WriteConflictAdvice {
+    private static final String CONFLICT = "Conflicting write, try again";
+
+    @ResponseBody
+    @ExceptionHandler(ConcurrencyFailureException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public GenericJsonResponse writeConflictHandler(ConcurrencyFailureException ex) {
+        return new GenericJsonResponse(CONFLICT);
+    }
+
+    @ResponseBody
+    @ExceptionHandler(DuplicateKeyException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public GenericJsonResponse duplicateKeyHandler(DuplicateKeyException ex) {
+        return new GenericJsonResponse(ex.getMessage());
+    }
+
+    /**
+     * A zIndex taken by another writer until the retries ran out is a conflict, anything else
+     * is a widget the database refuses however often it's sent
+     */
+    @ExceptionHandler(DataIntegrityViolationException.class)
+    public ResponseEntity<GenericJsonResponse> integrityViolationHandler(DataIntegrityViolationException ex) {
+        if (TransactionalStrategy.isConflict(ex))
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(new GenericJsonResponse(CONFLICT));
+        return ResponseEntity.badRequest().body(new GenericJsonResponse("Widget breaks a constraint of the storage"));
+    }
+}
@@ -0,0 +1,86 @@
+package com.miro.platform.widget.application.rest.request;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Body of POST /widgets/batch:
+ * {"operations": [{"op": "add", "widget": {...}}, {"op": "update", "id": 1, "widget": {...}}, {"op": "remove", "id": 2}]}
+ */
+public class WidgetBatchRequest {
+    private final List<Operation> operations;
+
+    @JsonCreator
+    public WidgetBatchRequest(@JsonProperty(value = "operations", required = true) List<Operation> operations) {
+        this.operations = operations;
+    }
+
+    public List<Operation> getOperations() {
+        return operations;
+    }
+
+    public List<WidgetCommand> toCommands() {
+        List<WidgetCommand> commands = new ArrayList<>(operations.size());
+        for (Operation operation : operations) {
+            commands.add(operation.toCommand());
+        }
+        return commands;
+    }
+
+    public static class Operation {
+        private final String op;
+        private final Long id;
+        private final Widget widget;
+
+        @JsonCreator
+        public Operation(@JsonProperty(value = "op", required = true) String op,
+                         @JsonProperty("id") Long id,
+                         @JsonProperty("widget") Widget widget) {
+            this.op = op;
+            this.id = id;
+            this.widget = widget;
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public Widget getWidget() {
+            return widget;
+        }
+
+        WidgetCommand toCommand() {
+            switch (op) {
+                case "add":
+                    return WidgetCommand.add(requireWidget());
+                case "update":
+                    return WidgetCommand.update(requireId(), requireWidget());
+                case "remove":
+                    return WidgetCommand.remove(requireId());
+                default:
+                    throw new IllegalArgumentException("Unknown operation: " + op + ", expected add, update or remove");
+            }
+        }
+
+        private Widget requireWidget() {
+            if (widget == null)
+                throw new IllegalArgumentException("Operation " + op + " needs a widget");
+            return widget;
+        }
+
+        private Long requireId() {
+            if (id == null)
+                throw new IllegalArgumentException("Operation " + op + " needs an id");
+            return id;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.miro.platform.widget.application.rest.response;
+
+import com.miro.platform.widget.domain.WidgetRecord;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Keyset page of widgets. nextCursor is opaque to clients, it's passed back as is to get the next page
+ * and is null once the last widget was returned. A full page always has a cursor, so the page after it may be empty.
+ */
+public class WidgetCursorPage {
+    private static final String PREFIX = "z:";
+    private final List<WidgetRecord> widgets;
+    private final String nextCursor;
+
+    private WidgetCursorPage(List<WidgetRecord> widgets, String nextCursor) {
+        this.widgets = widgets;
+        this.nextCursor = nextCursor;
+    }
+
+    public static WidgetCursorPage of(List<WidgetRecord> widgets, int limit) {
+        String nextCursor = widgets.size() < limit ? null : encode(widgets.get(widgets.size() - 1).getzIndex());
+        return new WidgetCursorPage(widgets, nextCursor);
+    }
+
+    public List<WidgetRecord> getWidgets() {
+        return widgets;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    static String encode(long zIndex) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString((PREFIX + zIndex).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return zIndex the cursor continues after
+     */
+    public static long decode(String cursor) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (!decoded.startsWith(PREFIX))
+            throw new IllegalArgumentException("Invalid cursor");
+        try {
+            return Long.parseLong(decoded.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+    }
+}
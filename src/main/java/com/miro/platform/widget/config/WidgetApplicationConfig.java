@@ -1,7 +1,10 @@
 package com.miro.platform.widget.config;
 
+import com.miro.platform.widget.domain.events.WidgetChangeFeed;
 import com.miro.platform.widget.domain.repository.WidgetRepo;
 import com.miro.platform.widget.domain.service.WidgetService;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
@@ -9,8 +12,6 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 
-import java.util.concurrent.locks.StampedLock;
-
 @Configuration
 public class WidgetApplicationConfig {
     @Autowired
@@ -18,18 +19,21 @@ public class WidgetApplicationConfig {
 
     @Bean
     @Primary
-    public WidgetService WidgetService(@Value("${service.type}") String qualifier) {
-        return (WidgetService) context.getBean(qualifier);
+    public WidgetService WidgetService(@Value("${service.type}") String qualifier, WidgetChangeFeed changeFeed,
+                                       ObjectProvider<MeterRegistry> meterRegistry) {
+        WidgetService service = (WidgetService) context.getBean(qualifier);
+        //Only the selected service reports changes, so none is reported twice
+        service.setChangeListener(changeFeed);
+        //Same for the board gauges, the other services may be sitting on the same repo
+        meterRegistry.ifAvailable(service::bindMetrics);
+        return service;
     }
 
     @Bean
     @Primary
-    public WidgetRepo WidgetRepo(@Value("${storage.type}") String qualifier) {
-        return (WidgetRepo) context.getBean(qualifier);
-    }
-
-    @Bean
-    public StampedLock StampedLock() {
-        return new StampedLock();
+    public WidgetRepo WidgetRepo(@Value("${storage.type}") String qualifier, ObjectProvider<MeterRegistry> meterRegistry) {
+        WidgetRepo repo = (WidgetRepo) context.getBean(qualifier);
+        meterRegistry.ifAvailable(repo::bindMetrics);
+        return repo;
     }
 }
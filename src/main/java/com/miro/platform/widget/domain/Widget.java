@@ -11,8 +11,15 @@ import java.time.LocalDateTime;
 import java.util.Objects;
 
 @Entity
-@Table(name="Widget")
+//(x, y) serves the spatial queries of the H2 storage, width and height give their max in one index lookup
+@Table(name="Widget", uniqueConstraints = @UniqueConstraint(name = Widget.ZINDEX_CONSTRAINT, columnNames = "zIndex"),
+        indexes = {@Index(name = "IX_WIDGET_XY", columnList = "x, y"),
+                @Index(name = "IX_WIDGET_WIDTH", columnList = "width"),
+                @Index(name = "IX_WIDGET_HEIGHT", columnList = "height")})
 public class Widget implements Comparable<Widget> {
+    //Named so a violation can be told apart from the other ones, see TransactionalStrategy.isConflict
+    public static final String ZINDEX_CONSTRAINT = "UK_WIDGET_ZINDEX";
+
     @JsonIgnore
     @Id
     @GeneratedValue
@@ -22,10 +29,15 @@ public class Widget implements Comparable<Widget> {
     private Long y;
     private Long width;
     private Long height;
+    //Unique index, also serves lookups and range queries by zIndex
     private Long zIndex;
     @JsonProperty(access = JsonProperty.Access.READ_ONLY)
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss")
     private LocalDateTime lastUpdate; // This is read only
+    //Optimistic locking of the H2 storage, null until persisted
+    @JsonIgnore
+    @Version
+    private Long version;
 
     public Widget() {
     }
@@ -114,7 +126,9 @@ public class Widget implements Comparable<Widget> {
     /**
      * Normally if it's accessed through API it's already guarded by API validation
      * as All those fields are required. This is only to prevent code misuse.
-     * It's not checking for zIndex nor Id as they are assignable from endpoint
+     * It's not checking for zIndex nor Id as they are assignable from endpoint.
+     * Geometry is checked here too, so repos reject a widget before changing anything
+     * (its far corner must fit in a long, see {@link com.miro.platform.widget.domain.spatial.Rectangle})
      */
     public void validForOperationOrThrow() {
         if (height == null ||
@@ -122,6 +136,10 @@ public class Widget implements Comparable<Widget> {
                 x == null ||
                 y == null)
             throw new IllegalStateException("Missing one or more required attributes. X, Y, Width, Height");
+        if (width < 0 || height < 0)
+            throw new IllegalArgumentException("Width and height can't be negative");
+        if (x + width < x || y + height < y)
+            throw new IllegalArgumentException("Widget must end before " + Long.MAX_VALUE + " on both axes");
     }
 
     @Override
@@ -166,18 +184,21 @@ public class Widget implements Comparable<Widget> {
         return 0;
     }
 
-//    public Widget getCopy() {
-//        return Widget.Builder
-//                .emptyWidget()
-//                .withId(getId())
-//                .withZIndex(getzIndex())
-//                .withWidth(getWidth())
-//                .withHeight(getHeight())
-//                .withX(getX())
-//                .withY(getY())
-//                .withLastUpdate(getLastUpdate())
-//                .build();
-//    }
+    /**
+     * Copy without the version, as given by a client
+     */
+    public Widget getCopy() {
+        return Widget.Builder
+                .emptyWidget()
+                .withId(getId())
+                .withZIndex(getzIndex())
+                .withWidth(getWidth())
+                .withHeight(getHeight())
+                .withX(getX())
+                .withY(getY())
+                .withLastUpdate(getLastUpdate())
+                .build();
+    }
 
     public static final class Builder {
         private Long id;
@@ -0,0 +1,138 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import org.springframework.dao.DuplicateKeyException;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * A single write on the widgets, so writes can be queued and applied in batches
+ */
+public final class WidgetCommand {
+    public enum Type {
+        ADD,
+        UPDATE,
+        REMOVE
+    }
+
+    private final Type type;
+    private final Long id;
+    private final Widget widget;
+
+    private WidgetCommand(Type type, Long id, Widget widget) {
+        this.type = type;
+        this.id = id;
+        this.widget = widget;
+    }
+
+    public static WidgetCommand add(Widget widget) {
+        return new WidgetCommand(Type.ADD, widget.getId(), widget);
+    }
+
+    /**
+     * Widget must already carry the id of the widget to update
+     */
+    public static WidgetCommand update(Widget widget) {
+        return update(widget.getId(), widget);
+    }
+
+    /**
+     * Widget's id may still be missing, services check it against the given id before going to the repo
+     */
+    public static WidgetCommand update(Long id, Widget widget) {
+        return new WidgetCommand(Type.UPDATE, id, widget);
+    }
+
+    public static WidgetCommand remove(Long id) {
+        return new WidgetCommand(Type.REMOVE, id, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public Widget getWidget() {
+        return widget;
+    }
+
+    /**
+     * Checks the commands can all be applied in order, existing tells whether an id is stored before the batch.
+     * Throws what the first failing command would fail with.
+     */
+    public static void validateAll(List<WidgetCommand> commands, Predicate<Long> existing) {
+        Set<Long> added = new HashSet<>();
+        Set<Long> removed = new HashSet<>();
+        for (WidgetCommand command : commands) {
+            Long id = command.getId();
+            boolean present = id != null && (added.contains(id) || (!removed.contains(id) && existing.test(id)));
+            switch (command.getType()) {
+                case ADD:
+                    command.getWidget().validForOperationOrThrow();
+                    if (present)
+                        throw new DuplicateKeyException("Trying to insert duplicate Id");
+                    if (id != null)
+                        added.add(id);
+                    break;
+                case UPDATE:
+                    command.getWidget().validForOperationOrThrow();
+                    if (!present)
+                        throw new ResourceNotFoundException("No widget with id: " + id);
+                    break;
+                default:
+                    if (!present)
+                        throw new ResourceNotFoundException("No widget with id: " + id);
+                    added.remove(id);
+                    removed.add(id);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetCommand{" +
+                "type=" + type +
+                ", id=" + id +
+                ", widget=" + widget +
+                '}';
+    }
+
+    /**
+     * Outcome of one command of a batch, either the written widget (null for removes) or what it failed with
+     */
+    public static final class Result {
+        private final WidgetRecord widget;
+        private final RuntimeException error;
+
+        private Result(WidgetRecord widget, RuntimeException error) {
+            this.widget = widget;
+            this.error = error;
+        }
+
+        public static Result ok(WidgetRecord widget) {
+            return new Result(widget, null);
+        }
+
+        public static Result failed(RuntimeException error) {
+            return new Result(null, error);
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        public WidgetRecord getWidget() {
+            return widget;
+        }
+
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.miro.platform.widget.domain;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+
+/**
+ * Immutable widget as stored by the in memory repos and returned to the REST layer.
+ * Primitive fields and epoch millis timestamp, so it's a single small object per widget
+ * and can be shared with readers without copying it.
+ * {@link Widget} stays the JPA entity and the input of write operations (id and zIndex are optional there).
+ */
+@JsonPropertyOrder({"id", "x", "y", "width", "height", "zIndex", "lastUpdate"})
+public final class WidgetRecord implements Comparable<WidgetRecord> {
+    private final long id;
+    private final long x;
+    private final long y;
+    private final long width;
+    private final long height;
+    private final long zIndex;
+    private final long lastUpdateMillis;
+
+    public WidgetRecord(long id, long x, long y, long width, long height, long zIndex, long lastUpdateMillis) {
+        this.id = id;
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.zIndex = zIndex;
+        this.lastUpdateMillis = lastUpdateMillis;
+    }
+
+    /**
+     * Widget must be valid for operation and have both id and zIndex
+     */
+    public static WidgetRecord from(Widget widget) {
+        return from(widget, widget.getLastUpdate() == null ?
+                System.currentTimeMillis() :
+                widget.getLastUpdate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+
+    public static WidgetRecord from(Widget widget, long lastUpdateMillis) {
+        return new WidgetRecord(widget.getId(),
+                widget.getX(),
+                widget.getY(),
+                widget.getWidth(),
+                widget.getHeight(),
+                widget.getzIndex(),
+                lastUpdateMillis);
+    }
+
+    public Widget toWidget() {
+        return Widget.Builder
+                .emptyWidget()
+                .withId(id)
+                .withZIndex(zIndex)
+                .withWidth(width)
+                .withHeight(height)
+                .withX(x)
+                .withY(y)
+                .withLastUpdate(getLastUpdate())
+                .build();
+    }
+
+    public WidgetRecord withZIndex(long zIndex) {
+        return new WidgetRecord(id, x, y, width, height, zIndex, lastUpdateMillis);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getX() {
+        return x;
+    }
+
+    public long getY() {
+        return y;
+    }
+
+    public long getWidth() {
+        return width;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    @JsonProperty("zIndex")
+    public long getzIndex() {
+        return zIndex;
+    }
+
+    @JsonIgnore
+    public long getLastUpdateMillis() {
+        return lastUpdateMillis;
+    }
+
+    //Only built when serializing
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = "yyyy-MM-dd'T'HH:mm:ss")
+    public LocalDateTime getLastUpdate() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(lastUpdateMillis), ZoneId.systemDefault());
+    }
+
+    /**
+     * Tag of this exact state, for ETags. Records are never changed in place, every write (shifts too) builds
+     * a new one, so a tag computed from the fields changes with the widget without storing a version per widget.
+     * 64 bit mixing of all fields, unlike hashCode.
+     */
+    @JsonIgnore
+    public long getVersionTag() {
+        long tag = mix(mix(mix(mix(mix(mix(id, x), y), width), height), zIndex), lastUpdateMillis);
+        return tag ^ (tag >>> 29);
+    }
+
+    private static long mix(long tag, long field) {
+        tag = (tag ^ field) * 0x9E3779B97F4A7C15L;
+        return tag ^ (tag >>> 32);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WidgetRecord that = (WidgetRecord) o;
+        return id == that.id &&
+                x == that.x &&
+                y == that.y &&
+                width == that.width &&
+                height == that.height &&
+                zIndex == that.zIndex &&
+                lastUpdateMillis == that.lastUpdateMillis;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Long.hashCode(id);
+        result = 31 * result + Long.hashCode(x);
+        result = 31 * result + Long.hashCode(y);
+        result = 31 * result + Long.hashCode(width);
+        result = 31 * result + Long.hashCode(height);
+        result = 31 * result + Long.hashCode(zIndex);
+        result = 31 * result + Long.hashCode(lastUpdateMillis);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetRecord{" +
+                "id=" + id +
+                ", x=" + x +
+                ", y=" + y +
+                ", width=" + width +
+                ", height=" + height +
+                ", zIndex=" + zIndex +
+                ", lastUpdateMillis=" + lastUpdateMillis +
+                '}';
+    }
+
+    @Override
+    public int compareTo(WidgetRecord widget) {
+        return Long.compare(zIndex, widget.zIndex);
+    }
+}
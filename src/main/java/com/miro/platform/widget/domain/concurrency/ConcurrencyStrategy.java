@@ -0,0 +1,52 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import java.util.function.Supplier;
+
+/**
+ * How a component guards its state between readers and writers.
+ * Every component gets its own instance from {@link ConcurrencyStrategyFactory}, so locks are never shared.
+ */
+public interface ConcurrencyStrategy {
+
+    /**
+     * Runs reader so that it sees the state between two writes.
+     * Reader may be run more than once and must not change anything.
+     */
+    <T> T read(Supplier<T> reader);
+
+    /**
+     * Same as read, but reader never overlaps a write: for readers walking structures a concurrent write
+     * may leave inconsistent (e.g. hash maps being resized), where an optimistic run is undefined behaviour
+     */
+    default <T> T readLocked(Supplier<T> reader) {
+        return read(reader);
+    }
+
+    /**
+     * Runs writer exclusively, one writer at a time
+     */
+    <T> T write(Supplier<T> writer);
+
+    default void write(Runnable writer) {
+        write(() -> {
+            writer.run();
+            return null;
+        });
+    }
+
+    /**
+     * When true, readers don't exclude writers at all, so they must only read
+     * immutable state published by writers (see {@link CopyOnWriteStrategy})
+     */
+    default boolean snapshotReads() {
+        return false;
+    }
+
+    /**
+     * When false, writes of other instances (sharing the same storage) happen without going through this strategy,
+     * so what this instance saw of the writes isn't all of them
+     */
+    default boolean exclusive() {
+        return true;
+    }
+}
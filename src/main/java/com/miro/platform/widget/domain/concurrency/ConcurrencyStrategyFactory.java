@@ -0,0 +1,105 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+
+/**
+ * Builds the strategy chosen by concurrency.type in application.properties.
+ * The H2 service can use its own type (concurrency.h2.type), including transactional.
+ * With a meter registry, the strategies of {@link #createFor} and {@link #createForH2(String)} are measured
+ * (see {@link InstrumentedStrategy}).
+ */
+@Component
+public class ConcurrencyStrategyFactory {
+    public static final String SYNCHRONIZED = "synchronized";
+    public static final String READ_WRITE = "readWrite";
+    public static final String STAMPED = "stamped";
+    public static final String COPY_ON_WRITE = "copyOnWrite";
+    //Only for components whose whole state is in the database
+    public static final String TRANSACTIONAL = "transactional";
+
+    private final String type;
+    private final String h2Type;
+    private final PlatformTransactionManager transactionManager;
+    //Null when metrics are off
+    private final MeterRegistry meterRegistry;
+
+    public ConcurrencyStrategyFactory(String type) {
+        this(type, type, (PlatformTransactionManager) null);
+    }
+
+    @Autowired
+    public ConcurrencyStrategyFactory(@Value("${concurrency.type:" + STAMPED + "}") String type,
+                                      @Value("${concurrency.h2.type:${concurrency.type:" + STAMPED + "}}") String h2Type,
+                                      ObjectProvider<PlatformTransactionManager> transactionManager,
+                                      ObjectProvider<MeterRegistry> meterRegistry) {
+        this(type, h2Type, transactionManager.getIfAvailable(), meterRegistry.getIfAvailable());
+    }
+
+    public ConcurrencyStrategyFactory(String type, String h2Type, PlatformTransactionManager transactionManager) {
+        this(type, h2Type, transactionManager, null);
+    }
+
+    public ConcurrencyStrategyFactory(String type, String h2Type, PlatformTransactionManager transactionManager,
+                                      MeterRegistry meterRegistry) {
+        this.type = type;
+        this.h2Type = h2Type;
+        this.transactionManager = transactionManager;
+        this.meterRegistry = meterRegistry;
+        //Failing on startup rather than on first request
+        create();
+        createForH2();
+    }
+
+    /**
+     * New instance on every call, so that a service and the repo it calls never share a lock
+     */
+    public ConcurrencyStrategy create() {
+        return create(type);
+    }
+
+    public ConcurrencyStrategy createForH2() {
+        if (!TRANSACTIONAL.equals(h2Type))
+            return create(h2Type);
+        if (transactionManager == null)
+            throw new IllegalStateException("Transactional concurrency needs a transaction manager");
+        return new TransactionalStrategy(transactionManager);
+    }
+
+    /**
+     * Same as {@link #create()}, measured under the given component tag when metrics are on.
+     * Instances of the same component share their meters.
+     */
+    public ConcurrencyStrategy createFor(String component) {
+        return instrument(create(), component, type);
+    }
+
+    public ConcurrencyStrategy createForH2(String component) {
+        return instrument(createForH2(), component, h2Type);
+    }
+
+    private ConcurrencyStrategy instrument(ConcurrencyStrategy strategy, String component, String strategyType) {
+        if (meterRegistry == null)
+            return strategy;
+        return new InstrumentedStrategy(strategy, meterRegistry, component, strategyType);
+    }
+
+    public static ConcurrencyStrategy create(String type) {
+        switch (type) {
+            case SYNCHRONIZED:
+                return new SynchronizedStrategy();
+            case READ_WRITE:
+                return new ReadWriteLockStrategy();
+            case STAMPED:
+                return new StampedLockStrategy();
+            case COPY_ON_WRITE:
+                return new CopyOnWriteStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown concurrency type: " + type);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Single writer, many readers. Readers never wait, they read the immutable snapshot
+ * the last writer published, so writers pay for building it.
+ */
+public class CopyOnWriteStrategy implements ConcurrencyStrategy {
+    private final Lock writeLock = new ReentrantLock();
+
+    @Override
+    public <T> T read(Supplier<T> reader) {
+        return reader.get();
+    }
+
+    @Override
+    public <T> T write(Supplier<T> writer) {
+        writeLock.lock();
+        try {
+            return writer.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean snapshotReads() {
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures the contention of another strategy:
+ * <ul>
+ *     <li>widgets.lock.reads and widgets.lock.read.retries: reads, and reads whose reader had to run again
+ *     (stamped: the optimistic read failed validation), their ratio is the failure rate</li>
+ *     <li>widgets.lock.write.wait: time from asking for the write lock to the writer starting</li>
+ * </ul>
+ * A stamped read finding the write lock already held goes to the read lock without a first optimistic run,
+ * so it waits without being counted as a retry.
+ */
+public class InstrumentedStrategy implements ConcurrencyStrategy {
+    private final ConcurrencyStrategy delegate;
+    private final Counter reads;
+    private final Counter readRetries;
+    private final Timer writeWait;
+
+    public InstrumentedStrategy(ConcurrencyStrategy delegate, MeterRegistry registry, String component, String type) {
+        Tags tags = Tags.of("component", component, "type", type);
+        this.delegate = delegate;
+        reads = registry.counter("widgets.lock.reads", tags);
+        readRetries = registry.counter("widgets.lock.read.retries", tags);
+        writeWait = Timer.builder("widgets.lock.write.wait")
+                .tags(tags)
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+    }
+
+    @Override
+    public <T> T read(Supplier<T> reader) {
+        reads.increment();
+        boolean[] ran = new boolean[1];
+        return delegate.read(() -> {
+            if (ran[0])
+                readRetries.increment();
+            ran[0] = true;
+            return reader.get();
+        });
+    }
+
+    //Runs once, never a retry
+    @Override
+    public <T> T readLocked(Supplier<T> reader) {
+        reads.increment();
+        return delegate.readLocked(reader);
+    }
+
+    @Override
+    public <T> T write(Supplier<T> writer) {
+        long asked = System.nanoTime();
+        boolean[] started = new boolean[1];
+        return delegate.write(() -> {
+            //Transactional writes may run again, only the wait for the first run counts
+            if (!started[0]) {
+                writeWait.record(System.nanoTime() - asked, TimeUnit.NANOSECONDS);
+                started[0] = true;
+            }
+            return writer.get();
+        });
+    }
+
+    @Override
+    public boolean snapshotReads() {
+        return delegate.snapshotReads();
+    }
+
+    @Override
+    public boolean exclusive() {
+        return delegate.exclusive();
+    }
+
+    public ConcurrencyStrategy getDelegate() {
+        return delegate;
+    }
+}
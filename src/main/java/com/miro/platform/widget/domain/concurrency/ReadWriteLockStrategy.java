@@ -0,0 +1,32 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Readers run in parallel, non fair so writers can starve under heavy reading
+ */
+public class ReadWriteLockStrategy implements ConcurrencyStrategy {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Override
+    public <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public <T> T write(Supplier<T> writer) {
+        lock.writeLock().lock();
+        try {
+            return writer.get();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/**
+ * Readers first run optimistically without locking and only take the read lock
+ * if a writer got in meanwhile.
+ */
+public class StampedLockStrategy implements ConcurrencyStrategy {
+    private final StampedLock stampedLock = new StampedLock();
+
+    @Override
+    public <T> T read(Supplier<T> reader) {
+        long stamp = stampedLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = reader.get();
+                if (stampedLock.validate(stamp))
+                    return result;
+            } catch (RuntimeException e) {
+                //Reader may trip over a half done write, only a real failure if nothing was written
+                if (stampedLock.validate(stamp))
+                    throw e;
+            }
+        }
+
+        return readLocked(reader);
+    }
+
+    @Override
+    public <T> T readLocked(Supplier<T> reader) {
+        long stamp = stampedLock.readLock();
+        try {
+            return reader.get();
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public <T> T write(Supplier<T> writer) {
+        long stamp = stampedLock.writeLock();
+        try {
+            return writer.get();
+        } finally {
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+}
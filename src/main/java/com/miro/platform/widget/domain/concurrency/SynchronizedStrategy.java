@@ -0,0 +1,19 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import java.util.function.Supplier;
+
+/**
+ * One monitor for readers and writers, simplest and cheapest when there's little contention
+ */
+public class SynchronizedStrategy implements ConcurrencyStrategy {
+
+    @Override
+    public synchronized <T> T read(Supplier<T> reader) {
+        return reader.get();
+    }
+
+    @Override
+    public synchronized <T> T write(Supplier<T> writer) {
+        return writer.get();
+    }
+}
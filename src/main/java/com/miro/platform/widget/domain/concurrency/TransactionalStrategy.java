@@ -0,0 +1,89 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import com.miro.platform.widget.domain.Widget;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * No JVM lock at all, every call is a database transaction, so several instances can share the database.
+ * Readers run in a read only transaction. Writers that lose a race (stale version, row lock conflict
+ * or a zIndex taken meanwhile by another writer) are rolled back and run again from scratch,
+ * so writers must not keep state from a failed run. Other failures, integrity violations included,
+ * would fail the same way again and are thrown right away.
+ */
+public class TransactionalStrategy implements ConcurrencyStrategy {
+    static final int MAX_ATTEMPTS = 10;
+    private static final long MAX_BACK_OFF_MILLIS = 64;
+    private final TransactionTemplate readTemplate;
+    private final TransactionTemplate writeTemplate;
+    private static final Logger logger = LoggerFactory.getLogger(TransactionalStrategy.class);
+
+    public TransactionalStrategy(PlatformTransactionManager transactionManager) {
+        readTemplate = new TransactionTemplate(transactionManager);
+        readTemplate.setReadOnly(true);
+        writeTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    @Override
+    public <T> T read(Supplier<T> reader) {
+        return readTemplate.execute(status -> reader.get());
+    }
+
+    @Override
+    public <T> T write(Supplier<T> writer) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return writeTemplate.execute(status -> writer.get());
+            } catch (ConcurrencyFailureException | DataIntegrityViolationException e) {
+                if (!isConflict(e) || attempt == MAX_ATTEMPTS)
+                    throw e;
+                logger.debug("Write conflict on attempt {}, retrying", attempt, e);
+                backOff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Failures a new run may not hit: lost races on versions or locks, and the zIndex unique constraint,
+     * violated when another writer took the zIndex after this one read the board.
+     * A duplicate id or a missing column isn't a race.
+     */
+    public static boolean isConflict(RuntimeException e) {
+        if (e instanceof ConcurrencyFailureException)
+            return true;
+        if (!(e instanceof DataIntegrityViolationException) || e instanceof DuplicateKeyException)
+            return false;
+        //Databases report the constraint in their own words, the name is in one of the messages
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (message != null && message.toUpperCase(Locale.ROOT).contains(Widget.ZINDEX_CONSTRAINT))
+                return true;
+        }
+        return false;
+    }
+
+    //Other instances write to the same database
+    @Override
+    public boolean exclusive() {
+        return false;
+    }
+
+    //Random wait growing with attempts, so conflicting writers don't retry in lockstep
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(Math.min(1L << attempt, MAX_BACK_OFF_MILLIS)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while retrying a write", e);
+        }
+    }
+}
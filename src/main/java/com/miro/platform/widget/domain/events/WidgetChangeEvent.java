@@ -0,0 +1,138 @@
+package com.miro.platform.widget.domain.events;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.miro.platform.widget.domain.WidgetRecord;
+
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A change applied to the widgets, in the order it was applied.
+ * Clients apply add and update as "put this widget" (they're idempotent), remove as "drop this id",
+ * and shift as "every zIndex in [from, to) moves up by" (to is null when unbounded), so shifting
+ * a whole board is one event. Resync means some changes were dropped and the widgets must be read again.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class WidgetChangeEvent {
+    public enum Type {
+        ADD,
+        UPDATE,
+        REMOVE,
+        SHIFT,
+        RESYNC;
+
+        @JsonValue
+        public String toJson() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final Type type;
+    private final Long id;
+    private final WidgetRecord widget;
+    private final Long from;
+    private final Long to;
+    private final Long by;
+
+    private WidgetChangeEvent(Type type, Long id, WidgetRecord widget, Long from, Long to, Long by) {
+        this.type = type;
+        this.id = id;
+        this.widget = widget;
+        this.from = from;
+        this.to = to;
+        this.by = by;
+    }
+
+    public static WidgetChangeEvent added(WidgetRecord widget) {
+        return new WidgetChangeEvent(Type.ADD, widget.getId(), widget, null, null, null);
+    }
+
+    public static WidgetChangeEvent updated(WidgetRecord widget) {
+        return new WidgetChangeEvent(Type.UPDATE, widget.getId(), widget, null, null, null);
+    }
+
+    public static WidgetChangeEvent removed(long id) {
+        return new WidgetChangeEvent(Type.REMOVE, id, null, null, null, null);
+    }
+
+    /**
+     * Every zIndex >= from moved up by one
+     */
+    public static WidgetChangeEvent shifted(long from) {
+        return shifted(from, null, 1);
+    }
+
+    /**
+     * Every zIndex in [from, to) moved up by, to is null when unbounded
+     */
+    public static WidgetChangeEvent shifted(long from, Long to, long by) {
+        return new WidgetChangeEvent(Type.SHIFT, null, null, from, to, by);
+    }
+
+    public static WidgetChangeEvent resync() {
+        return new WidgetChangeEvent(Type.RESYNC, null, null, null, null, null);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public WidgetRecord getWidget() {
+        return widget;
+    }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public Long getTo() {
+        return to;
+    }
+
+    public Long getBy() {
+        return by;
+    }
+
+    /**
+     * Same range shifted again, so both can be sent as one
+     */
+    boolean isSameRange(WidgetChangeEvent event) {
+        return type == Type.SHIFT && event.type == Type.SHIFT &&
+                from.equals(event.from) && Objects.equals(to, event.to);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WidgetChangeEvent that = (WidgetChangeEvent) o;
+        return type == that.type &&
+                Objects.equals(id, that.id) &&
+                Objects.equals(widget, that.widget) &&
+                Objects.equals(from, that.from) &&
+                Objects.equals(to, that.to) &&
+                Objects.equals(by, that.by);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, id, widget, from, to, by);
+    }
+
+    @Override
+    public String toString() {
+        return "WidgetChangeEvent{" +
+                "type=" + type +
+                ", id=" + id +
+                ", widget=" + widget +
+                ", from=" + from +
+                ", to=" + to +
+                ", by=" + by +
+                '}';
+    }
+}
@@ -0,0 +1,172 @@
+package com.miro.platform.widget.domain.events;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fans the changes of the selected service out to subscribers (e.g. SSE clients).
+ * Writers only queue the changes in every subscriber's buffer, delivery happens on a separate thread per
+ * busy subscriber, so a slow client never holds a writer. While queued, changes coalesce (see {@link WidgetChangeQueue})
+ * and a buffer still overflowing is replaced by a single resync.
+ * Every batch comes with the version of its last write, so a client can reconnect from it (see {@link #subscribeHeld}).
+ */
+@Component
+public class WidgetChangeFeed implements WidgetChangeListener {
+    private final int bufferSize;
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final ExecutorService deliveries;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetChangeFeed.class);
+
+    @Autowired
+    public WidgetChangeFeed(@Value("${feed.client-buffer:1024}") int bufferSize) {
+        if (bufferSize < 1)
+            throw new IllegalArgumentException("Feed buffer size must be positive");
+        this.bufferSize = bufferSize;
+        AtomicInteger threads = new AtomicInteger();
+        this.deliveries = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "widget-change-feed-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sink gets the changes in order, in batches of whatever was queued meanwhile,
+     * with the version of the last write of the batch. A sink throwing ends the subscription.
+     */
+    public Subscription subscribe(WidgetChangeListener sink) {
+        Subscription subscription = subscribeHeld(sink);
+        subscription.resume();
+        return subscription;
+    }
+
+    /**
+     * Same, but the writes are held until {@link Subscription#resumeAfter} so the sink can first be caught up
+     * from a version it already has: subscribe held, read the changes since that version, send them, then resume
+     * after the version read. Writes held meanwhile that the read already covered are dropped, none is missed.
+     */
+    public Subscription subscribeHeld(WidgetChangeListener sink) {
+        Subscription subscription = new Subscription(sink);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    public int subscriberCount() {
+        return subscriptions.size();
+    }
+
+    @Override
+    public void onChanges(long version, List<WidgetChangeEvent> events) {
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(version, events);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        subscriptions.forEach(Subscription::close);
+        deliveries.shutdownNow();
+    }
+
+    public final class Subscription implements AutoCloseable {
+        private final WidgetChangeListener sink;
+        private final WidgetChangeQueue pending = new WidgetChangeQueue();
+        //Version of the last write queued
+        private long pendingVersion;
+        //Writes as offered until resumed, they can't be told apart once coalesced
+        private List<HeldWrite> held = new ArrayList<>();
+        private boolean delivering;
+        private volatile boolean closed;
+
+        private Subscription(WidgetChangeListener sink) {
+            this.sink = sink;
+        }
+
+        public void resume() {
+            resumeAfter(Long.MIN_VALUE);
+        }
+
+        /**
+         * Queues the held writes stamped after the version, then every write as it comes.
+         * Writes without a version (0) are always kept.
+         */
+        public synchronized void resumeAfter(long version) {
+            List<HeldWrite> writes = held;
+            if (writes == null)
+                throw new IllegalStateException("Subscription already resumed");
+            held = null;
+            for (HeldWrite write : writes) {
+                if (write.version == 0 || write.version > version)
+                    offer(write.version, write.events);
+            }
+        }
+
+        private synchronized void offer(long version, List<WidgetChangeEvent> events) {
+            if (closed)
+                return;
+            if (held != null) {
+                held.add(new HeldWrite(version, events));
+                return;
+            }
+            pending.addAll(events);
+            pendingVersion = version;
+            if (pending.size() > bufferSize) {
+                logger.debug("Change feed subscriber fell {} changes behind, sending a resync", pending.size());
+                pending.add(WidgetChangeEvent.resync());
+            }
+            if (!delivering && !pending.isEmpty()) {
+                delivering = true;
+                deliveries.execute(this::deliver);
+            }
+        }
+
+        private void deliver() {
+            while (true) {
+                List<WidgetChangeEvent> batch;
+                long version;
+                synchronized (this) {
+                    if (closed || pending.isEmpty()) {
+                        delivering = false;
+                        return;
+                    }
+                    batch = pending.drain();
+                    version = pendingVersion;
+                }
+                try {
+                    sink.onChanges(version, batch);
+                } catch (RuntimeException e) {
+                    logger.debug("Change feed subscriber failed, unsubscribing", e);
+                    close();
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+    }
+
+    private static final class HeldWrite {
+        private final long version;
+        private final List<WidgetChangeEvent> events;
+
+        private HeldWrite(long version, List<WidgetChangeEvent> events) {
+            this.version = version;
+            this.events = events;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.miro.platform.widget.domain.events;
+
+import java.util.List;
+
+/**
+ * Gets the changes of every write once applied, called by the writer while it still holds its write lock,
+ * so changes arrive in the order they were applied. Transactional writes call it once they committed instead.
+ * Must not block.
+ */
+@FunctionalInterface
+public interface WidgetChangeListener {
+    /**
+     * @param version board version stamped on the write (see {@link WidgetChangeLog}), 0 when the board has none
+     */
+    void onChanges(long version, List<WidgetChangeEvent> events);
+}
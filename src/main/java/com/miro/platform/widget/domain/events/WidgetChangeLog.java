@@ -0,0 +1,61 @@
+package com.miro.platform.widget.domain.events;
+
+import java.util.List;
+
+/**
+ * Board version and a ring of the changes of the last writes, so clients can catch up from the version they have.
+ * Every write stamps one version. Versions of a run start above the ones of any earlier run (the start time shifted
+ * left, room for 1024 writes per millisecond on average), so a version from before a restart gets a resync, not wrong
+ * changes. That stays below 2^53, so JavaScript clients read versions exactly.
+ */
+public class WidgetChangeLog {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final List<WidgetChangeEvent>[] writes;
+    private final long firstVersion;
+    private long version;
+
+    @SuppressWarnings("unchecked")
+    public WidgetChangeLog(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Change log capacity must be positive");
+        writes = new List[capacity];
+        firstVersion = System.currentTimeMillis() << 10;
+        version = firstVersion;
+    }
+
+    /**
+     * @return version stamped on the write
+     */
+    public synchronized long append(List<WidgetChangeEvent> events) {
+        version++;
+        writes[index(version)] = events;
+        return version;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Changes of the writes after the given version up to the current one, coalesced.
+     * Null when they aren't all kept (too old, unknown or a write that needs a resync anyway).
+     */
+    public synchronized WidgetChanges since(long since) {
+        if (since < firstVersion || since > version || version - since > writes.length)
+            return null;
+
+        WidgetChangeQueue changes = new WidgetChangeQueue();
+        for (long v = since + 1; v <= version; v++) {
+            changes.addAll(writes[index(v)]);
+        }
+        List<WidgetChangeEvent> events = changes.drain();
+        if (events.size() == 1 && events.get(0).getType() == WidgetChangeEvent.Type.RESYNC)
+            return null;
+        return WidgetChanges.of(version, events);
+    }
+
+    private int index(long version) {
+        return (int) Math.floorMod(version, (long) writes.length);
+    }
+}
@@ -0,0 +1,69 @@
+package com.miro.platform.widget.domain.events;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Changes waiting to be sent, coalesced so applying them still gives the same widgets:
+ * a newer change of a widget replaces the queued one (and moves after the shifts it already includes),
+ * consecutive shifts of the same range add up, and a resync replaces everything and keeps the queue at that.
+ * Not thread safe.
+ */
+class WidgetChangeQueue {
+    //Key of a resync, it replaces everything queued
+    private static final Object RESYNC_KEY = new Object();
+    //Widget changes keyed by id, shifts by a key of their own, in the order they have to be applied
+    private final Map<Object, WidgetChangeEvent> pending = new LinkedHashMap<>();
+    //Key of the last queued change, a shift of the same range is merged into it
+    private Object lastKey;
+
+    void add(WidgetChangeEvent event) {
+        //Reading the widgets again after the resync already shows these changes
+        if (pending.containsKey(RESYNC_KEY))
+            return;
+        switch (event.getType()) {
+            case RESYNC:
+                pending.clear();
+                lastKey = RESYNC_KEY;
+                break;
+            case SHIFT:
+                WidgetChangeEvent last = lastKey == null ? null : pending.get(lastKey);
+                if (last != null && last.isSameRange(event)) {
+                    event = WidgetChangeEvent.shifted(last.getFrom(), last.getTo(), last.getBy() + event.getBy());
+                } else {
+                    lastKey = new Object();
+                }
+                break;
+            default:
+                WidgetChangeEvent previous = pending.remove(event.getId());
+                if (previous != null && previous.getType() == WidgetChangeEvent.Type.ADD &&
+                        event.getType() == WidgetChangeEvent.Type.UPDATE)
+                    event = WidgetChangeEvent.added(event.getWidget());
+                lastKey = event.getId();
+        }
+        pending.put(lastKey, event);
+    }
+
+    void addAll(List<WidgetChangeEvent> events) {
+        for (WidgetChangeEvent event : events) {
+            add(event);
+        }
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    List<WidgetChangeEvent> drain() {
+        List<WidgetChangeEvent> events = new ArrayList<>(pending.values());
+        pending.clear();
+        lastKey = null;
+        return events;
+    }
+}
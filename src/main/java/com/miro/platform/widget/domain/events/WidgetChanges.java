@@ -0,0 +1,53 @@
+package com.miro.platform.widget.domain.events;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.miro.platform.widget.domain.WidgetRecord;
+
+import java.util.List;
+
+/**
+ * Answer to "what changed since version V": the changes (coalesced, every widget at most once), or when they
+ * aren't kept anymore a resync with all widgets. Either way applying it brings the client to the given version.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public final class WidgetChanges {
+    private final long version;
+    private final List<WidgetChangeEvent> changes;
+    private final List<WidgetRecord> widgets;
+
+    private WidgetChanges(long version, List<WidgetChangeEvent> changes, List<WidgetRecord> widgets) {
+        this.version = version;
+        this.changes = changes;
+        this.widgets = widgets;
+    }
+
+    public static WidgetChanges of(long version, List<WidgetChangeEvent> changes) {
+        return new WidgetChanges(version, changes, null);
+    }
+
+    public static WidgetChanges resync(long version, List<WidgetRecord> widgets) {
+        return new WidgetChanges(version, null, widgets);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isResync() {
+        return widgets != null;
+    }
+
+    /**
+     * Null on a resync
+     */
+    public List<WidgetChangeEvent> getChanges() {
+        return changes;
+    }
+
+    /**
+     * All widgets sorted by zIndex on a resync, null otherwise
+     */
+    public List<WidgetRecord> getWidgets() {
+        return widgets;
+    }
+}
@@ -0,0 +1,48 @@
+package com.miro.platform.widget.domain.persistence;
+
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+
+/**
+ * One applied write as it's logged: the resulting widget of an add or update, only the id of a remove.
+ * Replaying the entries in order on the state they were applied to gives back the same widgets,
+ * shifts included, so the shifted widgets themselves are never logged.
+ */
+public final class WidgetLogEntry {
+    private final WidgetCommand.Type type;
+    private final long id;
+    private final WidgetRecord widget;
+
+    private WidgetLogEntry(WidgetCommand.Type type, long id, WidgetRecord widget) {
+        this.type = type;
+        this.id = id;
+        this.widget = widget;
+    }
+
+    public static WidgetLogEntry add(WidgetRecord widget) {
+        return new WidgetLogEntry(WidgetCommand.Type.ADD, widget.getId(), widget);
+    }
+
+    public static WidgetLogEntry update(WidgetRecord widget) {
+        return new WidgetLogEntry(WidgetCommand.Type.UPDATE, widget.getId(), widget);
+    }
+
+    public static WidgetLogEntry remove(long id) {
+        return new WidgetLogEntry(WidgetCommand.Type.REMOVE, id, null);
+    }
+
+    public WidgetCommand.Type getType() {
+        return type;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Null for removes
+     */
+    public WidgetRecord getWidget() {
+        return widget;
+    }
+}
@@ -0,0 +1,452 @@
+package com.miro.platform.widget.domain.persistence;
+
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Durable copy of a board in a directory: a write-ahead log of the applied writes and a snapshot of all widgets.
+ * <ul>
+ * <li>wal-[sequence of first entry].log: entries of [crc int][type byte][sequence long][id long],
+ * followed for adds and updates by x, y, width, height, zIndex and lastUpdate longs. crc covers the rest of the entry.</li>
+ * <li>widgets.snapshot: [magic int][format int][sequence long][max id long][count long], count widgets of 7 longs
+ * sorted by zIndex, then the crc of everything before it as a long.
+ * It has every entry up to its sequence, older log segments are deleted once it's written.</li>
+ * </ul>
+ * Appends and snapshots are called by the repo's writers under their write lock. Logging is forced to disk on every
+ * append, or every fsyncIntervalMillis by a background thread (writes acknowledged meanwhile may be lost on a crash).
+ * Once an append fails, all the next ones fail, as the log wouldn't match the widgets in memory anymore.
+ */
+public class WidgetStore implements Closeable {
+    private static final String SNAPSHOT = "widgets.snapshot";
+    private static final String SNAPSHOT_TMP = "widgets.snapshot.tmp";
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SNAPSHOT_MAGIC = 0x57444753;
+    private static final int SNAPSHOT_FORMAT = 1;
+    private static final int SNAPSHOT_HEADER = 2 * Integer.BYTES + 3 * Long.BYTES;
+    private static final int WIDGET_BYTES = 7 * Long.BYTES;
+    //Whole widgets per mapped window, a single mapping can't exceed 2GB
+    private static final int WINDOW_WIDGETS = (1 << 30) / WIDGET_BYTES;
+    private static final byte ADD = 1;
+    private static final byte UPDATE = 2;
+    private static final byte REMOVE = 3;
+    private static final int REMOVE_ENTRY = Integer.BYTES + 1 + 2 * Long.BYTES;
+    private static final int WRITE_ENTRY = REMOVE_ENTRY + 6 * Long.BYTES;
+
+    private final Path dir;
+    private final int snapshotEvery;
+    //Null when forcing on every append
+    private final ScheduledExecutorService flusher;
+    private final ExecutorService snapshotWriter;
+    private FileChannel segment;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * WRITE_ENTRY);
+    private long nextSequence = 1;
+    private long maxId = -1;
+    private int sinceSnapshot;
+    private boolean dirty;
+    private Future<?> pendingSnapshot;
+    private IOException failure;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetStore.class);
+
+    public WidgetStore(Path dir, long fsyncIntervalMillis, int snapshotEvery) {
+        if (fsyncIntervalMillis < 0 || snapshotEvery < 1)
+            throw new IllegalArgumentException("fsync interval can't be negative and snapshots need at least one entry");
+        this.dir = dir;
+        this.snapshotEvery = snapshotEvery;
+        snapshotWriter = Executors.newSingleThreadExecutor(runnable -> daemon(runnable, "widget-snapshot-writer"));
+        if (fsyncIntervalMillis == 0) {
+            flusher = null;
+        } else {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "widget-log-flusher"));
+            flusher.scheduleWithFixedDelay(this::flush, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Stored widgets and log entries written after them, to be replayed in order
+     */
+    public static final class Recovery {
+        private final List<WidgetRecord> widgets;
+        private final List<WidgetLogEntry> tail;
+        private final long maxId;
+
+        private Recovery(List<WidgetRecord> widgets, List<WidgetLogEntry> tail, long maxId) {
+            this.widgets = widgets;
+            this.tail = tail;
+            this.maxId = maxId;
+        }
+
+        /**
+         * Sorted by zIndex
+         */
+        public List<WidgetRecord> getWidgets() {
+            return widgets;
+        }
+
+        public List<WidgetLogEntry> getTail() {
+            return tail;
+        }
+
+        /**
+         * Highest id ever logged, removed widgets included, -1 if none
+         */
+        public long getMaxId() {
+            return maxId;
+        }
+    }
+
+    /**
+     * Reads the snapshot and the log, drops a torn entry at the end of the log (crash while appending)
+     * and opens a new log segment. Any other damaged entry fails with IllegalStateException rather than losing
+     * the writes after it. Must be called once, before any append.
+     */
+    public synchronized Recovery recover() {
+        try {
+            Files.createDirectories(dir);
+            ArrayList<WidgetRecord> widgets = new ArrayList<>();
+            long sequence = readSnapshot(widgets);
+            List<WidgetLogEntry> tail = new ArrayList<>();
+            List<Path> segments = segments();
+            for (int i = 0; i < segments.size(); i++) {
+                sequence = readSegment(segments.get(i), i == segments.size() - 1, sequence, tail);
+            }
+            nextSequence = sequence + 1;
+            sinceSnapshot = tail.size();
+            openSegment();
+            return new Recovery(widgets, tail, maxId);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't read stored widgets from " + dir, e);
+        }
+    }
+
+    /**
+     * Entries of a write, in the order they were applied. Returns once they are written
+     * (and forced to disk unless fsync is batched).
+     */
+    public synchronized void append(List<WidgetLogEntry> entries) {
+        if (failure != null)
+            throw new IllegalStateException("Write-ahead log failed before, no more writes are accepted", failure);
+        try {
+            if (buffer.capacity() < entries.size() * WRITE_ENTRY)
+                buffer = ByteBuffer.allocate(entries.size() * WRITE_ENTRY);
+            buffer.clear();
+            for (WidgetLogEntry entry : entries) {
+                putEntry(entry, nextSequence++);
+                maxId = Math.max(maxId, entry.getId());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                segment.write(buffer);
+            }
+            if (flusher == null)
+                segment.force(false);
+            else
+                dirty = true;
+            sinceSnapshot += entries.size();
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Write-ahead log failed, no more writes are accepted", e);
+        }
+    }
+
+    /**
+     * True once enough entries were logged since the last snapshot and no snapshot is being written
+     */
+    public synchronized boolean snapshotDue() {
+        return failure == null && sinceSnapshot >= snapshotEvery && (pendingSnapshot == null || pendingSnapshot.isDone());
+    }
+
+    /**
+     * Widgets must be an immutable list matching exactly everything appended so far.
+     * The log moves on to a new segment right away, the snapshot is written in the background
+     * and the older segments are deleted once it's safely on disk.
+     */
+    public synchronized void snapshot(List<WidgetRecord> widgets) {
+        long sequence = nextSequence - 1;
+        long snapshotMaxId = maxId;
+        try {
+            closeSegment();
+            openSegment();
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException("Write-ahead log failed, no more writes are accepted", e);
+        }
+        sinceSnapshot = 0;
+        pendingSnapshot = snapshotWriter.submit(() -> {
+            try {
+                writeSnapshot(widgets, sequence, snapshotMaxId);
+                for (Path path : segments()) {
+                    if (segmentStart(path) <= sequence)
+                        Files.delete(path);
+                }
+            } catch (IOException e) {
+                //Older segments are kept, so nothing is lost, next snapshot tries again
+                logger.error("Failed writing snapshot of widgets up to entry {}", sequence, e);
+            }
+        });
+    }
+
+    private synchronized void flush() {
+        if (!dirty || failure != null)
+            return;
+        try {
+            segment.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            failure = e;
+            logger.error("Failed forcing write-ahead log to disk, no more writes are accepted", e);
+        }
+    }
+
+    /**
+     * Forces the log and waits for a snapshot being written
+     */
+    @Override
+    public void close() {
+        if (flusher != null)
+            flusher.shutdownNow();
+        snapshotWriter.shutdown();
+        try {
+            snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                if (segment != null)
+                    closeSegment();
+            } catch (IOException e) {
+                logger.error("Failed closing write-ahead log", e);
+            }
+        }
+    }
+
+    private void openSegment() throws IOException {
+        //A segment already starting here can only hold a torn entry
+        segment = FileChannel.open(dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSequence, SEGMENT_SUFFIX)),
+                CREATE, WRITE, TRUNCATE_EXISTING);
+    }
+
+    private void closeSegment() throws IOException {
+        segment.force(false);
+        dirty = false;
+        segment.close();
+        segment = null;
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            //Zero padded, so name order is sequence order
+            return files.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX) &&
+                    path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long segmentStart(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private void putEntry(WidgetLogEntry entry, long sequence) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        WidgetRecord widget = entry.getWidget();
+        switch (entry.getType()) {
+            case ADD:
+                buffer.put(ADD);
+                break;
+            case UPDATE:
+                buffer.put(UPDATE);
+                break;
+            default:
+                buffer.put(REMOVE);
+        }
+        buffer.putLong(sequence);
+        buffer.putLong(entry.getId());
+        if (widget != null) {
+            buffer.putLong(widget.getX());
+            buffer.putLong(widget.getY());
+            buffer.putLong(widget.getWidth());
+            buffer.putLong(widget.getHeight());
+            buffer.putLong(widget.getzIndex());
+            buffer.putLong(widget.getLastUpdateMillis());
+        }
+        buffer.putInt(start, crc(buffer, start + Integer.BYTES, buffer.position()));
+    }
+
+    private static int crc(ByteBuffer buffer, int from, int to) {
+        CRC32 crc = new CRC32();
+        ByteBuffer range = buffer.duplicate();
+        range.limit(to).position(from);
+        crc.update(range);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * @return sequence of the last entry read or skipped
+     */
+    private long readSegment(Path path, boolean last, long sequence, List<WidgetLogEntry> tail) throws IOException {
+        ByteBuffer entries;
+        //Read to the heap rather than mapped, a torn end is truncated below and a file can't shrink under a live mapping
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            entries = ByteBuffer.allocate(Math.toIntExact(channel.size()));
+            while (entries.hasRemaining()) {
+                if (channel.read(entries) < 0)
+                    break;
+            }
+            entries.flip();
+        }
+        int valid = 0;
+        while (entries.remaining() >= REMOVE_ENTRY) {
+            int start = entries.position();
+            int crc = entries.getInt();
+            byte type = entries.get();
+            int length = type == REMOVE ? REMOVE_ENTRY : WRITE_ENTRY;
+            if ((type != ADD && type != UPDATE && type != REMOVE) || start + length > entries.limit()
+                    || crc != crc(entries, start + Integer.BYTES, start + length))
+                break;
+
+            long entrySequence = entries.getLong();
+            long id = entries.getLong();
+            WidgetLogEntry entry;
+            if (type == REMOVE) {
+                entry = WidgetLogEntry.remove(id);
+            } else {
+                WidgetRecord widget = new WidgetRecord(id, entries.getLong(), entries.getLong(), entries.getLong(),
+                        entries.getLong(), entries.getLong(), entries.getLong());
+                entry = type == ADD ? WidgetLogEntry.add(widget) : WidgetLogEntry.update(widget);
+            }
+            valid = entries.position();
+            maxId = Math.max(maxId, id);
+            //Already in the snapshot
+            if (entrySequence <= sequence)
+                continue;
+            if (entrySequence != sequence + 1)
+                throw new IllegalStateException("Write-ahead log misses entries " + (sequence + 1) + " to " + (entrySequence - 1));
+            tail.add(entry);
+            sequence = entrySequence;
+        }
+
+        int remaining = entries.limit() - valid;
+        if (remaining > 0) {
+            //A crash while appending leaves a prefix of the entry being written, shorter than the entry,
+            //and only at the very end of the log. A whole entry failing its crc is damage, replaying past it would lose writes
+            byte type = remaining > Integer.BYTES ? entries.get(valid + Integer.BYTES) : 0;
+            if (!last || remaining >= (type == ADD || type == UPDATE ? WRITE_ENTRY : REMOVE_ENTRY))
+                throw new IllegalStateException("Write-ahead log segment " + path + " is corrupted at byte " + valid);
+            logger.warn("Dropping {} bytes of incomplete entry at the end of {}", remaining, path);
+            try (FileChannel channel = FileChannel.open(path, WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * @return sequence of the last entry the snapshot has, 0 if there's no snapshot
+     */
+    private long readSnapshot(ArrayList<WidgetRecord> widgets) throws IOException {
+        Path path = dir.resolve(SNAPSHOT);
+        if (!Files.exists(path))
+            return 0;
+
+        try (FileChannel channel = FileChannel.open(path, READ)) {
+            if (channel.size() < SNAPSHOT_HEADER + Long.BYTES)
+                throw new IllegalStateException("Snapshot " + path + " is truncated");
+            CRC32 crc = new CRC32();
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, SNAPSHOT_HEADER);
+            crc.update(header.duplicate());
+            if (header.getInt() != SNAPSHOT_MAGIC || header.getInt() != SNAPSHOT_FORMAT)
+                throw new IllegalStateException(path + " is not a widgets snapshot");
+            long sequence = header.getLong();
+            maxId = Math.max(maxId, header.getLong());
+            long count = header.getLong();
+            if (count > Integer.MAX_VALUE || channel.size() != SNAPSHOT_HEADER + count * WIDGET_BYTES + Long.BYTES)
+                throw new IllegalStateException("Snapshot " + path + " is truncated");
+
+            widgets.ensureCapacity((int) count);
+            long position = SNAPSHOT_HEADER;
+            for (long remaining = count; remaining > 0; ) {
+                int window = (int) Math.min(remaining, WINDOW_WIDGETS);
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) window * WIDGET_BYTES);
+                crc.update(mapped.duplicate());
+                for (int i = 0; i < window; i++) {
+                    widgets.add(new WidgetRecord(mapped.getLong(), mapped.getLong(), mapped.getLong(), mapped.getLong(),
+                            mapped.getLong(), mapped.getLong(), mapped.getLong()));
+                }
+                position += (long) window * WIDGET_BYTES;
+                remaining -= window;
+            }
+            if (channel.map(FileChannel.MapMode.READ_ONLY, position, Long.BYTES).getLong() != crc.getValue())
+                throw new IllegalStateException("Snapshot " + path + " is corrupted");
+            return sequence;
+        }
+    }
+
+    /**
+     * Written next to the current one and then moved over it, so there's always a whole snapshot on disk
+     */
+    private void writeSnapshot(List<WidgetRecord> widgets, long sequence, long snapshotMaxId) throws IOException {
+        Path tmp = dir.resolve(SNAPSHOT_TMP);
+        CRC32 crc = new CRC32();
+        ByteBuffer out = ByteBuffer.allocateDirect(SNAPSHOT_HEADER + 4096 * WIDGET_BYTES);
+        try (FileChannel channel = FileChannel.open(tmp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            out.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_FORMAT).putLong(sequence).putLong(snapshotMaxId).putLong(widgets.size());
+            for (WidgetRecord widget : widgets) {
+                if (out.remaining() < WIDGET_BYTES)
+                    drain(out, channel, crc);
+                out.putLong(widget.getId())
+                        .putLong(widget.getX())
+                        .putLong(widget.getY())
+                        .putLong(widget.getWidth())
+                        .putLong(widget.getHeight())
+                        .putLong(widget.getzIndex())
+                        .putLong(widget.getLastUpdateMillis());
+            }
+            drain(out, channel, crc);
+            out.putLong(crc.getValue());
+            out.flip();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void drain(ByteBuffer out, FileChannel channel, CRC32 crc) throws IOException {
+        out.flip();
+        crc.update(out.duplicate());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+}
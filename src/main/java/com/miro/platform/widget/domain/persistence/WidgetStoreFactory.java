@@ -0,0 +1,53 @@
+package com.miro.platform.widget.domain.persistence;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+
+/**
+ * Opens the store configured by storage.persistence.* in application.properties, only used by the custom storage
+ * and by the boards of {@link com.miro.platform.widget.domain.service.WidgetBoardRegistry}
+ */
+@Component
+public class WidgetStoreFactory {
+    private final String dir;
+    private final long fsyncIntervalMillis;
+    private final int snapshotEvery;
+    private final boolean enabled;
+    private final boolean boardsEnabled;
+
+    @Autowired
+    public WidgetStoreFactory(@Value("${storage.persistence.dir:}") String dir,
+                              @Value("${storage.persistence.fsync-interval-ms:0}") long fsyncIntervalMillis,
+                              @Value("${storage.persistence.snapshot-every:100000}") int snapshotEvery,
+                              @Value("${storage.type}") String storageType) {
+        this.dir = dir;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.snapshotEvery = snapshotEvery;
+        //Other storages never touch the files
+        this.enabled = !dir.isBlank() && "custom".equals(storageType);
+        //Boards always use the custom storage
+        this.boardsEnabled = !dir.isBlank();
+    }
+
+    /**
+     * @return null when widgets are only kept in memory
+     */
+    public WidgetStore open() {
+        if (!enabled)
+            return null;
+        return new WidgetStore(Path.of(dir), fsyncIntervalMillis, snapshotEvery);
+    }
+
+    /**
+     * Store of one board in its own directory, boards/[boardId] under the configured one
+     * @return null when widgets are only kept in memory
+     */
+    public WidgetStore openBoard(String boardId) {
+        if (!boardsEnabled)
+            return null;
+        return new WidgetStore(Path.of(dir, "boards", boardId), fsyncIntervalMillis, snapshotEvery);
+    }
+}
@@ -0,0 +1,562 @@
+package com.miro.platform.widget.domain.repository;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import com.miro.platform.widget.domain.utils.LongIntHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Repository;
+
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In memory storage for very large boards keeping widgets as columns instead of objects.
+ * Every field is a primitive array indexed by slot, ids are mapped to slots through a primitive
+ * open addressing map and zIndexes are kept sorted in their own array (with the slot of each one),
+ * so whatever the number of widgets the heap only holds a dozen arrays for the GC to look at.
+ * WidgetRecords are only built for the widgets a read returns.
+ */
+@Repository("columnar")
+public class WidgetColumnarRepo implements WidgetRepo {
+    private static final int INITIAL_CAPACITY = 16;
+
+    //Widget fields by slot
+    private long[] ids;
+    private long[] xs;
+    private long[] ys;
+    private long[] widths;
+    private long[] heights;
+    private long[] zIndexes;
+    private long[] lastUpdates;
+    //Slots released by removes, reused before growing the columns
+    private int[] freeSlots;
+    private int freeCount;
+    private int usedSlots;
+
+    //zIndexes in ascending order and the slot holding each of them, first size entries are used
+    private long[] sortedZindexes;
+    private int[] sortedSlots;
+    private int size;
+
+    private final LongIntHashMap id2Slot;
+    private long foreground;
+    private final StampedLock stampedLock;
+    private final IdGenerator idGenerator;
+    //Gets the changes of every write, null when nobody listens
+    private volatile WidgetChangeListener changeListener;
+    //Changes of the write in progress
+    private final List<WidgetChangeEvent> changes = new ArrayList<>();
+    //Board version and changes of the last writes
+    private final WidgetChangeLog changeLog;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetColumnarRepo.class);
+
+    @Autowired
+    public WidgetColumnarRepo(IdGenerator idGenerator,
+                       @Value("${storage.changes.capacity:" + WidgetChangeLog.DEFAULT_CAPACITY + "}") int changesCapacity) {
+        this(idGenerator, new ArrayList<>(), changesCapacity);
+    }
+
+    public WidgetColumnarRepo(IdGenerator idGenerator) {
+        this(idGenerator, new ArrayList<>());
+    }
+
+    public WidgetColumnarRepo(IdGenerator idGenerator, List<Widget> toCopyList) {
+        this(idGenerator, toCopyList, WidgetChangeLog.DEFAULT_CAPACITY);
+    }
+
+    public WidgetColumnarRepo(IdGenerator idGenerator, List<Widget> toCopyList, int changesCapacity) {
+        this.idGenerator = idGenerator;
+        changeLog = new WidgetChangeLog(changesCapacity);
+        int capacity = Math.max(INITIAL_CAPACITY, toCopyList.size());
+        allocate(capacity);
+        id2Slot = new LongIntHashMap(capacity);
+        stampedLock = new StampedLock();
+        foreground = -1;
+        initFromList(toCopyList);
+    }
+
+    private void initFromList(List<Widget> toCopyList) {
+        Widget[] sortedList = toCopyList.toArray(new Widget[0]);
+        Arrays.parallelSort(sortedList);
+        for (Widget widget : sortedList) {
+            if (widget.getId() != null && id2Slot.containsKey(widget.getId()))
+                throw new IllegalStateException("List is initialized with non-unique ids");
+            if (size > 0 && sortedZindexes[size - 1] == widget.getzIndex())
+                throw new IllegalStateException("List is initialized with non-unique z-indexes");
+
+            Widget copy = copyInput(widget);
+            if (copy.getId() == null)
+                copy.setId(idGenerator.getNextId());
+
+            //Input is sorted, so every widget is appended at the end of the order
+            WidgetRecord record = WidgetRecord.from(copy);
+            insertAt(size, store(record));
+        }
+
+        if (size > 0)
+            foreground = sortedZindexes[size - 1];
+    }
+
+    //Stamped before the write lock is released, so a read locking after this sees at least this version
+    @Override
+    public OptionalLong getVersion() {
+        return OptionalLong.of(changeLog.getVersion());
+    }
+
+    @Override
+    public long getForeground() {
+        return foreground;
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        changeListener = listener;
+    }
+
+    //Called by writers before releasing the write lock, so changes keep their order and every write its version
+    private void emitChanges() {
+        if (!changes.isEmpty()) {
+            List<WidgetChangeEvent> events = List.copyOf(changes);
+            long version = changeLog.append(events);
+            if (changeListener != null)
+                changeListener.onChanges(version, events);
+        }
+        changes.clear();
+    }
+
+    /**
+     * Columns get reallocated when growing, so reads can't be validated optimistically. Normal read lock.
+     */
+    @Override
+    public List<WidgetRecord> findAllSorted() {
+        long stamp = stampedLock.readLock();
+        try {
+            return collect(0, size);
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Under the read lock so a resync and its version match
+     */
+    @Override
+    public WidgetChanges findChangesSince(long version) {
+        long stamp = stampedLock.readLock();
+        try {
+            WidgetChanges changes = changeLog.since(version);
+            return changes != null ? changes : WidgetChanges.resync(changeLog.getVersion(), collect(0, size));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    //The log is consistent on its own, no lock without a resync
+    @Override
+    public WidgetChanges findDeltaSince(long version) {
+        return changeLog.since(version);
+    }
+
+    @Override
+    public List<WidgetRecord> findPage(int page, int size) {
+        long stamp = stampedLock.readLock();
+        try {
+            long from = (long) (page - 1) * size;
+            if (from >= this.size)
+                return new ArrayList<>();
+            return collect((int) from, (int) Math.min(this.size, from + size));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        long stamp = stampedLock.readLock();
+        try {
+            int from = 0;
+            if (zIndex != null) {
+                int position = Arrays.binarySearch(sortedZindexes, 0, size, zIndex);
+                from = position >= 0 ? position + 1 : -position - 1;
+            }
+            return collect(from, (int) Math.min(size, (long) from + limit));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<WidgetRecord> findGreaterThanEqualZindex(Long zIndex) {
+        long stamp = stampedLock.readLock();
+        try {
+            int position = Arrays.binarySearch(sortedZindexes, 0, size, zIndex);
+            return collect(position >= 0 ? position : -position - 1, size);
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Optional<WidgetRecord> findById(Long id) {
+        long stamp = stampedLock.readLock();
+        try {
+            int slot = id2Slot.get(id);
+            if (slot == LongIntHashMap.NO_VALUE)
+                return Optional.empty();
+            return Optional.of(toRecord(slot));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Optional<WidgetRecord> findByZindex(Long zIndex) {
+        long stamp = stampedLock.readLock();
+        try {
+            int position = Arrays.binarySearch(sortedZindexes, 0, size, zIndex);
+            if (position < 0)
+                return Optional.empty();
+            return Optional.of(toRecord(sortedSlots[position]));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * No spatial index here, it would bring back an object per widget.
+     * Scanning the coordinate columns in zIndex order instead, the result comes out sorted.
+     */
+    @Override
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                int slot = sortedSlots[i];
+                if (xs[slot] >= area.getMinX() && ys[slot] >= area.getMinY() &&
+                        xs[slot] + widths[slot] <= area.getMaxX() && ys[slot] + heights[slot] <= area.getMaxY())
+                    result.add(toRecord(slot));
+            }
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Same scan over the columns, bounds of the widget are looked up first
+     */
+    @Override
+    public List<WidgetRecord> findOverlapping(Long id) {
+        long stamp = stampedLock.readLock();
+        try {
+            int target = id == null ? LongIntHashMap.NO_VALUE : id2Slot.get(id);
+            if (target == LongIntHashMap.NO_VALUE)
+                throw new ResourceNotFoundException("No widget with id: " + id);
+            long minX = xs[target];
+            long minY = ys[target];
+            long maxX = minX + widths[target];
+            long maxY = minY + heights[target];
+            List<WidgetRecord> result = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                int slot = sortedSlots[i];
+                if (slot != target && xs[slot] <= maxX && minX <= xs[slot] + widths[slot] &&
+                        ys[slot] <= maxY && minY <= ys[slot] + heights[slot])
+                    result.add(toRecord(slot));
+            }
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Same scan over the columns, from the top so the result comes out topmost first
+     */
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (int i = size - 1; i >= 0; i--) {
+                int slot = sortedSlots[i];
+                if (xs[slot] <= x && ys[slot] <= y && x <= xs[slot] + widths[slot] && y <= ys[slot] + heights[slot])
+                    result.add(toRecord(slot));
+            }
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetRecord record = internalAddWidget(copyInput(widget));
+            changes.add(WidgetChangeEvent.added(record));
+            return record;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public WidgetRecord updateWidget(Widget newWidget) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetRecord record = internalUpdateWidget(copyInput(newWidget));
+            changes.add(WidgetChangeEvent.updated(record));
+            return record;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeWidget(Long id) {
+        long stamp = stampedLock.writeLock();
+        try {
+            internalRemoveWidget(id);
+            changes.add(WidgetChangeEvent.removed(id));
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Whole batch under one write lock and one change log version, a failing command doesn't stop the next ones
+     */
+    @Override
+    public List<WidgetCommand.Result> applyBatch(List<WidgetCommand> commands) {
+        long stamp = stampedLock.writeLock();
+        try {
+            List<WidgetCommand.Result> results = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                try {
+                    results.add(WidgetCommand.Result.ok(internalApply(command)));
+                } catch (RuntimeException e) {
+                    results.add(WidgetCommand.Result.failed(e));
+                }
+            }
+            return results;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Validated as a whole first, so nothing gets applied if any command would fail
+     */
+    @Override
+    public List<WidgetRecord> applyAtomically(List<WidgetCommand> commands) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetCommand.validateAll(commands, id2Slot::containsKey);
+            List<WidgetRecord> widgets = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                widgets.add(internalApply(command));
+            }
+            return widgets;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    private WidgetRecord internalApply(WidgetCommand command) {
+        switch (command.getType()) {
+            case ADD:
+                WidgetRecord record = internalAddWidget(copyInput(command.getWidget()));
+                changes.add(WidgetChangeEvent.added(record));
+                return record;
+            case UPDATE:
+                record = internalUpdateWidget(copyInput(command.getWidget()));
+                changes.add(WidgetChangeEvent.updated(record));
+                return record;
+            default:
+                internalRemoveWidget(command.getId());
+                changes.add(WidgetChangeEvent.removed(command.getId()));
+                return null;
+        }
+    }
+
+    private WidgetRecord internalAddWidget(Widget widget) {
+        widget.validForOperationOrThrow();
+
+        if (widget.getId() != null && id2Slot.containsKey(widget.getId())) {
+            throw new DuplicateKeyException("Trying to insert duplicate Id");
+        }
+
+        if (widget.getId() == null) {
+            widget.setId(idGenerator.getNextId());
+        }
+
+        //Adding one to current foreground to bring the widget to the top
+        if (widget.getzIndex() == null) {
+            foreground++;
+            widget.setzIndex(foreground);
+        }
+
+        WidgetRecord record = WidgetRecord.from(widget, System.currentTimeMillis());
+        int position = Arrays.binarySearch(sortedZindexes, 0, size, record.getzIndex());
+        if (position >= 0) {
+            changes.add(WidgetChangeEvent.shifted(record.getzIndex()));
+            //Shifting all larger or equal zIndexes, both columns are walked sequentially
+            for (int i = position; i < size; i++) {
+                sortedZindexes[i]++;
+                zIndexes[sortedSlots[i]]++;
+            }
+        } else {
+            position = -position - 1;
+        }
+        insertAt(position, store(record));
+        foreground = Math.max(foreground, sortedZindexes[size - 1]);
+        return record;
+    }
+
+    private WidgetRecord internalUpdateWidget(Widget newWidget) {
+        newWidget.validForOperationOrThrow();
+
+        Long id = newWidget.getId();
+        int slot = id2Slot.get(id);
+        if (slot == LongIntHashMap.NO_VALUE)
+            throw new ResourceNotFoundException("No widget with id: " + id);
+
+        //Not changing zIndex, then overwrite the same slot
+        if (newWidget.getzIndex() != null && newWidget.getzIndex() == zIndexes[slot]) {
+            WidgetRecord updatedWidget = WidgetRecord.from(newWidget, System.currentTimeMillis());
+            write(slot, updatedWidget);
+            return updatedWidget;
+        } else {
+            internalRemoveWidget(id);
+            return internalAddWidget(newWidget);
+        }
+    }
+
+    private void internalRemoveWidget(Long id) {
+        int slot = id2Slot.remove(id);
+        if (slot == LongIntHashMap.NO_VALUE)
+            throw new ResourceNotFoundException("No widget with id: " + id);
+
+        int position = Arrays.binarySearch(sortedZindexes, 0, size, zIndexes[slot]);
+        //Removing top element
+        if (position == size - 1) {
+            //List will become empty after delete, reset foreground
+            foreground = position > 0 ? sortedZindexes[position - 1] : -1;
+        }
+        System.arraycopy(sortedZindexes, position + 1, sortedZindexes, position, size - position - 1);
+        System.arraycopy(sortedSlots, position + 1, sortedSlots, position, size - position - 1);
+        size--;
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Puts the widget in a free slot and maps its id, caller places the slot in the zIndex order
+     */
+    private int store(WidgetRecord record) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (usedSlots == ids.length)
+                grow(ids.length << 1);
+            slot = usedSlots++;
+        }
+        write(slot, record);
+        id2Slot.put(record.getId(), slot);
+        return slot;
+    }
+
+    private void write(int slot, WidgetRecord record) {
+        ids[slot] = record.getId();
+        xs[slot] = record.getX();
+        ys[slot] = record.getY();
+        widths[slot] = record.getWidth();
+        heights[slot] = record.getHeight();
+        zIndexes[slot] = record.getzIndex();
+        lastUpdates[slot] = record.getLastUpdateMillis();
+    }
+
+    private void insertAt(int position, int slot) {
+        System.arraycopy(sortedZindexes, position, sortedZindexes, position + 1, size - position);
+        System.arraycopy(sortedSlots, position, sortedSlots, position + 1, size - position);
+        sortedZindexes[position] = zIndexes[slot];
+        sortedSlots[position] = slot;
+        size++;
+    }
+
+    private WidgetRecord toRecord(int slot) {
+        return new WidgetRecord(ids[slot], xs[slot], ys[slot], widths[slot], heights[slot],
+                zIndexes[slot], lastUpdates[slot]);
+    }
+
+    /**
+     * Widgets of positions [from, to) in zIndex order
+     */
+    private List<WidgetRecord> collect(int from, int to) {
+        List<WidgetRecord> result = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            result.add(toRecord(sortedSlots[i]));
+        }
+        return result;
+    }
+
+    //Id and zIndex get assigned on the input, caller's widget must stay as is
+    private Widget copyInput(Widget widget) {
+        return Widget.Builder
+                .emptyWidget()
+                .withId(widget.getId())
+                .withZIndex(widget.getzIndex())
+                .withWidth(widget.getWidth())
+                .withHeight(widget.getHeight())
+                .withX(widget.getX())
+                .withY(widget.getY())
+                .withLastUpdate(widget.getLastUpdate())
+                .build();
+    }
+
+    private void allocate(int capacity) {
+        ids = new long[capacity];
+        xs = new long[capacity];
+        ys = new long[capacity];
+        widths = new long[capacity];
+        heights = new long[capacity];
+        zIndexes = new long[capacity];
+        lastUpdates = new long[capacity];
+        freeSlots = new int[capacity];
+        sortedZindexes = new long[capacity];
+        sortedSlots = new int[capacity];
+    }
+
+    //Only called when there are no free slots, so the number of widgets equals the old capacity
+    private void grow(int capacity) {
+        logger.debug("Growing columns to {} slots", capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        xs = Arrays.copyOf(xs, capacity);
+        ys = Arrays.copyOf(ys, capacity);
+        widths = Arrays.copyOf(widths, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        zIndexes = Arrays.copyOf(zIndexes, capacity);
+        lastUpdates = Arrays.copyOf(lastUpdates, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        sortedZindexes = Arrays.copyOf(sortedZindexes, capacity);
+        sortedSlots = Arrays.copyOf(sortedSlots, capacity);
+    }
+}
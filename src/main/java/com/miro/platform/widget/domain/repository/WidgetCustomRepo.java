@@ -1,63 +1,334 @@
 package com.miro.platform.widget.domain.repository;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategy;
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategyFactory;
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.events.WidgetChanges;
 import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import com.miro.platform.widget.domain.persistence.WidgetLogEntry;
+import com.miro.platform.widget.domain.persistence.WidgetStore;
+import com.miro.platform.widget.domain.persistence.WidgetStoreFactory;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import com.miro.platform.widget.domain.spatial.SpatialGridIndex;
+import com.miro.platform.widget.domain.utils.ChunkedList;
 import com.miro.platform.widget.domain.utils.IdGenerator;
+import com.miro.platform.widget.domain.utils.PersistentLongMap;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Repository;
 
-import java.time.LocalDateTime;
+import javax.annotation.PreDestroy;
 import java.util.*;
-import java.util.concurrent.locks.StampedLock;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 @Repository("custom")
 public class WidgetCustomRepo implements WidgetRepo {
-    private final Map<Long, Widget> id2Widget;
-    private final Map<Long, Widget> zIndex2Widget;
+    //Concurrent so point reads can go without the lock, see pointRead. With copyOnWrite too, so writes only copy the list
+    private final Map<Long, WidgetRecord> id2Widget;
+    private final Map<Long, WidgetRecord> zIndex2Widget;
+    //Seqlock of point reads: odd while a write is in progress, only changed under the write lock
+    private volatile long writeSequence;
+    //Widgets by position in the plane, for filtering by area
+    private final SpatialGridIndex<Long> spatialIndex;
     //Maintaining a sorted list so that no need to sort when findAll
-    private List<Widget> widgetList;
+    private List<WidgetRecord> widgetList;
+    //Immutable copy of widgetList published by writers, so list reads don't need locks nor copying.
+    //Chunks below the lowest index a write changed are shared with the previous one, so a write doesn't copy the list
+    private volatile ChunkedList<WidgetRecord> snapshot = ChunkedList.empty();
+    //Lowest index of widgetList changed since the last publication, MAX_VALUE when none
+    private int changedFrom;
+    //Widgets by id as of the snapshot, for snapshot reads only (null otherwise), and the same with the write in progress
+    private volatile PersistentLongMap<WidgetRecord> snapshotIds;
+    private PersistentLongMap<WidgetRecord> pendingIds;
+    //Published list with its board version, answer to clients too far behind the change log
+    private volatile WidgetChanges versionedSnapshot;
     private long foreground;
-    private final StampedLock stampedLock;
+    private final ConcurrencyStrategy concurrency;
     private final IdGenerator idGenerator;
+    //Write-ahead log and snapshots on disk, null when only kept in memory
+    private final WidgetStore store;
+    //Time given to written widgets, replaying the log sets it to the logged time
+    private LongSupplier clock = System::currentTimeMillis;
+    //Gets the changes of every write, null when nobody listens
+    private volatile WidgetChangeListener changeListener;
+    //Changes of the write in progress
+    private final List<WidgetChangeEvent> changes = new ArrayList<>();
+    //Board version and changes of the last writes
+    private final WidgetChangeLog changeLog;
+    //Widgets moved up by each add on a taken zIndex and point reads that had to wait, null until bindMetrics
+    private DistributionSummary shiftSize;
+    private Counter pointReadFallbacks;
+    //Lock free tries of a point read before it waits for the writer, or reads the snapshot
+    private static final int POINT_READ_ATTEMPTS = 8;
+    //Answer of pointRead when writes kept getting in the way, never stored
+    private static final WidgetRecord CONTENDED = new WidgetRecord(0, 0, 0, 0, 0, 0, 0);
     private static final Logger logger = LoggerFactory.getLogger(WidgetCustomRepo.class);
 
-    @Autowired
     public WidgetCustomRepo(IdGenerator idGenerator) {
         this(idGenerator, new ArrayList<>());
     }
 
+    @Autowired
+    public WidgetCustomRepo(IdGenerator idGenerator, ConcurrencyStrategyFactory concurrencyFactory,
+                            WidgetStoreFactory storeFactory,
+                            @Value("${storage.changes.capacity:" + WidgetChangeLog.DEFAULT_CAPACITY + "}") int changesCapacity) {
+        this(idGenerator, concurrencyFactory.createFor("customRepo"), storeFactory.open(), changesCapacity);
+    }
+
     public WidgetCustomRepo(IdGenerator idGenerator, List<Widget> toCopyList) {
+        this(idGenerator, toCopyList, new StampedLockStrategy());
+    }
+
+    public WidgetCustomRepo(IdGenerator idGenerator, List<Widget> toCopyList, ConcurrencyStrategy concurrency) {
+        this(idGenerator, concurrency, null, toCopyList, WidgetChangeLog.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Starts with the widgets of the store (if any), every write is then logged to it before returning
+     */
+    public WidgetCustomRepo(IdGenerator idGenerator, ConcurrencyStrategy concurrency, WidgetStore store) {
+        this(idGenerator, concurrency, store, WidgetChangeLog.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Same, keeping the changes of the last changesCapacity writes for findChangesSince
+     */
+    public WidgetCustomRepo(IdGenerator idGenerator, ConcurrencyStrategy concurrency, WidgetStore store,
+                            int changesCapacity) {
+        this(idGenerator, concurrency, store, new ArrayList<>(), changesCapacity);
+    }
+
+    private WidgetCustomRepo(IdGenerator idGenerator, ConcurrencyStrategy concurrency, WidgetStore store,
+                             List<Widget> toCopyList, int changesCapacity) {
+        long start = System.currentTimeMillis();
+        WidgetStore.Recovery recovery = store == null ? null : store.recover();
+        //Indexes are sized for the whole board upfront instead of rehashing while loading
+        int expectedSize = recovery == null ?
+                toCopyList.size() :
+                recovery.getWidgets().size() + recovery.getTail().size();
         this.idGenerator = idGenerator;
-        id2Widget = new HashMap<>();
-        zIndex2Widget = new HashMap<>();
-        stampedLock = new StampedLock();
+        id2Widget = new ConcurrentHashMap<>(expectedSize);
+        zIndex2Widget = new ConcurrentHashMap<>(expectedSize);
+        spatialIndex = new SpatialGridIndex<>(expectedSize);
+        this.concurrency = concurrency;
+        this.store = store;
+        changeLog = new WidgetChangeLog(changesCapacity);
+        pendingIds = concurrency.snapshotReads() ? PersistentLongMap.empty() : null;
         foreground = -1;
-        initFromList(toCopyList);
+        if (recovery == null) {
+            initFromList(toCopyList);
+        } else {
+            recover(recovery, start);
+        }
+        //Replayed changes are only the starting state
+        changes.clear();
+        publishSnapshot();
     }
 
+    /**
+     * Bulk load: sorted in parallel (falls back to a plain sort for small lists),
+     * ids are then given in zIndex order
+     */
     private void initFromList(List<Widget> toCopyList) {
-        //Ensure that list is sorted
-        widgetList = new ArrayList(toCopyList);
-        Collections.sort(widgetList);
-        for (Widget widget : widgetList) {
-            if (id2Widget.containsKey(widget.getId()))
-                throw new IllegalStateException("List is initialized with non-unique ids");
-            if (zIndex2Widget.containsKey(widget.getzIndex()))
+        Widget[] sorted = toCopyList.toArray(new Widget[0]);
+        Arrays.parallelSort(sorted);
+        WidgetRecord[] records = new WidgetRecord[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            if (sorted[i].getId() == null)
+                sorted[i].setId(idGenerator.getNextId());
+            records[i] = WidgetRecord.from(sorted[i]);
+        }
+        initFromRecords(records);
+    }
+
+    /**
+     * Records must be sorted by zIndex. Single pass: the sorted list is filled in order instead of inserting,
+     * and uniqueness is checked while indexing (zIndexes against the previous one as they're sorted)
+     */
+    private void initFromRecords(WidgetRecord[] records) {
+        for (int i = 0; i < records.length; i++) {
+            WidgetRecord record = records[i];
+            if (i > 0 && records[i - 1].getzIndex() == record.getzIndex())
                 throw new IllegalStateException("List is initialized with non-unique z-indexes");
+            if (id2Widget.putIfAbsent(record.getId(), record) != null)
+                throw new IllegalStateException("List is initialized with non-unique ids");
+            if (pendingIds != null)
+                pendingIds = pendingIds.put(record.getId(), record);
 
-            if (widget.getId() == null)
-                widget.setId(idGenerator.getNextId());
+            zIndex2Widget.put(record.getzIndex(), record);
+            spatialIndex.put(record.getId(), Rectangle.of(record));
+        }
+        widgetList = new ArrayList<>(Arrays.asList(records));
+        changedFrom = 0;
 
-            id2Widget.put(widget.getId(), widget);
-            zIndex2Widget.put(widget.getzIndex(), widget);
+        if (records.length > 0)
+            foreground = records[records.length - 1].getzIndex();
+    }
+
+    /**
+     * Snapshot widgets go through the same init as a given list, then the log tail is replayed
+     * through the same steps as the original writes, with their original time
+     */
+    private void recover(WidgetStore.Recovery recovery, long start) {
+        initFromRecords(recovery.getWidgets().toArray(new WidgetRecord[0]));
+        for (WidgetLogEntry entry : recovery.getTail()) {
+            if (entry.getType() == WidgetCommand.Type.REMOVE) {
+                internalRemoveWidget(entry.getId());
+                continue;
+            }
+            long lastUpdate = entry.getWidget().getLastUpdateMillis();
+            clock = () -> lastUpdate;
+            if (entry.getType() == WidgetCommand.Type.ADD)
+                internalAddWidget(entry.getWidget().toWidget());
+            else
+                internalUpdateWidget(entry.getWidget().toWidget());
+        }
+        clock = System::currentTimeMillis;
+        idGenerator.advancePast(recovery.getMaxId());
+        logger.info("Loaded {} widgets from {} snapshot widgets and {} log entries in {} ms", widgetList.size(),
+                recovery.getWidgets().size(), recovery.getTail().size(), System.currentTimeMillis() - start);
+    }
+
+    //Called by writers before acknowledging the write, under the write lock
+    private void log(List<WidgetLogEntry> entries) {
+        if (store != null && !entries.isEmpty())
+            store.append(entries);
+    }
+
+    /**
+     * Stops logging, waiting for a snapshot being written
+     */
+    @PreDestroy
+    public void close() {
+        if (store != null)
+            store.close();
+    }
+
+    /**
+     * widgets.board.size and widgets.board.foreground (both read from the published snapshot, no lock),
+     * widgets.shift.size and widgets.point-read.fallbacks, before the repo is shared
+     */
+    @Override
+    public void bindMetrics(MeterRegistry registry) {
+        Gauge.builder("widgets.board.size", this, repo -> repo.snapshot.size())
+                .tag("component", "customRepo")
+                .register(registry);
+        Gauge.builder("widgets.board.foreground", this, WidgetCustomRepo::publishedForeground)
+                .tag("component", "customRepo")
+                .register(registry);
+        shiftSize = DistributionSummary.builder("widgets.shift.size")
+                .description("Widgets moved up by an add on a taken zIndex")
+                .tag("component", "customRepo")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+        pointReadFallbacks = Counter.builder("widgets.point-read.fallbacks")
+                .description("Point reads that gave up on the seqlock and took the read lock")
+                .tag("component", "customRepo")
+                .register(registry);
+    }
+
+    //foreground itself is only safe to read under the lock
+    private double publishedForeground() {
+        List<WidgetRecord> widgets = snapshot;
+        return widgets.isEmpty() ? -1 : widgets.get(widgets.size() - 1).getzIndex();
+    }
+
+    /**
+     * Runs the changes of a write that was checked first, so it's only expected to fail on a broken store
+     * or a bug. Once they're done they are published and emitted, a failure instead puts back the last
+     * published state, so nothing half applied is ever published, logged to the change log nor snapshotted.
+     */
+    private <T> T apply(Supplier<T> change) {
+        T result;
+        try {
+            result = change.get();
+        } catch (RuntimeException | Error e) {
+            rollback();
+            throw e;
         }
+        publishSnapshot();
+        emitChanges();
+        return result;
+    }
+
+    //Rebuilds the indexes from the published list, O(n) but only on a failed write
+    private void rollback() {
+        logger.warn("Write failed half way, restoring the last published state");
+        changes.clear();
+        id2Widget.clear();
+        if (pendingIds != null)
+            pendingIds = PersistentLongMap.empty();
+        zIndex2Widget.clear();
+        spatialIndex.clear();
+        foreground = -1;
+        initFromRecords(snapshot.toArray(new WidgetRecord[0]));
+    }
 
-        if (!widgetList.isEmpty())
-            foreground = widgetList.get(widgetList.size() - 1).getzIndex();
+    /**
+     * Must be called by writers before releasing the write lock, stamps the write with the next version.
+     * Only the part of the list from the lowest index the write changed is copied: an update in place or an add
+     * on top copies one chunk, an add shifting widgets copies from the first one shifted, which it rewrote anyway.
+     */
+    private void publishSnapshot() {
+        if (!changes.isEmpty())
+            changeLog.append(List.copyOf(changes));
+        snapshot = ChunkedList.of(snapshot, widgetList, changedFrom);
+        changedFrom = Integer.MAX_VALUE;
+        snapshotIds = pendingIds;
+        versionedSnapshot = WidgetChanges.resync(changeLog.getVersion(), snapshot);
+        //Published list matches the log exactly here
+        if (store != null && store.snapshotDue())
+            store.snapshot(snapshot);
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        changeListener = listener;
+    }
+
+    //Must be called by writers after publishing the snapshot, still under the write lock so changes keep their order
+    private void emitChanges() {
+        if (changeListener != null && !changes.isEmpty())
+            changeListener.onChanges(changeLog.getVersion(), List.copyOf(changes));
+        changes.clear();
+    }
+
+    /**
+     * Lock free too: the log is consistent on its own, and a resync is the published list with its version
+     */
+    @Override
+    public WidgetChanges findChangesSince(long version) {
+        WidgetChanges changes = changeLog.since(version);
+        return changes != null ? changes : versionedSnapshot;
+    }
+
+    @Override
+    public WidgetChanges findDeltaSince(long version) {
+        return changeLog.since(version);
+    }
+
+    /**
+     * Version of the published list: it's published right after the list, so the list read next is at least as new
+     */
+    @Override
+    public OptionalLong getVersion() {
+        return OptionalLong.of(versionedSnapshot.getVersion());
     }
 
     @Override
@@ -66,120 +337,314 @@ public class WidgetCustomRepo implements WidgetRepo {
     }
 
     @Override
-    public List<Widget> findAllSorted() {
-        long stamp = stampedLock.tryOptimisticRead();
-        List<Widget> list = new ArrayList<>(widgetList);
-        if(!stampedLock.validate(stamp)) {
-            stamp = stampedLock.readLock();
-            try {
-                list = new ArrayList<>(widgetList);
-            } finally {
-                stampedLock.unlockRead(stamp);
-            }
+    public long count() {
+        return snapshot.size();
+    }
+
+    /**
+     * No lock nor copy needed, snapshot and its widgets are never changed after being published
+     */
+    @Override
+    public List<WidgetRecord> findAllSorted() {
+        return snapshot;
+    }
+
+    //The published list is already a consistent copy, walking it holds nothing
+    @Override
+    public void forEachSorted(Consumer<WidgetRecord> action) {
+        snapshot.forEach(action);
+    }
+
+    @Override
+    public List<WidgetRecord> findPage(int page, int size) {
+        List<WidgetRecord> widgets = snapshot;
+        long from = (long) (page - 1) * size;
+        if (from >= widgets.size())
+            return Collections.emptyList();
+        return widgets.subList((int) from, (int) Math.min(widgets.size(), from + size));
+    }
+
+    @Override
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        List<WidgetRecord> widgets = snapshot;
+        int from = 0;
+        if (zIndex != null) {
+            int index = Collections.binarySearch(widgets, zIndexKey(zIndex));
+            from = index >= 0 ? index + 1 : -index - 1;
         }
-        return list;
+        return widgets.subList(from, (int) Math.min(widgets.size(), (long) from + limit));
+    }
+
+    @Override
+    public List<WidgetRecord> findGreaterThanEqualZindex(Long zIndex) {
+        List<WidgetRecord> widgets = snapshot;
+        int index = Collections.binarySearch(widgets, zIndexKey(zIndex));
+        return widgets.subList(index >= 0 ? index : -index - 1, widgets.size());
     }
 
+    /**
+     * Point reads go through the seqlock whatever the strategy. When writes keep getting in the way they go
+     * through the strategy's read, or when readers must not wait (copyOnWrite) to the published snapshot:
+     * its id map, a binary search by zIndex. The snapshot is published before the write's last sequence
+     * increment, so it's never older than what an earlier point read saw.
+     */
     @Override
-    public List<Widget> findGreaterThanEqualZindex(Long zIndex) {
-        return widgetList.stream()
-                .filter(widget -> widget.getzIndex() >= zIndex)
-                .map(this::getCopy)
-                .collect(Collectors.toList());
+    public Optional<WidgetRecord> findById(Long id) {
+        if (id == null)
+            return Optional.empty();
+        WidgetRecord widget = pointRead(id2Widget, id);
+        if (widget == CONTENDED)
+            widget = concurrency.snapshotReads() ? idInSnapshot(id) : concurrency.read(() -> id2Widget.get(id));
+        return Optional.ofNullable(widget);
     }
 
     @Override
-    public Optional<Widget> findById(Long id) {
-        if (!id2Widget.containsKey(id))
+    public Optional<WidgetRecord> findByZindex(Long zIndex) {
+        if (zIndex == null)
             return Optional.empty();
+        WidgetRecord widget = pointRead(zIndex2Widget, zIndex);
+        if (widget == CONTENDED) {
+            widget = concurrency.snapshotReads() ?
+                    zIndexInSnapshot(zIndex) :
+                    concurrency.read(() -> zIndex2Widget.get(zIndex));
+        }
+        return Optional.ofNullable(widget);
+    }
+
+    private WidgetRecord idInSnapshot(long id) {
+        return snapshotIds.get(id);
+    }
+
+    private WidgetRecord zIndexInSnapshot(long zIndex) {
+        List<WidgetRecord> widgets = snapshot;
+        int index = Collections.binarySearch(widgets, zIndexKey(zIndex));
+        return index >= 0 ? widgets.get(index) : null;
+    }
+
+    /**
+     * Lock free lookup, retried while a write is in progress, {@link #CONTENDED} once it gave up.
+     * The maps being concurrent, a lookup never trips over a resize. Records are immutable, so the record found
+     * is whole, and an unchanged even sequence around the lookup means no write was halfway through it: no widget
+     * missing between removing its old zIndex and putting the new one, no intermediate record of a batch.
+     * The writer changes the sequence before its first and after its last change to the maps, and the lookup reads
+     * volatile map nodes between the two reads of the sequence, so seeing any of a write's changes means seeing
+     * the sequence it started with too.
+     */
+    private WidgetRecord pointRead(Map<Long, WidgetRecord> index, Long key) {
+        for (int attempt = 0; attempt < POINT_READ_ATTEMPTS; attempt++) {
+            long sequence = writeSequence;
+            if ((sequence & 1) == 0) {
+                WidgetRecord widget = index.get(key);
+                if (writeSequence == sequence)
+                    return widget;
+            }
+            Thread.onSpinWait();
+        }
+        if (pointReadFallbacks != null)
+            pointReadFallbacks.increment();
+        return CONTENDED;
+    }
 
-        long stamp = stampedLock.tryOptimisticRead();
-        Widget result = getCopy(id2Widget.get(id));
-        if(!stampedLock.validate(stamp)) {
-            stamp = stampedLock.readLock();
+    //Every write of the maps runs between two increments of writeSequence
+    private <T> T write(Supplier<T> writer) {
+        return concurrency.write(() -> {
+            writeSequence++;
             try {
-                result = getCopy(id2Widget.get(id));
+                return writer.get();
             } finally {
-                stampedLock.unlockRead(stamp);
+                writeSequence++;
+            }
+        });
+    }
+
+    private void write(Runnable writer) {
+        write(() -> {
+            writer.run();
+            return null;
+        });
+    }
+
+    /**
+     * The grid is plain hash maps that writers change in place, so lookups always take the read lock,
+     * never an optimistic run. The grid isn't published, so snapshot reads scan the snapshot, already sorted.
+     */
+    @Override
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        if (concurrency.snapshotReads()) {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (WidgetRecord widget : snapshot) {
+                if (area.contains(Rectangle.of(widget)))
+                    result.add(widget);
             }
+            return result;
         }
-        return Optional.of(result);
+        return concurrency.readLocked(() -> {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long id : spatialIndex.query(area, area::contains)) {
+                result.add(id2Widget.get(id));
+            }
+            Collections.sort(result);
+            return result;
+        });
     }
 
     /**
-     * Same as widgetById, trying optimistic lock
-     * */
+     * Grid lookup of the cells the widget's rectangle spans, so only widgets near it are checked,
+     * under read lock like findInArea. Snapshot reads look for the widget in the snapshot and scan it.
+     */
     @Override
-    public Optional<Widget> findByZindex(Long zIndex) {
-        if (!zIndex2Widget.containsKey(zIndex))
-            return Optional.empty();
+    public List<WidgetRecord> findOverlapping(Long id) {
+        if (id == null)
+            throw new ResourceNotFoundException("No widget with id: " + id);
+        if (concurrency.snapshotReads()) {
+            List<WidgetRecord> widgets = snapshot;
+            Rectangle area = widgets.stream().filter(widget -> widget.getId() == id).findAny()
+                    .map(Rectangle::of)
+                    .orElseThrow(() -> new ResourceNotFoundException("No widget with id: " + id));
+            List<WidgetRecord> result = new ArrayList<>();
+            for (WidgetRecord widget : widgets) {
+                if (widget.getId() != id && area.intersects(Rectangle.of(widget)))
+                    result.add(widget);
+            }
+            return result;
+        }
+        return concurrency.readLocked(() -> {
+            WidgetRecord widget = id2Widget.get(id);
+            if (widget == null)
+                throw new ResourceNotFoundException("No widget with id: " + id);
+            Rectangle area = Rectangle.of(widget);
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long other : spatialIndex.query(area, area::intersects)) {
+                if (!other.equals(id))
+                    result.add(id2Widget.get(other));
+            }
+            Collections.sort(result);
+            return result;
+        });
+    }
 
-        long stamp = stampedLock.tryOptimisticRead();
-        Widget result = getCopy(zIndex2Widget.get(zIndex));
-        if(!stampedLock.validate(stamp)) {
-            stamp = stampedLock.readLock();
-            try {
-                result = getCopy(zIndex2Widget.get(zIndex));
-            } finally {
-                stampedLock.unlockRead(stamp);
+    /**
+     * Grid lookup of the point's cell on every level, so only widgets near the point are checked,
+     * under read lock like findInArea. Snapshot reads scan the snapshot from the top.
+     */
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        if (concurrency.snapshotReads()) {
+            List<WidgetRecord> widgets = snapshot;
+            List<WidgetRecord> result = new ArrayList<>();
+            for (int i = widgets.size() - 1; i >= 0; i--) {
+                if (Rectangle.of(widgets.get(i)).contains(x, y))
+                    result.add(widgets.get(i));
             }
+            return result;
         }
-        return Optional.of(result);
+        Rectangle point = new Rectangle(x, y, x, y);
+        return concurrency.readLocked(() -> {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long id : spatialIndex.query(point, rectangle -> rectangle.contains(x, y))) {
+                result.add(id2Widget.get(id));
+            }
+            result.sort(Collections.reverseOrder());
+            return result;
+        });
     }
 
-    private Widget getCopy(Widget widget) {
-        return Widget.Builder
-                .emptyWidget()
-                .withId(widget.getId())
-                .withZIndex(widget.getzIndex())
-                .withWidth(widget.getWidth())
-                .withHeight(widget.getHeight())
-                .withX(widget.getX())
-                .withY(widget.getY())
-                .withLastUpdate(widget.getLastUpdate())
-                .build();
+    //Only zIndex matters for binary search
+    private static WidgetRecord zIndexKey(long zIndex) {
+        return new WidgetRecord(0, 0, 0, 0, 0, zIndex, 0);
     }
 
-    private Widget internalAddWidget(Widget widget) {
+    //Everything that can make an add fail, checked before changing anything
+    private void checkAdd(Widget widget) {
         widget.validForOperationOrThrow();
-
-        if (id2Widget.containsKey(widget.getId())) {
+        if (widget.getId() != null && id2Widget.containsKey(widget.getId()))
             throw new DuplicateKeyException("Trying to insert duplicate Id");
-        }
+    }
+
+    private void checkExisting(Long id) {
+        if (id == null || !id2Widget.containsKey(id))
+            throw new ResourceNotFoundException("No widget with id: " + id);
+    }
+
+    private WidgetRecord internalAddWidget(Widget widget) {
+        checkAdd(widget);
 
         if (widget.getId() == null) {
             widget.setId(idGenerator.getNextId());
         }
 
-        id2Widget.put(widget.getId(), widget);
-
         //Adding one to current foreground to bring the widget to the top
         if (widget.getzIndex() == null) {
             foreground++;
             widget.setzIndex(foreground);
-            widgetList.add(widget);
-            zIndex2Widget.put(widget.getzIndex(), widget);
-            return widget;
+            WidgetRecord record = WidgetRecord.from(widget, clock.getAsLong());
+            changed(widgetList.size());
+            widgetList.add(record);
+            indexWidget(record);
+            return record;
         }
 
-        if (zIndex2Widget.containsKey(widget.getzIndex())) {
-            addExistingZindexWidget(widget);
+        WidgetRecord record = WidgetRecord.from(widget, clock.getAsLong());
+        if (zIndex2Widget.containsKey(record.getzIndex())) {
+            addExistingZindexWidget(record);
         } else {
-            addNonExistingZindexWidget(widget);
+            addNonExistingZindexWidget(record);
         }
-        return widget;
+        indexWidget(record);
+        return record;
+    }
+
+    //Every change of widgetList goes through it, so the next snapshot copies it
+    private void changed(int index) {
+        changedFrom = Math.min(changedFrom, index);
+    }
+
+    //Every change of id2Widget goes through these two, so snapshot reads get it with the next snapshot
+    private void putId(WidgetRecord record) {
+        id2Widget.put(record.getId(), record);
+        if (pendingIds != null)
+            pendingIds = pendingIds.put(record.getId(), record);
+    }
+
+    private void removeId(long id) {
+        id2Widget.remove(id);
+        if (pendingIds != null)
+            pendingIds = pendingIds.remove(id);
+    }
+
+    private void indexWidget(WidgetRecord record) {
+        putId(record);
+        zIndex2Widget.put(record.getzIndex(), record);
+        spatialIndex.put(record.getId(), Rectangle.of(record));
     }
 
     @Override
-    public Widget addWidget(Widget widget) {
-        long stamp = stampedLock.writeLock();
-        try {
-            return getCopy(internalAddWidget(getCopy(widget)));
-        } finally {
-            stampedLock.unlockWrite(stamp);
-        }
+    public WidgetRecord addWidget(Widget widget) {
+        return write(() -> {
+            Widget input = copyInput(widget);
+            checkAdd(input);
+            return apply(() -> {
+                WidgetRecord record = internalAddWidget(input);
+                log(List.of(WidgetLogEntry.add(record)));
+                changes.add(WidgetChangeEvent.added(record));
+                return record;
+            });
+        });
     }
 
+    //Id and zIndex get assigned on the input, caller's widget must stay as is
+    private Widget copyInput(Widget widget) {
+        return Widget.Builder
+                .emptyWidget()
+                .withId(widget.getId())
+                .withZIndex(widget.getzIndex())
+                .withWidth(widget.getWidth())
+                .withHeight(widget.getHeight())
+                .withX(widget.getX())
+                .withY(widget.getY())
+                .withLastUpdate(widget.getLastUpdate())
+                .build();
+    }
 
     /**
      * From binary search documentation
@@ -190,47 +655,55 @@ public class WidgetCustomRepo implements WidgetRepo {
      * As widget implements Comparable interface based on zIndex and the list will maintain
      * the order when we insert a new zIndex we can do this here
      */
-    private void addNonExistingZindexWidget(Widget widget) {
+    private void addNonExistingZindexWidget(WidgetRecord widget) {
         int index = Collections.binarySearch(widgetList, widget);
+        changed(-index - 1);
         widgetList.add(-index - 1, widget);
-        zIndex2Widget.put(widget.getzIndex(), widget);
         foreground = Math.max(foreground, widget.getzIndex());
     }
 
-    //Need to shift all greater zIndex widgets, update zIndexMap, update foreground
-    private void addExistingZindexWidget(Widget widget) {
+    //Need to shift all greater zIndex widgets, update maps, update foreground
+    private void addExistingZindexWidget(WidgetRecord widget) {
         //Can also use indexOf directly but this will be faster if widgets size grows big
         int index = Collections.binarySearch(widgetList, widget);
-        widgetList.add(index, widget);
-        zIndex2Widget.put(widget.getzIndex(), widget);
-        Widget tmpWidget;
-        //Shifting all larger elements' zIndex
-        for (int i = index + 1; i < widgetList.size(); i++) {
-            tmpWidget = widgetList.get(i);
-            tmpWidget.incrementZindex();
-            //Updating map
-            zIndex2Widget.put(tmpWidget.getzIndex(), tmpWidget);
+        changes.add(WidgetChangeEvent.shifted(widget.getzIndex()));
+        if (shiftSize != null)
+            shiftSize.record(widgetList.size() - index);
+        changed(index);
+        //Shifting all larger or equal elements' zIndex, going down so that
+        //removing the old key never removes a key that was already moved up
+        for (int i = widgetList.size() - 1; i >= index; i--) {
+            WidgetRecord oldWidget = widgetList.get(i);
+            WidgetRecord shiftedWidget = oldWidget.withZIndex(oldWidget.getzIndex() + 1);
+            widgetList.set(i, shiftedWidget);
+            //Updating maps
+            zIndex2Widget.remove(oldWidget.getzIndex());
+            zIndex2Widget.put(shiftedWidget.getzIndex(), shiftedWidget);
+            putId(shiftedWidget);
         }
+        widgetList.add(index, widget);
 
         foreground = Math.max(foreground, widgetList.get(widgetList.size() - 1).getzIndex());
     }
 
-    private Widget internalUpdateWidget(Widget newWidget) {
+    private void checkUpdate(Widget newWidget) {
         newWidget.validForOperationOrThrow();
+        checkExisting(newWidget.getId());
+    }
 
-        Long id = newWidget.getId();
-        if (!id2Widget.containsKey(id))
-            throw new ResourceNotFoundException("No widget with id: " + id);
+    private WidgetRecord internalUpdateWidget(Widget newWidget) {
+        checkUpdate(newWidget);
 
-        Widget oldWidget = id2Widget.get(id);
-        //Not changing zIndex, then update old reference directly
-        if (newWidget.getzIndex().equals(oldWidget.getzIndex())) {
-            oldWidget.setX(newWidget.getX());
-            oldWidget.setY(newWidget.getY());
-            oldWidget.setWidth(newWidget.getWidth());
-            oldWidget.setHeight(newWidget.getHeight());
-            oldWidget.setLastUpdate(LocalDateTime.now());
-            return oldWidget;
+        Long id = newWidget.getId();
+        WidgetRecord oldWidget = id2Widget.get(id);
+        //Not changing zIndex, then replace old widget in the same position
+        if (newWidget.getzIndex() != null && newWidget.getzIndex() == oldWidget.getzIndex()) {
+            WidgetRecord updatedWidget = WidgetRecord.from(newWidget, clock.getAsLong());
+            int index = Collections.binarySearch(widgetList, oldWidget);
+            changed(index);
+            widgetList.set(index, updatedWidget);
+            indexWidget(updatedWidget);
+            return updatedWidget;
         } else {
             internalRemoveWidget(id);
             return internalAddWidget(newWidget);
@@ -238,23 +711,25 @@ public class WidgetCustomRepo implements WidgetRepo {
     }
 
     @Override
-    public Widget updateWidget(Widget newWidget) {
-        long stamp = stampedLock.writeLock();
-        try {
-            //Adding the getCopy here for clarity and consistency, but it's considered redundant for some cases
-            return getCopy(internalUpdateWidget(getCopy(newWidget)));
-        } finally {
-            stampedLock.unlockWrite(stamp);
-        }
+    public WidgetRecord updateWidget(Widget newWidget) {
+        return write(() -> {
+            Widget input = copyInput(newWidget);
+            checkUpdate(input);
+            return apply(() -> {
+                WidgetRecord record = internalUpdateWidget(input);
+                log(List.of(WidgetLogEntry.update(record)));
+                changes.add(WidgetChangeEvent.updated(record));
+                return record;
+            });
+        });
     }
 
 
 
     private void internalRemoveWidget(Long id) {
-        if (!id2Widget.containsKey(id))
-            throw new ResourceNotFoundException("No widget with id: " + id);
+        checkExisting(id);
 
-        Widget widget = id2Widget.get(id);
+        WidgetRecord widget = id2Widget.get(id);
         int widgetIndex = Collections.binarySearch(widgetList, widget);
         //Removing top element
         if (widgetIndex == widgetList.size() - 1) {
@@ -266,18 +741,327 @@ public class WidgetCustomRepo implements WidgetRepo {
             }
         }
 
+        changed(widgetIndex);
         widgetList.remove(widgetIndex);
         zIndex2Widget.remove(widget.getzIndex());
-        id2Widget.remove(id);
+        removeId(id);
+        spatialIndex.remove(id);
     }
     @Override
     public void removeWidget(Long id) {
-        long stamp = stampedLock.writeLock();
-        try {
-            internalRemoveWidget(id);
-        } finally {
-            stampedLock.unlockWrite(stamp);
-        }
+        write(() -> {
+            checkExisting(id);
+            apply(() -> {
+                internalRemoveWidget(id);
+                log(List.of(WidgetLogEntry.remove(id)));
+                changes.add(WidgetChangeEvent.removed(id));
+                return null;
+            });
+        });
+    }
+
+    /**
+     * Whole batch under one write and one snapshot. Commands are planned first and then applied
+     * with a single pass over widgetList, however many of them shift.
+     */
+    @Override
+    public List<WidgetCommand.Result> applyBatch(List<WidgetCommand> commands) {
+        return write(() -> {
+            BatchPlan plan = new BatchPlan(commands);
+            return apply(() -> {
+                plan.apply();
+                log(plan.logEntries());
+                changes.addAll(plan.events);
+                return plan.results;
+            });
+        });
+    }
+
+    /**
+     * Planning doesn't change the repo, so a failing command just means the plan is dropped
+     */
+    @Override
+    public List<WidgetRecord> applyAtomically(List<WidgetCommand> commands) {
+        return write(() -> {
+            BatchPlan plan = new BatchPlan(commands);
+            List<WidgetRecord> widgets = new ArrayList<>(commands.size());
+            for (WidgetCommand.Result result : plan.results) {
+                if (!result.isSuccess())
+                    throw result.getError();
+                widgets.add(result.getWidget());
+            }
+            return apply(() -> {
+                plan.apply();
+                log(plan.logEntries());
+                changes.addAll(plan.events);
+                return widgets;
+            });
+        });
     }
 
+    /**
+     * Commands of a batch, run against a view of the repo without touching widgetList nor the maps.
+     * Every shift is recorded as a threshold on the zIndexes widgets had before the batch:
+     * an existing widget with zIndex z ends up at z + (number of thresholds <= z).
+     * Widgets added by the batch are few, they are shifted directly.
+     */
+    private class BatchPlan {
+        private final List<WidgetCommand> commands;
+        private final List<WidgetCommand.Result> results;
+        //Sorted, may contain the same threshold more than once
+        private final List<Long> thresholds = new ArrayList<>();
+        //Widgets added by the batch with their current zIndex
+        private final List<WidgetRecord> added = new ArrayList<>();
+        //Existing widgets changed in place by the batch, null once removed
+        private final Map<Long, WidgetRecord> changed = new HashMap<>();
+        private long foreground = WidgetCustomRepo.this.foreground;
+        //Changes as if the commands were applied one by one
+        private final List<WidgetChangeEvent> events = new ArrayList<>();
+        //Index in widgetList of the highest existing widget not removed
+        private int topExisting = widgetList.size() - 1;
+
+        private BatchPlan(List<WidgetCommand> commands) {
+            this.commands = commands;
+            results = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                try {
+                    switch (command.getType()) {
+                        case ADD:
+                            WidgetRecord record = add(copyInput(command.getWidget()));
+                            results.add(WidgetCommand.Result.ok(record));
+                            events.add(WidgetChangeEvent.added(record));
+                            break;
+                        case UPDATE:
+                            record = update(copyInput(command.getWidget()));
+                            results.add(WidgetCommand.Result.ok(record));
+                            events.add(WidgetChangeEvent.updated(record));
+                            break;
+                        default:
+                            remove(command.getId());
+                            results.add(WidgetCommand.Result.ok(null));
+                            events.add(WidgetChangeEvent.removed(command.getId()));
+                    }
+                } catch (RuntimeException e) {
+                    results.add(WidgetCommand.Result.failed(e));
+                }
+            }
+        }
+
+        /**
+         * Successful commands as if applied one by one, which is what replaying them does
+         */
+        private List<WidgetLogEntry> logEntries() {
+            List<WidgetLogEntry> entries = new ArrayList<>(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                WidgetCommand.Result result = results.get(i);
+                if (!result.isSuccess())
+                    continue;
+                switch (commands.get(i).getType()) {
+                    case ADD:
+                        entries.add(WidgetLogEntry.add(result.getWidget()));
+                        break;
+                    case UPDATE:
+                        entries.add(WidgetLogEntry.update(result.getWidget()));
+                        break;
+                    default:
+                        entries.add(WidgetLogEntry.remove(commands.get(i).getId()));
+                }
+            }
+            return entries;
+        }
+
+        private WidgetRecord add(Widget widget) {
+            widget.validForOperationOrThrow();
+
+            if (widget.getId() != null && (isExisting(widget.getId()) || addedIndex(widget.getId()) >= 0)) {
+                throw new DuplicateKeyException("Trying to insert duplicate Id");
+            }
+
+            if (widget.getId() == null) {
+                widget.setId(idGenerator.getNextId());
+            }
+
+            //Adding one to current foreground to bring the widget to the top
+            if (widget.getzIndex() == null) {
+                foreground++;
+                widget.setzIndex(foreground);
+            } else if (isTaken(widget.getzIndex())) {
+                shift(widget.getzIndex());
+            }
+
+            WidgetRecord record = WidgetRecord.from(widget, clock.getAsLong());
+            added.add(record);
+            foreground = Math.max(foreground, currentTop());
+            return record;
+        }
+
+        private WidgetRecord update(Widget newWidget) {
+            newWidget.validForOperationOrThrow();
+
+            Long id = newWidget.getId();
+            int index = addedIndex(id);
+            long zIndex;
+            if (index >= 0)
+                zIndex = added.get(index).getzIndex();
+            else if (isExisting(id))
+                zIndex = currentZindex(id2Widget.get(id).getzIndex());
+            else
+                throw new ResourceNotFoundException("No widget with id: " + id);
+
+            //Not changing zIndex, then replace old widget in the same position
+            if (newWidget.getzIndex() != null && newWidget.getzIndex() == zIndex) {
+                WidgetRecord updatedWidget = WidgetRecord.from(newWidget, clock.getAsLong());
+                if (index >= 0)
+                    added.set(index, updatedWidget);
+                else
+                    changed.put(id, updatedWidget);
+                return updatedWidget;
+            } else {
+                remove(id);
+                return add(newWidget);
+            }
+        }
+
+        private void remove(Long id) {
+            int index = addedIndex(id);
+            long zIndex;
+            if (index >= 0) {
+                zIndex = added.remove(index).getzIndex();
+            } else if (isExisting(id)) {
+                zIndex = currentZindex(id2Widget.get(id).getzIndex());
+                changed.put(id, null);
+            } else {
+                throw new ResourceNotFoundException("No widget with id: " + id);
+            }
+
+            //Removing top element
+            Long top = currentTop();
+            if (top == null || top < zIndex)
+                foreground = top == null ? -1 : top;
+        }
+
+        private boolean isExisting(Long id) {
+            return id != null && id2Widget.containsKey(id) && (!changed.containsKey(id) || changed.get(id) != null);
+        }
+
+        private int addedIndex(Long id) {
+            for (int i = 0; id != null && i < added.size(); i++) {
+                if (added.get(i).getId() == id)
+                    return i;
+            }
+            return -1;
+        }
+
+        private boolean isTaken(long zIndex) {
+            for (WidgetRecord widget : added) {
+                if (widget.getzIndex() == zIndex)
+                    return true;
+            }
+            long original = toOriginal(zIndex);
+            WidgetRecord existing = zIndex2Widget.get(original);
+            return currentZindex(original) == zIndex && existing != null && isExisting(existing.getId());
+        }
+
+        private Long currentTop() {
+            while (topExisting >= 0 && !isExisting(widgetList.get(topExisting).getId())) {
+                topExisting--;
+            }
+            Long top = topExisting >= 0 ? currentZindex(widgetList.get(topExisting).getzIndex()) : null;
+            for (WidgetRecord widget : added) {
+                if (top == null || widget.getzIndex() > top)
+                    top = widget.getzIndex();
+            }
+            return top;
+        }
+
+        private void shift(long zIndex) {
+            events.add(WidgetChangeEvent.shifted(zIndex));
+            long original = toOriginal(zIndex);
+            int index = Collections.binarySearch(thresholds, original);
+            thresholds.add(index >= 0 ? index : -index - 1, original);
+            for (int i = 0; i < added.size(); i++) {
+                WidgetRecord widget = added.get(i);
+                if (widget.getzIndex() >= zIndex)
+                    added.set(i, widget.withZIndex(widget.getzIndex() + 1));
+            }
+        }
+
+        private long currentZindex(long original) {
+            int count = 0;
+            while (count < thresholds.size() && thresholds.get(count) <= original) {
+                count++;
+            }
+            return original + count;
+        }
+
+        /**
+         * Smallest original zIndex whose current zIndex is >= the given one.
+         * Between two thresholds the shift is constant, so checking each segment in turn.
+         */
+        private long toOriginal(long zIndex) {
+            long segmentStart = Long.MIN_VALUE;
+            for (int i = 0; i < thresholds.size(); i++) {
+                long candidate = Math.max(segmentStart, zIndex - i);
+                if (candidate < thresholds.get(i))
+                    return candidate;
+                segmentStart = thresholds.get(i);
+            }
+            return Math.max(segmentStart, zIndex - thresholds.size());
+        }
+
+        /**
+         * Walks existing widgets going down (so a moved widget's new key is never removed by a lower widget),
+         * then merges them with the added ones into the new widgetList
+         */
+        private void apply() {
+            WidgetCustomRepo.this.foreground = foreground;
+            if (added.isEmpty() && changed.isEmpty())
+                return;
+
+            WidgetRecord[] kept = new WidgetRecord[widgetList.size()];
+            int shift = thresholds.size();
+            for (int i = kept.length - 1; i >= 0; i--) {
+                WidgetRecord oldWidget = widgetList.get(i);
+                while (shift > 0 && thresholds.get(shift - 1) > oldWidget.getzIndex()) {
+                    shift--;
+                }
+                boolean isChanged = changed.containsKey(oldWidget.getId());
+                if (!isChanged && shift == 0) {
+                    kept[i] = oldWidget;
+                    continue;
+                }
+
+                zIndex2Widget.remove(oldWidget.getzIndex());
+                WidgetRecord newWidget = isChanged ? changed.get(oldWidget.getId()) : oldWidget;
+                if (newWidget == null) {
+                    removeId(oldWidget.getId());
+                    spatialIndex.remove(oldWidget.getId());
+                    continue;
+                }
+                kept[i] = newWidget.withZIndex(oldWidget.getzIndex() + shift);
+                putId(kept[i]);
+                zIndex2Widget.put(kept[i].getzIndex(), kept[i]);
+                if (isChanged)
+                    spatialIndex.put(kept[i].getId(), Rectangle.of(kept[i]));
+            }
+
+            Collections.sort(added);
+            List<WidgetRecord> merged = new ArrayList<>(kept.length + added.size());
+            int next = 0;
+            for (WidgetRecord widget : kept) {
+                if (widget == null)
+                    continue;
+                while (next < added.size() && added.get(next).getzIndex() < widget.getzIndex()) {
+                    merged.add(added.get(next++));
+                }
+                merged.add(widget);
+            }
+            merged.addAll(added.subList(next, added.size()));
+            widgetList = merged;
+            changed(0);
+            for (WidgetRecord widget : added) {
+                indexWidget(widget);
+            }
+        }
+    }
 }
@@ -1,17 +1,196 @@
 package com.miro.platform.widget.domain.repository;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import io.micrometer.core.instrument.MeterRegistry;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
 
+/**
+ * Reads return immutable widgets, writes take a {@link Widget} where id and zIndex are optional
+ */
 public interface WidgetRepo {
-    List<Widget> findAllSorted();
-    List<Widget> findGreaterThanEqualZindex(Long zIndex);
-    Optional<Widget> findById(Long id);
-    Optional<Widget> findByZindex(Long zIndex);
-    Widget addWidget(Widget widget);
-    Widget updateWidget(Widget newWidget);
+    //Widgets read at once by the default forEachSorted
+    int EXPORT_CHUNK = 1024;
+
+    List<WidgetRecord> findAllSorted();
+    /**
+     * Page of the zIndex sorted widgets, pages start from 1. Empty if page is after the last widget
+     */
+    List<WidgetRecord> findPage(int page, int size);
+    /**
+     * Keyset page: at most limit widgets with zIndex strictly greater than the given one, sorted by zIndex.
+     * Starts from the first widget when zIndex is null. Unlike {@link #findPage} the cost doesn't grow with the depth.
+     */
+    List<WidgetRecord> findAfterZindex(Long zIndex, int limit);
+    List<WidgetRecord> findGreaterThanEqualZindex(Long zIndex);
+    Optional<WidgetRecord> findById(Long id);
+    Optional<WidgetRecord> findByZindex(Long zIndex);
+    /**
+     * Widgets falling entirely inside the area, sorted by zIndex
+     */
+    List<WidgetRecord> findInArea(Rectangle area);
+    /**
+     * Widgets covering the point (borders included), topmost first
+     */
+    List<WidgetRecord> findAtPoint(long x, long y);
+    /**
+     * Other widgets intersecting the widget's rectangle (touching borders included), sorted by zIndex
+     * @throws com.miro.platform.widget.domain.exceptions.ResourceNotFoundException when there's no such widget
+     */
+    List<WidgetRecord> findOverlapping(Long id);
+    WidgetRecord addWidget(Widget widget);
+    WidgetRecord updateWidget(Widget newWidget);
     void removeWidget(Long id);
     long getForeground();
+
+    /**
+     * Number of widgets on the board
+     */
+    default long count() {
+        return findAllSorted().size();
+    }
+
+    /**
+     * Registers the meters of the repo, if it has any. Only called on the configured repo
+     */
+    default void bindMetrics(MeterRegistry registry) {
+    }
+
+    /**
+     * Changes of every write are handed to the listener once applied, see {@link WidgetChangeListener}.
+     * H2 storage doesn't report them, WidgetH2Service does.
+     */
+    default void setChangeListener(WidgetChangeListener listener) {
+    }
+
+    /**
+     * Changes since the given board version, see {@link WidgetChanges}.
+     * Storages not versioning their writes always answer with a resync.
+     */
+    default WidgetChanges findChangesSince(long version) {
+        return WidgetChanges.resync(0, findAllSorted());
+    }
+
+    /**
+     * Same changes when they are kept, null otherwise: never reads the widgets for a resync,
+     * for callers only asking whether anything they care about changed
+     */
+    default WidgetChanges findDeltaSince(long version) {
+        return null;
+    }
+
+    /**
+     * Current board version, changing with every write. Read before the widgets it tags:
+     * they are then at least as new as the version. Empty for storages not versioning their writes.
+     */
+    default OptionalLong getVersion() {
+        return OptionalLong.empty();
+    }
+
+    /**
+     * Every widget sorted by zIndex without building the whole list, for exports of large boards.
+     * Default implementation reads keyset pages of {@link #EXPORT_CHUNK} widgets, each read on its own,
+     * so writers aren't held off meanwhile but widgets shifted between two pages may be skipped or seen twice.
+     */
+    default void forEachSorted(Consumer<WidgetRecord> action) {
+        Long after = null;
+        List<WidgetRecord> chunk;
+        do {
+            chunk = findAfterZindex(after, EXPORT_CHUNK);
+            chunk.forEach(action);
+            if (!chunk.isEmpty())
+                after = chunk.get(chunk.size() - 1).getzIndex();
+        } while (chunk.size() == EXPORT_CHUNK);
+    }
+
+    /**
+     * Adds one to the zIndex of every widget with from <= zIndex < to, order of the widgets is kept,
+     * so zIndex to must be free (or above the foreground).
+     * Default implementation updates them one by one from the top, so every target zIndex is already free.
+     * @return number of widgets shifted
+     */
+    default int shiftZindexes(long from, long to) {
+        List<WidgetRecord> toShift = new ArrayList<>(findGreaterThanEqualZindex(from));
+        Collections.sort(toShift);
+        int shifted = 0;
+        for (int i = toShift.size() - 1; i >= 0; i--) {
+            WidgetRecord widget = toShift.get(i);
+            if (widget.getzIndex() >= to)
+                continue;
+            updateWidget(widget.withZIndex(widget.getzIndex() + 1).toWidget());
+            shifted++;
+        }
+        return shifted;
+    }
+
+    /**
+     * Gives the widgets zIndexes 0, gap, 2 * gap... keeping their order.
+     * Default implementation first moves down, going up, the widgets getting a lower zIndex and then moves up,
+     * going down, the ones getting a higher zIndex, so no widget is ever moved on an occupied zIndex.
+     */
+    default void renumberZindexes(long gap) {
+        List<WidgetRecord> widgets = findAllSorted();
+        for (int i = 0; i < widgets.size(); i++) {
+            if (i * gap < widgets.get(i).getzIndex())
+                updateWidget(widgets.get(i).withZIndex(i * gap).toWidget());
+        }
+        for (int i = widgets.size() - 1; i >= 0; i--) {
+            if (i * gap > widgets.get(i).getzIndex())
+                updateWidget(widgets.get(i).withZIndex(i * gap).toWidget());
+        }
+    }
+
+    /**
+     * Applies the commands in order, each one on its own: a failing command doesn't stop the next ones.
+     * Repos that can apply the whole batch under one write (and share the shifting work) override this.
+     * @return one result per command, in the same order
+     */
+    default List<WidgetCommand.Result> applyBatch(List<WidgetCommand> commands) {
+        List<WidgetCommand.Result> results = new ArrayList<>(commands.size());
+        for (WidgetCommand command : commands) {
+            try {
+                switch (command.getType()) {
+                    case ADD:
+                        results.add(WidgetCommand.Result.ok(addWidget(command.getWidget())));
+                        break;
+                    case UPDATE:
+                        results.add(WidgetCommand.Result.ok(updateWidget(command.getWidget())));
+                        break;
+                    default:
+                        removeWidget(command.getId());
+                        results.add(WidgetCommand.Result.ok(null));
+                }
+            } catch (RuntimeException e) {
+                results.add(WidgetCommand.Result.failed(e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Applies all the commands in order or none of them, throwing what the first failing command fails with.
+     * Default implementation validates the whole batch first, so it's only atomic if callers
+     * keep other writers out meanwhile (as services do), repos with their own lock override it.
+     * @return resulting widget of every command, null for removes
+     */
+    default List<WidgetRecord> applyAtomically(List<WidgetCommand> commands) {
+        WidgetCommand.validateAll(commands, id -> findById(id).isPresent());
+        List<WidgetRecord> widgets = new ArrayList<>(commands.size());
+        for (WidgetCommand.Result result : applyBatch(commands)) {
+            if (!result.isSuccess())
+                throw result.getError();
+            widgets.add(result.getWidget());
+        }
+        return widgets;
+    }
 }
@@ -0,0 +1,652 @@
+package com.miro.platform.widget.domain.repository;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import com.miro.platform.widget.domain.spatial.SpatialGridIndex;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.stereotype.Repository;
+
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * In memory storage keeping widgets in a treap ordered by zIndex.
+ * Every node carries a lazy "add k to the zIndex of my children subtrees" tag, so
+ * shifting all widgets with zIndex >= z is a split plus one tag update, O(log n) instead of
+ * the O(n) walk done by {@link WidgetCustomRepo}.
+ */
+@Repository("treap")
+public class WidgetTreapRepo implements WidgetRepo {
+    private final Map<Long, Node> id2Node;
+    private final SpatialGridIndex<Long> spatialIndex;
+    private Node root;
+    private long foreground;
+    private final Random random;
+    private final StampedLock stampedLock;
+    private final IdGenerator idGenerator;
+    //Gets the changes of every write, null when nobody listens
+    private volatile WidgetChangeListener changeListener;
+    //Changes of the write in progress
+    private final List<WidgetChangeEvent> changes = new ArrayList<>();
+    //Board version and changes of the last writes
+    private final WidgetChangeLog changeLog;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetTreapRepo.class);
+
+    @Autowired
+    public WidgetTreapRepo(IdGenerator idGenerator,
+                    @Value("${storage.changes.capacity:" + WidgetChangeLog.DEFAULT_CAPACITY + "}") int changesCapacity) {
+        this(idGenerator, new ArrayList<>(), changesCapacity);
+    }
+
+    public WidgetTreapRepo(IdGenerator idGenerator) {
+        this(idGenerator, new ArrayList<>());
+    }
+
+    public WidgetTreapRepo(IdGenerator idGenerator, List<Widget> toCopyList) {
+        this(idGenerator, toCopyList, WidgetChangeLog.DEFAULT_CAPACITY);
+    }
+
+    public WidgetTreapRepo(IdGenerator idGenerator, List<Widget> toCopyList, int changesCapacity) {
+        this.idGenerator = idGenerator;
+        changeLog = new WidgetChangeLog(changesCapacity);
+        id2Node = new HashMap<>();
+        spatialIndex = new SpatialGridIndex<>();
+        random = new Random();
+        stampedLock = new StampedLock();
+        foreground = -1;
+        initFromList(toCopyList);
+    }
+
+    private void initFromList(List<Widget> toCopyList) {
+        List<Widget> widgetList = new ArrayList<>(toCopyList);
+        Collections.sort(widgetList);
+        Long previousZindex = null;
+        for (Widget widget : widgetList) {
+            if (widget.getId() != null && id2Node.containsKey(widget.getId()))
+                throw new IllegalStateException("List is initialized with non-unique ids");
+            if (widget.getzIndex().equals(previousZindex))
+                throw new IllegalStateException("List is initialized with non-unique z-indexes");
+
+            Widget copy = copyInput(widget);
+            if (copy.getId() == null)
+                copy.setId(idGenerator.getNextId());
+
+            //Input is sorted, so every node is appended on the right spine
+            WidgetRecord record = WidgetRecord.from(copy);
+            Node node = new Node(record, random.nextInt());
+            id2Node.put(record.getId(), node);
+            spatialIndex.put(record.getId(), Rectangle.of(record));
+            root = merge(root, node);
+            previousZindex = widget.getzIndex();
+        }
+        if (root != null)
+            root.parent = null;
+        foreground = computeForeground();
+    }
+
+    //Stamped before the write lock is released, so a read locking after this sees at least this version
+    @Override
+    public OptionalLong getVersion() {
+        return OptionalLong.of(changeLog.getVersion());
+    }
+
+    @Override
+    public long getForeground() {
+        return foreground;
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        changeListener = listener;
+    }
+
+    //Called by writers before releasing the write lock, so changes keep their order and every write its version
+    private void emitChanges() {
+        if (!changes.isEmpty()) {
+            List<WidgetChangeEvent> events = List.copyOf(changes);
+            long version = changeLog.append(events);
+            if (changeListener != null)
+                changeListener.onChanges(version, events);
+        }
+        changes.clear();
+    }
+
+    /**
+     * Reads walk the tree, and a writer may be splitting/merging it at the same time,
+     * so unlike WidgetCustomRepo optimistic reads can't be used here. Normal read lock.
+     */
+    @Override
+    public List<WidgetRecord> findAllSorted() {
+        long stamp = stampedLock.readLock();
+        try {
+            return collectAll();
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Under the read lock so a resync and its version match
+     */
+    @Override
+    public WidgetChanges findChangesSince(long version) {
+        long stamp = stampedLock.readLock();
+        try {
+            WidgetChanges changes = changeLog.since(version);
+            return changes != null ? changes : WidgetChanges.resync(changeLog.getVersion(), collectAll());
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    //The log is consistent on its own, no lock without a resync
+    @Override
+    public WidgetChanges findDeltaSince(long version) {
+        return changeLog.since(version);
+    }
+
+    private List<WidgetRecord> collectAll() {
+        List<WidgetRecord> list = new ArrayList<>(size(root));
+        collectGreaterThanEqual(root, 0L, Long.MIN_VALUE, list);
+        return list;
+    }
+
+    /**
+     * Skips whole subtrees using their sizes, so O(log n + size) whatever the page is
+     */
+    @Override
+    public List<WidgetRecord> findPage(int page, int size) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> list = new ArrayList<>();
+            long from = (long) (page - 1) * size;
+            if (from < size(root))
+                collectRange(root, 0L, from, from + size, list);
+            return list;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Descends to the first widget after zIndex and stops after limit widgets, so O(log n + limit)
+     */
+    @Override
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> list = new ArrayList<>();
+            if (zIndex == null)
+                collectRange(root, 0L, 0L, limit, list);
+            else
+                collectGreaterThan(root, 0L, zIndex, limit, list);
+            return list;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<WidgetRecord> findGreaterThanEqualZindex(Long zIndex) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> list = new ArrayList<>();
+            collectGreaterThanEqual(root, 0L, zIndex, list);
+            return list;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Optional<WidgetRecord> findById(Long id) {
+        long stamp = stampedLock.readLock();
+        try {
+            Node node = id2Node.get(id);
+            if (node == null)
+                return Optional.empty();
+            return Optional.of(view(node, realZindex(node)));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public Optional<WidgetRecord> findByZindex(Long zIndex) {
+        long stamp = stampedLock.readLock();
+        try {
+            Node node = findNode(zIndex);
+            if (node == null)
+                return Optional.empty();
+            return Optional.of(view(node, zIndex));
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long id : spatialIndex.query(area, area::contains)) {
+                Node node = id2Node.get(id);
+                result.add(view(node, realZindex(node)));
+            }
+            Collections.sort(result);
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Grid lookup of the cells the widget's rectangle spans, only widgets near it are checked
+     */
+    @Override
+    public List<WidgetRecord> findOverlapping(Long id) {
+        long stamp = stampedLock.readLock();
+        try {
+            Node widget = id == null ? null : id2Node.get(id);
+            if (widget == null)
+                throw new ResourceNotFoundException("No widget with id: " + id);
+            Rectangle area = Rectangle.of(view(widget, realZindex(widget)));
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long other : spatialIndex.query(area, area::intersects)) {
+                if (other.equals(id))
+                    continue;
+                Node node = id2Node.get(other);
+                result.add(view(node, realZindex(node)));
+            }
+            Collections.sort(result);
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Grid lookup of the point's cell on every level, only widgets near the point are checked
+     */
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        long stamp = stampedLock.readLock();
+        try {
+            List<WidgetRecord> result = new ArrayList<>();
+            for (Long id : spatialIndex.query(new Rectangle(x, y, x, y), rectangle -> rectangle.contains(x, y))) {
+                Node node = id2Node.get(id);
+                result.add(view(node, realZindex(node)));
+            }
+            result.sort(Collections.reverseOrder());
+            return result;
+        } finally {
+            stampedLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetRecord record = internalAddWidget(copyInput(widget));
+            changes.add(WidgetChangeEvent.added(record));
+            return record;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public WidgetRecord updateWidget(Widget newWidget) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetRecord record = internalUpdateWidget(copyInput(newWidget));
+            changes.add(WidgetChangeEvent.updated(record));
+            return record;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void removeWidget(Long id) {
+        long stamp = stampedLock.writeLock();
+        try {
+            internalRemoveWidget(id);
+            changes.add(WidgetChangeEvent.removed(id));
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Whole batch under one write lock and one change log version, a failing command doesn't stop the next ones
+     */
+    @Override
+    public List<WidgetCommand.Result> applyBatch(List<WidgetCommand> commands) {
+        long stamp = stampedLock.writeLock();
+        try {
+            List<WidgetCommand.Result> results = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                try {
+                    results.add(WidgetCommand.Result.ok(internalApply(command)));
+                } catch (RuntimeException e) {
+                    results.add(WidgetCommand.Result.failed(e));
+                }
+            }
+            return results;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Validated as a whole first, so nothing gets applied if any command would fail
+     */
+    @Override
+    public List<WidgetRecord> applyAtomically(List<WidgetCommand> commands) {
+        long stamp = stampedLock.writeLock();
+        try {
+            WidgetCommand.validateAll(commands, id2Node::containsKey);
+            List<WidgetRecord> widgets = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                widgets.add(internalApply(command));
+            }
+            return widgets;
+        } finally {
+            emitChanges();
+            stampedLock.unlockWrite(stamp);
+        }
+    }
+
+    private WidgetRecord internalApply(WidgetCommand command) {
+        switch (command.getType()) {
+            case ADD:
+                WidgetRecord record = internalAddWidget(copyInput(command.getWidget()));
+                changes.add(WidgetChangeEvent.added(record));
+                return record;
+            case UPDATE:
+                record = internalUpdateWidget(copyInput(command.getWidget()));
+                changes.add(WidgetChangeEvent.updated(record));
+                return record;
+            default:
+                internalRemoveWidget(command.getId());
+                changes.add(WidgetChangeEvent.removed(command.getId()));
+                return null;
+        }
+    }
+
+    private WidgetRecord internalAddWidget(Widget widget) {
+        widget.validForOperationOrThrow();
+
+        if (widget.getId() != null && id2Node.containsKey(widget.getId())) {
+            throw new DuplicateKeyException("Trying to insert duplicate Id");
+        }
+
+        if (widget.getId() == null) {
+            widget.setId(idGenerator.getNextId());
+        }
+
+        //Adding one to current foreground to bring the widget to the top
+        long zIndex = widget.getzIndex() == null ? foreground + 1 : widget.getzIndex();
+        widget.setzIndex(zIndex);
+        WidgetRecord record = WidgetRecord.from(widget, System.currentTimeMillis());
+        boolean shift = findNode(zIndex) != null;
+
+        Node[] split = split(root, zIndex);
+        if (shift && split[1] != null) {
+            changes.add(WidgetChangeEvent.shifted(zIndex));
+            //Whole upper part moves one step up, children get it lazily
+            split[1].zIndex++;
+            split[1].pendingShift++;
+        }
+        Node node = new Node(record, random.nextInt());
+        id2Node.put(record.getId(), node);
+        spatialIndex.put(record.getId(), Rectangle.of(record));
+        setRoot(merge(merge(split[0], node), split[1]));
+        foreground = Math.max(foreground, computeForeground());
+        return record;
+    }
+
+    private WidgetRecord internalUpdateWidget(Widget newWidget) {
+        newWidget.validForOperationOrThrow();
+
+        Long id = newWidget.getId();
+        Node node = id2Node.get(id);
+        if (node == null)
+            throw new ResourceNotFoundException("No widget with id: " + id);
+
+        long zIndex = realZindex(node);
+        //Not changing zIndex, then replace node's widget directly
+        if (newWidget.getzIndex() != null && newWidget.getzIndex() == zIndex) {
+            node.widget = WidgetRecord.from(newWidget, System.currentTimeMillis());
+            spatialIndex.put(id, Rectangle.of(node.widget));
+            return node.widget;
+        } else {
+            internalRemoveWidget(id);
+            return internalAddWidget(newWidget);
+        }
+    }
+
+    private void internalRemoveWidget(Long id) {
+        Node node = id2Node.get(id);
+        if (node == null)
+            throw new ResourceNotFoundException("No widget with id: " + id);
+
+        long zIndex = realZindex(node);
+        Node[] lower = split(root, zIndex);
+        Node[] upper = split(lower[1], zIndex + 1);
+        setRoot(merge(lower[0], upper[1]));
+        id2Node.remove(id);
+        spatialIndex.remove(id);
+        foreground = computeForeground();
+    }
+
+    /**
+     * Stored widget keeps the zIndex it had when put in the node, shifts since then only changed node's zIndex
+     */
+    private static WidgetRecord view(Node node, long zIndex) {
+        return node.widget.getzIndex() == zIndex ? node.widget : node.widget.withZIndex(zIndex);
+    }
+
+    //Id and zIndex get assigned on the input, caller's widget must stay as is
+    private Widget copyInput(Widget widget) {
+        return Widget.Builder
+                .emptyWidget()
+                .withId(widget.getId())
+                .withZIndex(widget.getzIndex())
+                .withWidth(widget.getWidth())
+                .withHeight(widget.getHeight())
+                .withX(widget.getX())
+                .withY(widget.getY())
+                .withLastUpdate(widget.getLastUpdate())
+                .build();
+    }
+
+    private void setRoot(Node node) {
+        root = node;
+        if (root != null)
+            root.parent = null;
+    }
+
+    private long computeForeground() {
+        if (root == null)
+            return -1;
+        Node node = root;
+        long pending = 0;
+        while (node.right != null) {
+            pending += node.pendingShift;
+            node = node.right;
+        }
+        return node.zIndex + pending;
+    }
+
+    /**
+     * A node's zIndex is only missing the shifts still pending in its ancestors,
+     * so walking up is enough and nothing is pushed down (safe for readers).
+     */
+    private long realZindex(Node node) {
+        long zIndex = node.zIndex;
+        for (Node parent = node.parent; parent != null; parent = parent.parent) {
+            zIndex += parent.pendingShift;
+        }
+        return zIndex;
+    }
+
+    private Node findNode(long zIndex) {
+        Node node = root;
+        long pending = 0;
+        while (node != null) {
+            long nodeZindex = node.zIndex + pending;
+            if (nodeZindex == zIndex)
+                return node;
+            pending += node.pendingShift;
+            node = zIndex < nodeZindex ? node.left : node.right;
+        }
+        return null;
+    }
+
+    private void collectGreaterThanEqual(Node node, long pending, long zIndex, List<WidgetRecord> result) {
+        if (node == null)
+            return;
+        long nodeZindex = node.zIndex + pending;
+        long childPending = pending + node.pendingShift;
+        if (nodeZindex >= zIndex) {
+            collectGreaterThanEqual(node.left, childPending, zIndex, result);
+            result.add(view(node, nodeZindex));
+        }
+        collectGreaterThanEqual(node.right, childPending, zIndex, result);
+    }
+
+    private void collectGreaterThan(Node node, long pending, long zIndex, int limit, List<WidgetRecord> result) {
+        if (node == null || result.size() >= limit)
+            return;
+        long nodeZindex = node.zIndex + pending;
+        long childPending = pending + node.pendingShift;
+        if (nodeZindex > zIndex) {
+            collectGreaterThan(node.left, childPending, zIndex, limit, result);
+            if (result.size() < limit)
+                result.add(view(node, nodeZindex));
+        }
+        collectGreaterThan(node.right, childPending, zIndex, limit, result);
+    }
+
+    /**
+     * Collects in-order positions [from, to) of the subtree
+     */
+    private void collectRange(Node node, long pending, long from, long to, List<WidgetRecord> result) {
+        if (node == null || from >= to || to <= 0 || from >= node.size)
+            return;
+        long childPending = pending + node.pendingShift;
+        int leftSize = size(node.left);
+        collectRange(node.left, childPending, from, to, result);
+        if (from <= leftSize && leftSize < to)
+            result.add(view(node, node.zIndex + pending));
+        collectRange(node.right, childPending, from - leftSize - 1, to - leftSize - 1, result);
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void push(Node node) {
+        if (node.pendingShift == 0)
+            return;
+        if (node.left != null) {
+            node.left.zIndex += node.pendingShift;
+            node.left.pendingShift += node.pendingShift;
+        }
+        if (node.right != null) {
+            node.right.zIndex += node.pendingShift;
+            node.right.pendingShift += node.pendingShift;
+        }
+        node.pendingShift = 0;
+    }
+
+    private static void update(Node node) {
+        node.size = 1 + size(node.left) + size(node.right);
+        if (node.left != null)
+            node.left.parent = node;
+        if (node.right != null)
+            node.right.parent = node;
+    }
+
+    /**
+     * Splits into [nodes with zIndex < given zIndex, nodes with zIndex >= given zIndex]
+     */
+    private static Node[] split(Node node, long zIndex) {
+        if (node == null)
+            return new Node[]{null, null};
+        push(node);
+        if (node.zIndex < zIndex) {
+            Node[] split = split(node.right, zIndex);
+            node.right = split[0];
+            update(node);
+            split[0] = node;
+            return split;
+        } else {
+            Node[] split = split(node.left, zIndex);
+            node.left = split[1];
+            update(node);
+            split[1] = node;
+            return split;
+        }
+    }
+
+    /**
+     * All zIndexes in lower must be smaller than all zIndexes in upper
+     */
+    private static Node merge(Node lower, Node upper) {
+        if (lower == null)
+            return upper;
+        if (upper == null)
+            return lower;
+        if (lower.priority > upper.priority) {
+            push(lower);
+            lower.right = merge(lower.right, upper);
+            update(lower);
+            return lower;
+        } else {
+            push(upper);
+            upper.left = merge(lower, upper.left);
+            update(upper);
+            return upper;
+        }
+    }
+
+    private static final class Node {
+        //zIndex of the widget itself may be stale, node's zIndex is the source of truth
+        private WidgetRecord widget;
+        private final int priority;
+        private long zIndex;
+        //Not applied yet to children subtrees
+        private long pendingShift;
+        private int size;
+        private Node left;
+        private Node right;
+        private Node parent;
+
+        private Node(WidgetRecord widget, int priority) {
+            this.widget = widget;
+            this.priority = priority;
+            this.zIndex = widget.getzIndex();
+            this.size = 1;
+        }
+    }
+}
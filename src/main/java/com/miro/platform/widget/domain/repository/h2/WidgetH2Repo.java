@@ -1,19 +1,37 @@
 package com.miro.platform.widget.domain.repository.h2;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
 import com.miro.platform.widget.domain.repository.WidgetRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import org.hibernate.jpa.QueryHints;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+/**
+ * Entities never leave this class, they are converted to immutable widgets at the boundary
+ */
 @Repository("h2")
 public class WidgetH2Repo implements WidgetRepo {
+    private static final int EXPORT_FETCH_SIZE = 256;
     public final WidgetJpaRepo jpaRepo;
+    @PersistenceContext
+    private EntityManager entityManager;
     private static final Logger logger = LoggerFactory.getLogger(WidgetH2Repo.class);
 
     @Autowired
@@ -22,33 +40,108 @@ public class WidgetH2Repo implements WidgetRepo {
     }
 
     @Override
-    public List<Widget> findAllSorted() {
-        return jpaRepo.findAll(Sort.by(Sort.Direction.ASC, "zIndex"));
+    public List<WidgetRecord> findAllSorted() {
+        return toRecords(jpaRepo.findAll(Sort.by(Sort.Direction.ASC, "zIndex")));
     }
 
+    /**
+     * One query read through a database cursor with a fetch size, every entity is detached once converted
+     * so the persistence context doesn't end up holding the whole board.
+     * Straight from the EntityManager, Spring Data stream queries don't see the surrounding transaction here.
+     */
     @Override
-    public List<Widget> findGreaterThanEqualZindex(Long zIndex) {
-        return jpaRepo.findWidgetByzIndexGreaterThanEqual(zIndex);
+    @Transactional(readOnly = true)
+    public void forEachSorted(Consumer<WidgetRecord> action) {
+        try (Stream<Widget> widgets = entityManager
+                .createQuery("select w from Widget w order by w.zIndex", Widget.class)
+                .setHint(QueryHints.HINT_FETCH_SIZE, EXPORT_FETCH_SIZE)
+                .setHint(QueryHints.HINT_READONLY, true)
+                .getResultStream()) {
+            widgets.forEach(widget -> {
+                entityManager.detach(widget);
+                action.accept(WidgetRecord.from(widget));
+            });
+        }
     }
 
     @Override
-    public Optional<Widget> findById(Long id) {
-        return jpaRepo.findById(id);
+    public List<WidgetRecord> findPage(int page, int size) {
+        return toRecords(jpaRepo.findAll(PageRequest.of(page - 1, size, Sort.by(Sort.Direction.ASC, "zIndex"))).getContent());
     }
 
     @Override
-    public Optional<Widget> findByZindex(Long zIndex) {
-        return jpaRepo.findByzIndex(zIndex);
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        if (zIndex == null)
+            return findPage(1, limit);
+        return toRecords(jpaRepo.findAfterZindex(zIndex, PageRequest.of(0, limit)));
     }
 
     @Override
-    public Widget addWidget(Widget widget) {
-        return jpaRepo.save(widget);
+    public List<WidgetRecord> findGreaterThanEqualZindex(Long zIndex) {
+        return toRecords(jpaRepo.findWidgetByzIndexGreaterThanEqual(zIndex));
     }
 
     @Override
-    public Widget updateWidget(Widget newWidget) {
-        return jpaRepo.save(newWidget);
+    public Optional<WidgetRecord> findById(Long id) {
+        return jpaRepo.findById(id).map(WidgetRecord::from);
+    }
+
+    @Override
+    public Optional<WidgetRecord> findByZindex(Long zIndex) {
+        return jpaRepo.findByzIndex(zIndex).map(WidgetRecord::from);
+    }
+
+    @Override
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        return toRecords(jpaRepo.findInArea(area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY()));
+    }
+
+    /**
+     * Both max sizes are an index lookup, they bound the range read on the (x, y) index:
+     * a widget starting further left than the widest one's width can't reach x
+     */
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        return toRecords(jpaRepo.findAtPoint(x, y, x - getMaxWidth(), y - getMaxHeight()));
+    }
+
+    @Override
+    public List<WidgetRecord> findOverlapping(Long id) {
+        Rectangle area = findById(id).map(Rectangle::of)
+                .orElseThrow(() -> new ResourceNotFoundException("No widget with id: " + id));
+        return toRecords(jpaRepo.findIntersecting(id, area.getMinX(), area.getMinY(), area.getMaxX(), area.getMaxY(),
+                area.getMinX() - getMaxWidth(), area.getMinY() - getMaxHeight()));
+    }
+
+    private long getMaxWidth() {
+        return jpaRepo.getMaxWidth().orElse(0L);
+    }
+
+    private long getMaxHeight() {
+        return jpaRepo.getMaxHeight().orElse(0L);
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
+        return WidgetRecord.from(jpaRepo.save(widget));
+    }
+
+    /**
+     * Input doesn't carry the stored version, so the stored entity is loaded and changed,
+     * its version is then checked on flush
+     */
+    @Override
+    @Transactional
+    public WidgetRecord updateWidget(Widget newWidget) {
+        Widget widget = jpaRepo.findById(newWidget.getId())
+                .orElseThrow(() -> new ResourceNotFoundException("No widget with id: " + newWidget.getId()));
+        widget.setX(newWidget.getX());
+        widget.setY(newWidget.getY());
+        widget.setWidth(newWidget.getWidth());
+        widget.setHeight(newWidget.getHeight());
+        widget.setzIndex(newWidget.getzIndex());
+        widget.setLastUpdate(newWidget.getLastUpdate());
+        return WidgetRecord.from(jpaRepo.saveAndFlush(widget));
     }
 
     @Override
@@ -56,9 +149,51 @@ public class WidgetH2Repo implements WidgetRepo {
         return jpaRepo.getMaxZindex().orElse(-1L);
     }
 
+    @Override
+    public long count() {
+        return jpaRepo.count();
+    }
+
+    /**
+     * Two bulk updates instead of a save per widget. zIndex is unique and the database may check it row by row,
+     * so the widgets are first moved as a block above the foreground (where nothing can collide)
+     * and then brought back down to their zIndex plus one.
+     */
+    @Override
+    @Transactional
+    public int shiftZindexes(long from, long to) {
+        Optional<Long> foreground = jpaRepo.getMaxZindex();
+        if (foreground.isEmpty() || foreground.get() < from)
+            return 0;
+        long offset = foreground.get() - from + 2;
+        int shifted = jpaRepo.offsetZindexes(from, to, offset);
+        jpaRepo.offsetZindexes(foreground.get() + 1, Long.MAX_VALUE, 1 - offset);
+        return shifted;
+    }
+
+    /**
+     * Same as shifting, everything is first moved as a block above both current and new zIndexes
+     */
+    @Override
+    @Transactional
+    public void renumberZindexes(long gap) {
+        List<Widget> widgets = jpaRepo.findAll(Sort.by(Sort.Direction.ASC, "zIndex"));
+        if (widgets.isEmpty())
+            return;
+        long min = widgets.get(0).getzIndex();
+        long top = Math.max(widgets.get(widgets.size() - 1).getzIndex(), (widgets.size() - 1) * gap);
+        jpaRepo.offsetZindexes(min, Long.MAX_VALUE, top - min + 1);
+        for (int i = 0; i < widgets.size(); i++) {
+            jpaRepo.setZindex(widgets.get(i).getId(), i * gap);
+        }
+    }
+
     @Override
     public void removeWidget(Long id) {
         jpaRepo.deleteById(id);
     }
 
+    private static List<WidgetRecord> toRecords(List<Widget> widgets) {
+        return widgets.stream().map(WidgetRecord::from).collect(Collectors.toList());
+    }
 }
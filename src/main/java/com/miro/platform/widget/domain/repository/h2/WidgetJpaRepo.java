@@ -1,8 +1,11 @@
 package com.miro.platform.widget.domain.repository.h2;
 
 import com.miro.platform.widget.domain.Widget;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 
 import java.util.List;
 import java.util.Optional;
@@ -10,6 +13,36 @@ import java.util.Optional;
 public interface WidgetJpaRepo extends JpaRepository<Widget, Long> {
     List<Widget> findWidgetByzIndexGreaterThanEqual(Long zIndex);
     Optional<Widget> findByzIndex(Long zIndex);
+    //Limit comes from the pageable, always of the first page
+    @Query(value = "select w from Widget w where w.zIndex > :zIndex order by w.zIndex")
+    List<Widget> findAfterZindex(@Param("zIndex") Long zIndex, Pageable pageable);
     @Query(value = "select max(zIndex) from Widget")
     Optional<Long> getMaxZindex();
+    //Bulk updates skip the persistence context, so it's flushed before and cleared after.
+    //Versions are bumped by hand, so concurrent writers holding the old zIndex fail on their flush
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "update Widget w set w.zIndex = w.zIndex + :offset, w.version = w.version + 1 " +
+            "where w.zIndex >= :from and w.zIndex < :to")
+    int offsetZindexes(@Param("from") Long from, @Param("to") Long to, @Param("offset") Long offset);
+    @Modifying(flushAutomatically = true, clearAutomatically = true)
+    @Query(value = "update Widget w set w.zIndex = :zIndex, w.version = w.version + 1 where w.id = :id")
+    int setZindex(@Param("id") Long id, @Param("zIndex") Long zIndex);
+    @Query(value = "select max(w.width) from Widget w")
+    Optional<Long> getMaxWidth();
+    @Query(value = "select max(w.height) from Widget w")
+    Optional<Long> getMaxHeight();
+    //Upper bounds on x and y are implied by the others, they're there so the (x, y) index is read as a range
+    @Query(value = "select w from Widget w where w.x >= :minX and w.x <= :maxX and w.y >= :minY and w.y <= :maxY " +
+            "and w.x + w.width <= :maxX and w.y + w.height <= :maxY order by w.zIndex")
+    List<Widget> findInArea(@Param("minX") Long minX, @Param("minY") Long minY,
+                            @Param("maxX") Long maxX, @Param("maxY") Long maxY);
+    //fromX and fromY: x and y minus the widest and tallest widget's size, nothing starting before them can reach the point
+    @Query(value = "select w from Widget w where w.x >= :fromX and w.x <= :x and w.y >= :fromY and w.y <= :y " +
+            "and w.x + w.width >= :x and w.y + w.height >= :y order by w.zIndex desc")
+    List<Widget> findAtPoint(@Param("x") Long x, @Param("y") Long y, @Param("fromX") Long fromX, @Param("fromY") Long fromY);
+    @Query(value = "select w from Widget w where w.id <> :id and w.x >= :fromX and w.x <= :maxX " +
+            "and w.y >= :fromY and w.y <= :maxY and w.x + w.width >= :minX and w.y + w.height >= :minY order by w.zIndex")
+    List<Widget> findIntersecting(@Param("id") Long id, @Param("minX") Long minX, @Param("minY") Long minY,
+                                  @Param("maxX") Long maxX, @Param("maxY") Long maxY,
+                                  @Param("fromX") Long fromX, @Param("fromY") Long fromY);
 }
@@ -0,0 +1,94 @@
+package com.miro.platform.widget.domain.service;
+
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategyFactory;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.persistence.WidgetStoreFactory;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Independent boards, each with its own {@link WidgetCustomRepo}: own lock, indexes, ids, zIndexes and change log,
+ * so writes to different boards never wait for each other and spread over the cores.
+ * A board is created on its first request (loaded from its directory when persistence is on) and kept until shutdown.
+ * The unscoped /widgets routes are not one of these boards, they keep using the configured service.
+ */
+@Component
+public class WidgetBoardRegistry {
+    private static final Pattern BOARD_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private final ConcurrentHashMap<String, Board> boards = new ConcurrentHashMap<>();
+    private final Function<String, WidgetCustomRepo> repoFactory;
+    private final int maxBoards;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetBoardRegistry.class);
+
+    @Autowired
+    public WidgetBoardRegistry(ConcurrencyStrategyFactory concurrencyFactory, WidgetStoreFactory storeFactory,
+                               @Value("${storage.changes.capacity:" + WidgetChangeLog.DEFAULT_CAPACITY + "}") int changesCapacity,
+                               @Value("${boards.max-count:10000}") int maxBoards,
+                               ObjectProvider<MeterRegistry> meterRegistry) {
+        //Boards share the lock meters, per board meters would grow with the number of boards
+        this(boardId -> new WidgetCustomRepo(new IdGenerator(), concurrencyFactory.createFor("board"),
+                storeFactory.openBoard(boardId), changesCapacity), maxBoards);
+        meterRegistry.ifAvailable(registry -> Gauge.builder("widgets.boards", this, WidgetBoardRegistry::size)
+                .register(registry));
+    }
+
+    public WidgetBoardRegistry(Function<String, WidgetCustomRepo> repoFactory, int maxBoards) {
+        if (maxBoards < 1)
+            throw new IllegalArgumentException("At least one board must be allowed");
+        this.repoFactory = repoFactory;
+        this.maxBoards = maxBoards;
+    }
+
+    /**
+     * Service of the board, created on the first call for that id
+     */
+    public WidgetService get(String boardId) {
+        if (boardId == null || !BOARD_ID.matcher(boardId).matches())
+            throw new IllegalArgumentException("Board id must be 1 to 64 letters, digits, '-' or '_'");
+        //Plain read first, computeIfAbsent locks its bin even when the board exists
+        Board board = boards.get(boardId);
+        if (board == null)
+            board = boards.computeIfAbsent(boardId, this::create);
+        return board.service;
+    }
+
+    public int size() {
+        return boards.size();
+    }
+
+    private Board create(String boardId) {
+        if (boards.size() >= maxBoards)
+            throw new IllegalStateException("Can't create board " + boardId + ", limit of " + maxBoards + " reached");
+        WidgetCustomRepo repo = repoFactory.apply(boardId);
+        logger.info("Created board {}", boardId);
+        return new Board(repo);
+    }
+
+    @PreDestroy
+    public void close() {
+        boards.values().forEach(board -> board.repo.close());
+    }
+
+    private static final class Board {
+        private final WidgetCustomRepo repo;
+        private final WidgetService service;
+
+        private Board(WidgetCustomRepo repo) {
+            this.repo = repo;
+            this.service = new WidgetCustomService(repo);
+        }
+    }
+}
@@ -1,18 +1,25 @@
 package com.miro.platform.widget.domain.service;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChanges;
 import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
 import com.miro.platform.widget.domain.repository.WidgetRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
 
 @Service("customService")
 public class WidgetCustomService implements WidgetService {
+    static final int MAX_BATCH_SIZE = 1000;
     WidgetRepo widgetRepo;
     private static final Logger logger = LoggerFactory.getLogger(WidgetCustomService.class);
     @Autowired
@@ -20,42 +27,113 @@ public class WidgetCustomService implements WidgetService {
         this.widgetRepo = widgetRepo;
     }
 
+    /**
+     * Repo reports its own changes, it's the one knowing what got shifted
+     */
     @Override
-    public List<Widget> findAll() {
+    public void setChangeListener(WidgetChangeListener listener) {
+        widgetRepo.setChangeListener(listener);
+    }
+
+    @Override
+    public WidgetChanges findChangesSince(long version) {
+        return widgetRepo.findChangesSince(version);
+    }
+
+    @Override
+    public WidgetChanges findDeltaSince(long version) {
+        return widgetRepo.findDeltaSince(version);
+    }
+
+    @Override
+    public OptionalLong getVersion() {
+        return widgetRepo.getVersion();
+    }
+
+    @Override
+    public List<WidgetRecord> findAll() {
         return widgetRepo.findAllSorted();
     }
 
     @Override
-    public List<Widget> findAll(int page, int size) {
+    public List<WidgetRecord> findAll(int page, int size) {
         if(size > 500)
             throw new IllegalArgumentException("size can't exceed 500");
+        if(page < 1 || size < 1)
+            throw new IllegalArgumentException("page and size must be positive");
 
-        List<Widget> widgetList = widgetRepo.findAllSorted();
-        int rangeStart = (page-1)*size;
-        if(rangeStart >= widgetList.size())
-            new ArrayList();
+        return widgetRepo.findPage(page, size);
+    }
+
+    @Override
+    public void forEachSorted(Consumer<WidgetRecord> action) {
+        widgetRepo.forEachSorted(action);
+    }
+
+    @Override
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        checkLimit(limit);
+        return widgetRepo.findAfterZindex(zIndex, limit);
+    }
 
-        int rangeEnd = Math.min(rangeStart+size, widgetList.size());
-        return widgetList.subList(rangeStart, rangeEnd);
+    static void checkLimit(int limit) {
+        if(limit > 500)
+            throw new IllegalArgumentException("limit can't exceed 500");
+        if(limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
     }
 
     @Override
-    public Widget findById(Long id) {
+    public WidgetRecord findById(Long id) {
         return widgetRepo.findById(id).orElseThrow(() -> new ResourceNotFoundException("No widget with id: " + id));
     }
 
     @Override
-    public Widget addWidget(Widget widget) {
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        return widgetRepo.findInArea(area);
+    }
+
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        return widgetRepo.findAtPoint(x, y);
+    }
+
+    @Override
+    public List<WidgetRecord> findOverlapping(Long id) {
+        return widgetRepo.findOverlapping(id);
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
         return widgetRepo.addWidget(widget);
     }
 
     @Override
-    public Widget updateWidget(Long id, Widget newWidget) {
+    public WidgetRecord updateWidget(Long id, Widget newWidget) {
+        assignIdOrThrow(id, newWidget);
+        return widgetRepo.updateWidget(newWidget);
+    }
+
+    @Override
+    public List<WidgetRecord> applyBatch(List<WidgetCommand> commands) {
+        checkBatch(commands);
+        return widgetRepo.applyAtomically(commands);
+    }
+
+    static void checkBatch(List<WidgetCommand> commands) {
+        if(commands.isEmpty() || commands.size() > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("batch must have between 1 and " + MAX_BATCH_SIZE + " commands");
+        for (WidgetCommand command : commands) {
+            if(command.getType() == WidgetCommand.Type.UPDATE)
+                assignIdOrThrow(command.getId(), command.getWidget());
+        }
+    }
+
+    static void assignIdOrThrow(Long id, Widget newWidget) {
         if(newWidget.getId() == null)
             newWidget.setId(id);
         if(!newWidget.getId().equals(id))
             throw new IllegalArgumentException("Trying to change widget's id");
-        return widgetRepo.updateWidget(newWidget);
     }
 
     @Override
@@ -1,118 +1,307 @@
 package com.miro.platform.widget.domain.service;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategy;
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategyFactory;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.events.WidgetChanges;
 import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
 import com.miro.platform.widget.domain.repository.WidgetRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DuplicateKeyException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.concurrent.locks.StampedLock;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Service("h2Service")
 public class WidgetH2Service implements WidgetService {
+    public static final String DENSE = "dense";
+    public static final String GAP = "gap";
+    //Distance between zIndexes given by the gap allocation, on top and on renumbering
+    public static final long Z_GAP = 1024;
+    //Longer runs of adjacent zIndexes get the whole board renumbered instead of shifted
+    public static final int MAX_SHIFT_RUN = 64;
     private final WidgetRepo widgetRepository;
-    private final StampedLock stampedLock;
+    //Guards the sequences of repo calls done here (e.g. shifting), not the repo itself.
+    //With the transactional strategy writes may run more than once, so they only change copies of their input
+    private final ConcurrencyStrategy concurrency;
+    private final boolean gapAllocation;
+    //Gets the changes of every write, null when nobody listens
+    private volatile WidgetChangeListener changeListener;
+    //Board version and changes of the last writes, only kept when this instance is the only writer
+    private final WidgetChangeLog changeLog;
+    //Batches run in one transaction with it, so a failing command commits nothing. Null without a transaction manager
+    private final TransactionTemplate batchTemplate;
+    //Widgets moved up by each shift, null until bindMetrics
+    private DistributionSummary shiftSize;
     private static final Logger logger = LoggerFactory.getLogger(WidgetH2Service.class);
 
     @Autowired
-    public WidgetH2Service(WidgetRepo widgetRepository, StampedLock stampedLock) {
+    public WidgetH2Service(WidgetRepo widgetRepository, ConcurrencyStrategyFactory concurrencyFactory,
+                           @Value("${storage.h2.z-allocation:" + DENSE + "}") String zAllocation,
+                           @Value("${storage.changes.capacity:" + WidgetChangeLog.DEFAULT_CAPACITY + "}") int changesCapacity,
+                           ObjectProvider<PlatformTransactionManager> transactionManager) {
+        this(widgetRepository, concurrencyFactory.createForH2("h2Service"), zAllocation, changesCapacity,
+                transactionManager.getIfAvailable());
+    }
+
+    public WidgetH2Service(WidgetRepo widgetRepository, ConcurrencyStrategy concurrency) {
+        this(widgetRepository, concurrency, DENSE);
+    }
+
+    public WidgetH2Service(WidgetRepo widgetRepository, ConcurrencyStrategy concurrency, String zAllocation) {
+        this(widgetRepository, concurrency, zAllocation, WidgetChangeLog.DEFAULT_CAPACITY);
+    }
+
+    public WidgetH2Service(WidgetRepo widgetRepository, ConcurrencyStrategy concurrency, String zAllocation,
+                           int changesCapacity) {
+        this(widgetRepository, concurrency, zAllocation, changesCapacity, null);
+    }
+
+    public WidgetH2Service(WidgetRepo widgetRepository, ConcurrencyStrategy concurrency, String zAllocation,
+                           int changesCapacity, PlatformTransactionManager transactionManager) {
+        if (!DENSE.equals(zAllocation) && !GAP.equals(zAllocation))
+            throw new IllegalArgumentException("Unknown zIndex allocation: " + zAllocation);
         this.widgetRepository = widgetRepository;
-        this.stampedLock = stampedLock;
+        this.concurrency = concurrency;
+        this.gapAllocation = GAP.equals(zAllocation);
+        this.changeLog = new WidgetChangeLog(changesCapacity);
+        this.batchTemplate = transactionManager != null ? new TransactionTemplate(transactionManager) : null;
+    }
+
+    @Override
+    public void setChangeListener(WidgetChangeListener listener) {
+        changeListener = listener;
+    }
+
+    /**
+     * widgets.board.size and widgets.board.foreground query the database on every read of the meters,
+     * without the lock. widgets.shift.size records the widgets moved up by every shift
+     */
+    @Override
+    public void bindMetrics(MeterRegistry registry) {
+        Gauge.builder("widgets.board.size", widgetRepository, WidgetRepo::count)
+                .tag("component", "h2Service")
+                .register(registry);
+        Gauge.builder("widgets.board.foreground", widgetRepository, WidgetRepo::getForeground)
+                .tag("component", "h2Service")
+                .register(registry);
+        shiftSize = DistributionSummary.builder("widgets.shift.size")
+                .description("Widgets moved up by an add on a taken zIndex")
+                .tag("component", "h2Service")
+                .publishPercentiles(0.5, 0.95, 0.99)
+                .register(registry);
+    }
+
+    private void recordShift(int shifted) {
+        if (shiftSize != null)
+            shiftSize.record(shifted);
+    }
+
+    /**
+     * Writes collect their changes (shifts as one range, not per widget) and hand them over as their last step,
+     * still under the lock. Inside a transaction (transactional strategy, batches) the log and the listener only
+     * get them once it committed: a run rolled back for a retry, or failing, never reaches the clients.
+     */
+    private void emitChanges(List<WidgetChangeEvent> events) {
+        if (events.isEmpty())
+            return;
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            publishChanges(events);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCommit() {
+                publishChanges(events);
+            }
+        });
+    }
+
+    private void publishChanges(List<WidgetChangeEvent> events) {
+        long version = concurrency.exclusive() ? changeLog.append(events) : 0;
+        WidgetChangeListener listener = changeListener;
+        if (listener != null)
+            listener.onChanges(version, events);
     }
 
     /**
      * I'm not sure whether it's worth it to
      * do optimistic read lock here, as we'll need to
      * create another list with all items and then check again
-     * for changes. For this I'd like to run more benchmark tests
-     * but I'll go simple with normal read lock
+     * for changes. Benchmarks (see README) can now compare it
+     * with the other strategies.
+     * There's no snapshot to read from here, so with copyOnWrite
+     * readers may see a shift in progress.
      */
     @Override
-    public List<Widget> findAll() {
-        long stamp = stampedLock.tryOptimisticRead();
-        List<Widget> widgetList = widgetRepository.findAllSorted();
-        if (!stampedLock.validate(stamp)) {
-            stamp = stampedLock.readLock();
-            try {
-                widgetList = widgetRepository.findAllSorted();
-            } finally {
-                stampedLock.unlockRead(stamp);
-            }
-        }
-        return widgetList;
+    public List<WidgetRecord> findAll() {
+        return concurrency.read(widgetRepository::findAllSorted);
     }
 
+    /**
+     * Other instances sharing the database write without this log seeing it
+     * when the concurrency isn't exclusive, so then it's always a resync.
+     */
     @Override
-    public List<Widget> findAll(int page, int size) {
-        List<Widget> widgetList = findAll();
-        int rangeStart = (page - 1) * size;
-        if (rangeStart >= widgetList.size())
+    public WidgetChanges findChangesSince(long version) {
+        return concurrency.read(() -> {
+            WidgetChanges changes = concurrency.exclusive() ? changeLog.since(version) : null;
+            return changes != null ? changes : WidgetChanges.resync(changeLog.getVersion(), widgetRepository.findAllSorted());
+        });
+    }
+
+    //Only the log, which is consistent on its own, so no read of the database nor lock
+    @Override
+    public WidgetChanges findDeltaSince(long version) {
+        return concurrency.exclusive() ? changeLog.since(version) : null;
+    }
+
+    //Stamped at the end of writes, still under the lock
+    @Override
+    public OptionalLong getVersion() {
+        return concurrency.exclusive() ? OptionalLong.of(changeLog.getVersion()) : OptionalLong.empty();
+    }
+
+    @Override
+    public List<WidgetRecord> findAll(int page, int size) {
+        if (page < 1 || size < 1)
+            throw new IllegalArgumentException("page and size must be positive");
+
+        List<WidgetRecord> widgetList = concurrency.read(() -> widgetRepository.findPage(page, size));
+        if (widgetList.isEmpty())
             throw new ResourceNotFoundException("Widgets not found for this page");
+        return widgetList;
+    }
 
-        int rangeEnd = Math.min(rangeStart + size, widgetList.size());
-        return widgetList.subList(rangeStart, rangeEnd);
+    /**
+     * Not under the read lock: an export may take as long as the client takes to read it, writers can't wait for that.
+     * H2 reads a single query result consistently, but with the lock strategies a write done in steps
+     * (shift, then insert) may be seen between two of them
+     */
+    @Override
+    public void forEachSorted(Consumer<WidgetRecord> action) {
+        widgetRepository.forEachSorted(action);
     }
 
     @Override
-    public Widget findById(Long id) {
-        long stamp = stampedLock.tryOptimisticRead();
-        Optional<Widget> widget = widgetRepository.findById(id);
-        if (!stampedLock.validate(stamp)) {
-            stamp = stampedLock.readLock();
-            try {
-                widget = widgetRepository.findById(id);
-            } finally {
-                stampedLock.unlockRead(stamp);
-            }
-        }
+    public List<WidgetRecord> findAfterZindex(Long zIndex, int limit) {
+        WidgetCustomService.checkLimit(limit);
+        return concurrency.read(() -> widgetRepository.findAfterZindex(zIndex, limit));
+    }
+
+    @Override
+    public WidgetRecord findById(Long id) {
+        Optional<WidgetRecord> widget = concurrency.read(() -> widgetRepository.findById(id));
         return widget.orElseThrow(() -> new ResourceNotFoundException("No widget with id: " + id));
     }
 
     @Override
-    public Widget addWidget(Widget widget) {
+    public List<WidgetRecord> findInArea(Rectangle area) {
+        return concurrency.read(() -> widgetRepository.findInArea(area));
+    }
+
+    @Override
+    public List<WidgetRecord> findAtPoint(long x, long y) {
+        return concurrency.read(() -> widgetRepository.findAtPoint(x, y));
+    }
+
+    //Widget and its overlaps read under the same read, so they're from the same state
+    @Override
+    public List<WidgetRecord> findOverlapping(Long id) {
+        return concurrency.read(() -> widgetRepository.findOverlapping(id));
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
         if (widget.getId() != null) {
             throw new IllegalArgumentException("Can't enforce Id on insertion, it's auto generated");
         }
-        long stamp = stampedLock.writeLock();
-        try {
+        return concurrency.write(() -> {
             if(widget.getId() != null && widgetRepository.findById(widget.getId()).isPresent()) {
                 throw new DuplicateKeyException("Trying to insert duplicate id");
             }
 
-            return Objects.requireNonNull(internalAddWidget(widget));
-        } finally {
-            stampedLock.unlockWrite(stamp);
-        }
+            List<WidgetChangeEvent> events = new ArrayList<>(2);
+            WidgetRecord record = Objects.requireNonNull(internalAddWidget(widget.getCopy(), events));
+            emitChanges(events);
+            return record;
+        });
     }
 
-    private Widget internalAddWidget(Widget widget) {
+    private WidgetRecord internalAddWidget(Widget widget, List<WidgetChangeEvent> events) {
         widget.validForOperationOrThrow();
         if (widget.getzIndex() == null) {
-            widget.setzIndex(widgetRepository.getForeground()+1);
-        } else if (widgetRepository.findByZindex(widget.getzIndex()).isPresent()) {
-            shiftLargerOrEqualZindex(widget.getzIndex());
+            widget.setzIndex(widgetRepository.getForeground() + (gapAllocation ? Z_GAP : 1));
+        } else {
+            Optional<WidgetRecord> current = widgetRepository.findByZindex(widget.getzIndex());
+            if (current.isPresent())
+                widget.setzIndex(makeRoom(current.get(), events));
         }
 
-        return widgetRepository.addWidget(widget);
+        WidgetRecord record = widgetRepository.addWidget(widget);
+        events.add(WidgetChangeEvent.added(record));
+        return record;
     }
 
+    /**
+     * Moves up the widget on the zIndex (and the ones above it as needed) so the zIndex gets free.
+     * Dense allocation shifts every widget above. Gap allocation only shifts the run of adjacent zIndexes
+     * up to the first free one, mostly no other widget than the current one, and renumbers the board
+     * when the run gets too long, so the freed zIndex may then be another one.
+     * @return zIndex that is now free, right below the current widget
+     */
+    private long makeRoom(WidgetRecord current, List<WidgetChangeEvent> events) {
+        long zIndex = current.getzIndex();
+        if (!gapAllocation) {
+            recordShift(widgetRepository.shiftZindexes(zIndex, Long.MAX_VALUE));
+            events.add(WidgetChangeEvent.shifted(zIndex));
+            return zIndex;
+        }
 
-    private void shiftLargerOrEqualZindex(Long zIndex) {
-        List<Widget> toUpdate = widgetRepository.findGreaterThanEqualZindex(zIndex);
-        for (Widget widget : toUpdate) {
-            widget.incrementZindex();
-            widgetRepository.updateWidget(widget);
+        long free = zIndex;
+        for (WidgetRecord widget : widgetRepository.findAfterZindex(zIndex - 1, MAX_SHIFT_RUN + 1)) {
+            if (widget.getzIndex() != free)
+                break;
+            free++;
+        }
+        if (free - zIndex > MAX_SHIFT_RUN) {
+            logger.info("Renumbering zIndexes, {} adjacent zIndexes from {}", free - zIndex, zIndex);
+            widgetRepository.renumberZindexes(Z_GAP);
+            //Every zIndex changed, clients read them again
+            events.add(WidgetChangeEvent.resync());
+            zIndex = widgetRepository.findById(current.getId()).orElseThrow().getzIndex();
+            free = zIndex + 1;
         }
+        recordShift(widgetRepository.shiftZindexes(zIndex, free));
+        events.add(WidgetChangeEvent.shifted(zIndex, free, 1));
+        return zIndex;
     }
 
     @Override
-    public Widget updateWidget(Long id, Widget widget) {
+    public WidgetRecord updateWidget(Long id, Widget widget) {
         widget.validForOperationOrThrow();
         if (widget.getId() != null && !id.equals(widget.getId()))
             throw new IllegalArgumentException("Can't change Id of widget, make sure widget's id is the same as id in parameters");
@@ -121,32 +310,79 @@ public class WidgetH2Service implements WidgetService {
         if (widget.getId() == null)
             widget.setId(id);
 
-        long stamp = stampedLock.writeLock();
-        try {
-            widgetRepository.findById(id).orElseThrow(() -> {
-                throw new ResourceNotFoundException("No widget with given Id: " + id);
-            });
-            //If zIndex exists for OTHER widget then we'll delete the widget and insert it again
-            //So that shifting and everything happens
-            Optional<Widget> currentWidgetWithZindex = widgetRepository.findByZindex(widget.getzIndex());
-            if (currentWidgetWithZindex.isPresent() &&
-                    !currentWidgetWithZindex.get().getId().equals(widget.getId())) {
-                shiftLargerOrEqualZindex(widget.getzIndex());
-            }
+        return concurrency.write(() -> {
+            List<WidgetChangeEvent> events = new ArrayList<>(2);
+            WidgetRecord record = internalUpdateWidget(id, widget.getCopy(), events);
+            emitChanges(events);
+            return record;
+        });
+    }
 
-            return widgetRepository.updateWidget(widget);
-        } finally {
-            stampedLock.unlockWrite(stamp);
+    private WidgetRecord internalUpdateWidget(Long id, Widget widget, List<WidgetChangeEvent> events) {
+        widgetRepository.findById(id).orElseThrow(() -> {
+            throw new ResourceNotFoundException("No widget with given Id: " + id);
+        });
+        //If zIndex exists for OTHER widget then we'll delete the widget and insert it again
+        //So that shifting and everything happens
+        Optional<WidgetRecord> currentWidgetWithZindex = widgetRepository.findByZindex(widget.getzIndex());
+        if (currentWidgetWithZindex.isPresent() &&
+                currentWidgetWithZindex.get().getId() != widget.getId()) {
+            widget.setzIndex(makeRoom(currentWidgetWithZindex.get(), events));
         }
+
+        WidgetRecord record = widgetRepository.updateWidget(widget);
+        events.add(WidgetChangeEvent.updated(record));
+        return record;
     }
 
     @Override
     public void removeWidget(Long id) {
-        long stamp = stampedLock.writeLock();
-        try {
+        concurrency.write(() -> {
             widgetRepository.removeWidget(id);
-        } finally {
-            stampedLock.unlockWrite(stamp);
+            emitChanges(List.of(WidgetChangeEvent.removed(id)));
+        });
+    }
+
+    /**
+     * Whole batch is validated under the write lock before anything is written,
+     * then applied with the same steps as single writes, all in one transaction:
+     * without it every repo call would commit on its own and a database failure midway would keep the first commands
+     */
+    @Override
+    public List<WidgetRecord> applyBatch(List<WidgetCommand> commands) {
+        WidgetCustomService.checkBatch(commands);
+        for (WidgetCommand command : commands) {
+            if (command.getType() == WidgetCommand.Type.ADD && command.getWidget().getId() != null)
+                throw new IllegalArgumentException("Can't enforce Id on insertion, it's auto generated");
         }
+
+        return concurrency.write(() -> inTransaction(() -> {
+            WidgetCommand.validateAll(commands, id -> widgetRepository.findById(id).isPresent());
+            List<WidgetRecord> widgets = new ArrayList<>(commands.size());
+            List<WidgetChangeEvent> events = new ArrayList<>(commands.size());
+            for (WidgetCommand command : commands) {
+                switch (command.getType()) {
+                    case ADD:
+                        widgets.add(internalAddWidget(command.getWidget().getCopy(), events));
+                        break;
+                    case UPDATE:
+                        widgets.add(internalUpdateWidget(command.getId(), command.getWidget().getCopy(), events));
+                        break;
+                    default:
+                        widgetRepository.removeWidget(command.getId());
+                        widgets.add(null);
+                        events.add(WidgetChangeEvent.removed(command.getId()));
+                }
+            }
+            emitChanges(events);
+            return widgets;
+        }));
+    }
+
+    //Joins the transaction of the transactional strategy, if any
+    private <T> T inTransaction(Supplier<T> action) {
+        if (batchTemplate == null)
+            return action.get();
+        return batchTemplate.execute(status -> action.get());
     }
 }
@@ -0,0 +1,145 @@
+package com.miro.platform.widget.domain.service;
+
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.repository.WidgetRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Callers put commands on a bounded queue (blocking when it's full) and get a future back.
+ * A single applier thread drains whatever is queued, up to maxBatch commands,
+ * and hands it to {@link WidgetRepo#applyBatch}, which in memory repos apply under a single write lock.
+ * Futures are completed after the batch, outside of the repo's lock.
+ */
+public class WidgetMutationPipeline implements AutoCloseable {
+    private final WidgetRepo widgetRepo;
+    private final BlockingQueue<Submission> queue;
+    private final int maxBatch;
+    private final Thread applier;
+    private volatile boolean running;
+    //How often a submit blocked on a full queue, and the idle applier, check whether the pipeline got closed.
+    //The applier isn't interrupted on close: an interrupt in the middle of a batch would close the log's file channel
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final Logger logger = LoggerFactory.getLogger(WidgetMutationPipeline.class);
+
+    public WidgetMutationPipeline(WidgetRepo widgetRepo, int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1)
+            throw new IllegalArgumentException("capacity and maxBatch must be positive");
+        this.widgetRepo = widgetRepo;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.running = true;
+        this.applier = new Thread(this::applyLoop, "widget-mutation-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    public CompletableFuture<WidgetRecord> submit(WidgetCommand command) {
+        Submission submission = new Submission(command);
+        if (!running) {
+            submission.future.completeExceptionally(new IllegalStateException("Mutation pipeline is closed"));
+            return submission.future;
+        }
+        try {
+            while (!queue.offer(submission, POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                if (!running) {
+                    submission.future.completeExceptionally(new IllegalStateException("Mutation pipeline is closed"));
+                    return submission.future;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            submission.future.completeExceptionally(e);
+            return submission.future;
+        }
+        //close may have drained the queue between the check above and the offer, nobody else would fail this one then
+        if (!running)
+            failPending();
+        return submission.future;
+    }
+
+    private void applyLoop() {
+        List<Submission> batch = new ArrayList<>(maxBatch);
+        while (running) {
+            Submission first;
+            try {
+                first = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null)
+                continue;
+            batch.add(first);
+            queue.drainTo(batch, maxBatch - 1);
+            apply(batch);
+            batch.clear();
+        }
+    }
+
+    private void apply(List<Submission> batch) {
+        List<WidgetCommand> commands = new ArrayList<>(batch.size());
+        for (Submission submission : batch) {
+            commands.add(submission.command);
+        }
+
+        List<WidgetCommand.Result> results;
+        try {
+            results = widgetRepo.applyBatch(commands);
+        } catch (Throwable e) {
+            //Errors included: the applier must keep going, or callers would wait on their futures forever
+            logger.error("Failed to apply batch of {} commands", batch.size(), e);
+            for (Submission submission : batch) {
+                submission.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            WidgetCommand.Result result = results.get(i);
+            if (result.isSuccess())
+                batch.get(i).future.complete(result.getWidget());
+            else
+                batch.get(i).future.completeExceptionally(result.getError());
+        }
+    }
+
+    /**
+     * Stops the applier after its current batch, commands still queued are failed
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            applier.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        failPending();
+    }
+
+    private void failPending() {
+        List<Submission> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        for (Submission submission : pending) {
+            submission.future.completeExceptionally(new IllegalStateException("Mutation pipeline is closed"));
+        }
+    }
+
+    private static final class Submission {
+        private final WidgetCommand command;
+        private final CompletableFuture<WidgetRecord> future;
+
+        private Submission(WidgetCommand command) {
+            this.command = command;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
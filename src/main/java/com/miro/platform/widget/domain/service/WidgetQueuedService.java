@@ -0,0 +1,73 @@
+package com.miro.platform.widget.domain.service;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.repository.WidgetRepo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Same reads as {@link WidgetCustomService}, writes go through a {@link WidgetMutationPipeline}
+ * so bursts of writes are applied in batches. Lazy so the applier thread only exists when this service is used.
+ */
+@Lazy
+@Service("queuedService")
+public class WidgetQueuedService extends WidgetCustomService {
+    private final WidgetMutationPipeline pipeline;
+
+    @Autowired
+    public WidgetQueuedService(WidgetRepo widgetRepo,
+                               @Value("${pipeline.queue-capacity:1024}") int queueCapacity,
+                               @Value("${pipeline.max-batch:256}") int maxBatch) {
+        super(widgetRepo);
+        this.pipeline = new WidgetMutationPipeline(widgetRepo, queueCapacity, maxBatch);
+    }
+
+    /**
+     * For callers that don't want to wait for the batch to be applied
+     */
+    public CompletableFuture<WidgetRecord> submit(WidgetCommand command) {
+        return pipeline.submit(command);
+    }
+
+    @Override
+    public WidgetRecord addWidget(Widget widget) {
+        return await(pipeline.submit(WidgetCommand.add(widget)));
+    }
+
+    @Override
+    public WidgetRecord updateWidget(Long id, Widget newWidget) {
+        assignIdOrThrow(id, newWidget);
+        return await(pipeline.submit(WidgetCommand.update(newWidget)));
+    }
+
+    @Override
+    public void removeWidget(Long id) {
+        await(pipeline.submit(WidgetCommand.remove(id)));
+    }
+
+    @PreDestroy
+    public void close() {
+        pipeline.close();
+    }
+
+    //Rethrowing what the command failed with, so callers see the same exceptions as with the other services
+    private static WidgetRecord await(CompletableFuture<WidgetRecord> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw e;
+        }
+    }
+}
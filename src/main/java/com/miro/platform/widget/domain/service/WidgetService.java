@@ -1,19 +1,82 @@
 package com.miro.platform.widget.domain.service;
 
 import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.events.WidgetChangeListener;
+import com.miro.platform.widget.domain.events.WidgetChanges;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import io.micrometer.core.instrument.MeterRegistry;
 
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
 
 public interface WidgetService {
-    List<Widget> findAll();
+    List<WidgetRecord> findAll();
 
-    List<Widget> findAll(int page, int size);
+    List<WidgetRecord> findAll(int page, int size);
 
-    Widget findById(Long id);
+    /**
+     * At most limit widgets after the given zIndex (from the bottom if null), sorted by zIndex
+     */
+    List<WidgetRecord> findAfterZindex(Long zIndex, int limit);
 
-    Widget addWidget(Widget widget);
+    /**
+     * Every widget sorted by zIndex, one by one without building the whole list
+     */
+    void forEachSorted(Consumer<WidgetRecord> action);
 
-    Widget updateWidget(Long id, Widget newWidget);
+    WidgetRecord findById(Long id);
+
+    List<WidgetRecord> findInArea(Rectangle area);
+
+    /**
+     * Hit test: widgets covering the point, topmost first
+     */
+    List<WidgetRecord> findAtPoint(long x, long y);
+
+    /**
+     * Other widgets intersecting the widget, sorted by zIndex
+     */
+    List<WidgetRecord> findOverlapping(Long id);
+
+    /**
+     * What changed since the given board version, or all widgets when those changes aren't kept
+     */
+    WidgetChanges findChangesSince(long version);
+
+    /**
+     * What changed since the given board version, null when those changes aren't kept (without reading the widgets)
+     */
+    WidgetChanges findDeltaSince(long version);
+
+    /**
+     * Board version, changing with every write, read it before the widgets it tags.
+     * Empty when writes of other instances don't change it.
+     */
+    OptionalLong getVersion();
+
+    WidgetRecord addWidget(Widget widget);
+
+    WidgetRecord updateWidget(Long id, Widget newWidget);
 
     void removeWidget(Long id);
+
+    /**
+     * Applies all commands in order or none of them
+     * @return resulting widget of every command, null for removes
+     */
+    List<WidgetRecord> applyBatch(List<WidgetCommand> commands);
+
+    /**
+     * Listener gets the changes of every write done through this service, in the order they're applied
+     */
+    void setChangeListener(WidgetChangeListener listener);
+
+    /**
+     * Registers the meters of the service, if it has any. Only called on the configured service
+     */
+    default void bindMetrics(MeterRegistry registry) {
+    }
 }
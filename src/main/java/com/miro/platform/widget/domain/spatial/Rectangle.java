@@ -0,0 +1,96 @@
+package com.miro.platform.widget.domain.spatial;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+
+import java.util.Objects;
+
+/**
+ * Axis aligned rectangle with inclusive bounds.
+ * A widget covers [x, x + width] on X axis and [y, y + height] on Y axis.
+ */
+public final class Rectangle {
+    private final long minX;
+    private final long minY;
+    private final long maxX;
+    private final long maxY;
+
+    public Rectangle(long minX, long minY, long maxX, long maxY) {
+        if (minX > maxX || minY > maxY)
+            throw new IllegalArgumentException("Rectangle lower corner must be before upper corner");
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    public static Rectangle of(Widget widget) {
+        return new Rectangle(widget.getX(),
+                widget.getY(),
+                widget.getX() + widget.getWidth(),
+                widget.getY() + widget.getHeight());
+    }
+
+    public static Rectangle of(WidgetRecord widget) {
+        return new Rectangle(widget.getX(),
+                widget.getY(),
+                widget.getX() + widget.getWidth(),
+                widget.getY() + widget.getHeight());
+    }
+
+    public long getMinX() {
+        return minX;
+    }
+
+    public long getMinY() {
+        return minY;
+    }
+
+    public long getMaxX() {
+        return maxX;
+    }
+
+    public long getMaxY() {
+        return maxY;
+    }
+
+    public boolean contains(Rectangle other) {
+        return minX <= other.minX && other.maxX <= maxX &&
+                minY <= other.minY && other.maxY <= maxY;
+    }
+
+    public boolean contains(long x, long y) {
+        return minX <= x && x <= maxX && minY <= y && y <= maxY;
+    }
+
+    public boolean intersects(Rectangle other) {
+        return minX <= other.maxX && other.minX <= maxX &&
+                minY <= other.maxY && other.minY <= maxY;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Rectangle rectangle = (Rectangle) o;
+        return minX == rectangle.minX &&
+                minY == rectangle.minY &&
+                maxX == rectangle.maxX &&
+                maxY == rectangle.maxY;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(minX, minY, maxX, maxY);
+    }
+
+    @Override
+    public String toString() {
+        return "Rectangle{" +
+                "minX=" + minX +
+                ", minY=" + minY +
+                ", maxX=" + maxX +
+                ", maxY=" + maxY +
+                '}';
+    }
+}
@@ -0,0 +1,171 @@
+package com.miro.platform.widget.domain.spatial;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Hierarchical grid over the whole plane.
+ * Level l has square cells of side 2^(BASE_SHIFT + l), an item is put on the first level where
+ * its cells are larger than the item itself, so it never touches more than 2x2 cells.
+ * A query only visits the cells overlapping the searched range (or the non empty cells of a level
+ * when they are fewer), so it costs O(levels + visited cells + k) instead of scanning every item.
+ *
+ * Items are used as hash keys, so they must not change while indexed (repos index widget ids).
+ * Not thread safe, callers guard it with their own lock.
+ */
+public class SpatialGridIndex<T> {
+    private static final int BASE_SHIFT = 6;
+    private static final int MAX_SHIFT = 62;
+
+    private final List<Map<Cell, Set<T>>> levels;
+    private final Map<T, Placement> placements;
+
+    public SpatialGridIndex() {
+        this(0);
+    }
+
+    /**
+     * Sized for expectedSize items upfront, so bulk loading doesn't rehash
+     */
+    public SpatialGridIndex(int expectedSize) {
+        levels = new ArrayList<>(Collections.nCopies(MAX_SHIFT - BASE_SHIFT + 1, null));
+        placements = new HashMap<>((int) (expectedSize / 0.75f) + 1);
+    }
+
+    public int size() {
+        return placements.size();
+    }
+
+    public void put(T item, Rectangle rectangle) {
+        remove(item);
+        Placement placement = new Placement(rectangle);
+        placements.put(item, placement);
+        Map<Cell, Set<T>> cells = levels.get(placement.shift - BASE_SHIFT);
+        if (cells == null) {
+            cells = new HashMap<>();
+            levels.set(placement.shift - BASE_SHIFT, cells);
+        }
+        for (long cx = placement.minCellX; cx <= placement.maxCellX; cx++) {
+            for (long cy = placement.minCellY; cy <= placement.maxCellY; cy++) {
+                cells.computeIfAbsent(new Cell(cx, cy), cell -> new HashSet<>())
+                        .add(item);
+            }
+        }
+    }
+
+    public void remove(T item) {
+        Placement placement = placements.remove(item);
+        if (placement == null)
+            return;
+        Map<Cell, Set<T>> cells = levels.get(placement.shift - BASE_SHIFT);
+        for (long cx = placement.minCellX; cx <= placement.maxCellX; cx++) {
+            for (long cy = placement.minCellY; cy <= placement.maxCellY; cy++) {
+                Cell cell = new Cell(cx, cy);
+                Set<T> items = cells.get(cell);
+                items.remove(item);
+                if (items.isEmpty())
+                    cells.remove(cell);
+            }
+        }
+    }
+
+    public void clear() {
+        placements.clear();
+        Collections.fill(levels, null);
+    }
+
+    /**
+     * Every item whose rectangle can intersect the range is visited once,
+     * returned ones are those whose rectangle passes the filter. No particular order.
+     */
+    public List<T> query(Rectangle range, Predicate<Rectangle> filter) {
+        List<T> result = new ArrayList<>();
+        for (int level = 0; level < levels.size(); level++) {
+            Map<Cell, Set<T>> cells = levels.get(level);
+            if (cells == null || cells.isEmpty())
+                continue;
+
+            int shift = BASE_SHIFT + level;
+            long minCellX = range.getMinX() >> shift;
+            long maxCellX = range.getMaxX() >> shift;
+            long minCellY = range.getMinY() >> shift;
+            long maxCellY = range.getMaxY() >> shift;
+            //Double to not overflow for huge ranges on small cells
+            double rangeCells = ((double) maxCellX - minCellX + 1) * ((double) maxCellY - minCellY + 1);
+            if (rangeCells <= cells.size()) {
+                for (long cx = minCellX; cx <= maxCellX; cx++) {
+                    for (long cy = minCellY; cy <= maxCellY; cy++) {
+                        Set<T> items = cells.get(new Cell(cx, cy));
+                        if (items != null)
+                            collect(items, cx, cy, minCellX, minCellY, filter, result);
+                    }
+                }
+            } else {
+                for (Map.Entry<Cell, Set<T>> entry : cells.entrySet()) {
+                    Cell cell = entry.getKey();
+                    if (cell.x >= minCellX && cell.x <= maxCellX && cell.y >= minCellY && cell.y <= maxCellY)
+                        collect(entry.getValue(), cell.x, cell.y, minCellX, minCellY, filter, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void collect(Set<T> items, long cx, long cy, long minCellX, long minCellY,
+                         Predicate<Rectangle> filter, List<T> result) {
+        for (T item : items) {
+            Placement placement = placements.get(item);
+            //Item can be in up to 4 visited cells, only report it from the lowest one
+            if (cx != Math.max(placement.minCellX, minCellX) || cy != Math.max(placement.minCellY, minCellY))
+                continue;
+            if (filter.test(placement.rectangle))
+                result.add(item);
+        }
+    }
+
+    private static final class Placement {
+        private final Rectangle rectangle;
+        private final int shift;
+        private final long minCellX;
+        private final long maxCellX;
+        private final long minCellY;
+        private final long maxCellY;
+
+        private Placement(Rectangle rectangle) {
+            this.rectangle = rectangle;
+            long extent = Math.max(rectangle.getMaxX() - rectangle.getMinX(), rectangle.getMaxY() - rectangle.getMinY());
+            int shift = BASE_SHIFT;
+            while (shift < MAX_SHIFT && (extent < 0 || (1L << shift) <= extent)) {
+                shift++;
+            }
+            this.shift = shift;
+            this.minCellX = rectangle.getMinX() >> shift;
+            this.maxCellX = rectangle.getMaxX() >> shift;
+            this.minCellY = rectangle.getMinY() >> shift;
+            this.maxCellY = rectangle.getMaxY() >> shift;
+        }
+    }
+
+    private static final class Cell {
+        private final long x;
+        private final long y;
+
+        private Cell(long x, long y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Cell cell = (Cell) o;
+            return x == cell.x && y == cell.y;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(x * 31 + y);
+        }
+    }
+}
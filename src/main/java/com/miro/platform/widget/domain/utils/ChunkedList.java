@@ -0,0 +1,71 @@
+package com.miro.platform.widget.domain.utils;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.Consumer;
+
+/**
+ * Immutable list kept as chunks of CHUNK elements. The next version of a list that only changed from some index on
+ * shares every chunk before that index with the previous version, so publishing it costs the changed part
+ * plus one reference per chunk instead of a copy of the whole list.
+ */
+public final class ChunkedList<T> extends AbstractList<T> implements RandomAccess {
+    static final int CHUNK_SHIFT = 10;
+    static final int CHUNK = 1 << CHUNK_SHIFT;
+    private static final ChunkedList<?> EMPTY = new ChunkedList<>(new Object[0][], 0);
+
+    private final Object[][] chunks;
+    private final int size;
+
+    private ChunkedList(Object[][] chunks, int size) {
+        this.chunks = chunks;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> ChunkedList<T> empty() {
+        return (ChunkedList<T>) EMPTY;
+    }
+
+    /**
+     * Copy of current, which has to be equal to previous below changedFrom: only chunks from changedFrom on are copied
+     */
+    public static <T> ChunkedList<T> of(ChunkedList<T> previous, List<T> current, int changedFrom) {
+        if (changedFrom < 0)
+            throw new IllegalArgumentException("changedFrom must not be negative");
+        int size = current.size();
+        Object[][] chunks = new Object[(size + CHUNK - 1) >> CHUNK_SHIFT][];
+        //Only whole chunks below changedFrom in both versions can be shared
+        int shared = Math.min(changedFrom, Math.min(previous.size, size)) >> CHUNK_SHIFT;
+        System.arraycopy(previous.chunks, 0, chunks, 0, shared);
+        for (int chunk = shared; chunk < chunks.length; chunk++) {
+            int from = chunk << CHUNK_SHIFT;
+            chunks[chunk] = current.subList(from, Math.min(size, from + CHUNK)).toArray();
+        }
+        return new ChunkedList<>(chunks, size);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        Objects.checkIndex(index, size);
+        return (T) chunks[index >> CHUNK_SHIFT][index & (CHUNK - 1)];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void forEach(Consumer<? super T> action) {
+        for (Object[] chunk : chunks) {
+            for (Object element : chunk) {
+                action.accept((T) element);
+            }
+        }
+    }
+}
@@ -20,4 +20,11 @@ public class IdGenerator {
     public long getNextId() {
         return globalId.getAndAdd(1L);
     }
+
+    /**
+     * Makes sure the given id is never generated again, e.g. after loading stored widgets
+     */
+    public void advancePast(long id) {
+        globalId.accumulateAndGet(id + 1, Math::max);
+    }
 }
@@ -0,0 +1,138 @@
+package com.miro.platform.widget.domain.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) map from primitive long to non negative int.
+ * Keys and values live in two flat arrays, so no entry or boxed objects are created per mapping.
+ * Removal shifts back the following entries of the probe run instead of leaving tombstones.
+ *
+ * Not thread safe, callers guard it with their own lock.
+ */
+public class LongIntHashMap {
+    public static final int NO_VALUE = -1;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    //NO_VALUE marks an empty bucket
+    private int[] values;
+    private int mask;
+    private int size;
+
+    public LongIntHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(long key) {
+        for (int i = bucket(key); values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return values[i];
+        }
+        return NO_VALUE;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NO_VALUE;
+    }
+
+    /**
+     * @return previous value or NO_VALUE
+     */
+    public int put(long key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Values must not be negative");
+
+        int i = bucket(key);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int previous = values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        //Keeping load factor at most 1/2 so probe runs stay short
+        if (++size > (mask + 1) >> 1)
+            rehash((mask + 1) << 1);
+        return NO_VALUE;
+    }
+
+    /**
+     * @return removed value or NO_VALUE
+     */
+    public int remove(long key) {
+        int i = bucket(key);
+        for (; values[i] != NO_VALUE; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                break;
+        }
+        int removed = values[i];
+        if (removed == NO_VALUE)
+            return NO_VALUE;
+
+        //Moving back every following entry of the run that would not be reachable anymore
+        int gap = i;
+        for (int j = (gap + 1) & mask; values[j] != NO_VALUE; j = (j + 1) & mask) {
+            int home = bucket(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = NO_VALUE;
+        size--;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(values, NO_VALUE);
+        size = 0;
+    }
+
+    private int bucket(long key) {
+        //Fibonacci hashing, spreads sequential ids over the whole table
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == NO_VALUE)
+                continue;
+            int j = bucket(oldKeys[i]);
+            while (values[j] != NO_VALUE) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        Arrays.fill(values, NO_VALUE);
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity >> 1 < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
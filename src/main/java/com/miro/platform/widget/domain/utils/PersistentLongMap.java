@@ -0,0 +1,160 @@
+package com.miro.platform.widget.domain.utils;
+
+import java.util.Objects;
+
+/**
+ * Immutable map from primitive long keys, a hash trie of nodes with up to 32 children.
+ * put and remove return a new map that copies the O(log32 n) nodes on the key's path and shares all the others,
+ * so every version stays readable as it was. Keys are spread with a bijective mix: two keys never share
+ * the whole path, so there's no collision handling.
+ */
+public final class PersistentLongMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentLongMap<?> EMPTY = new PersistentLongMap<>(null, 0);
+
+    //Null, a Leaf or a Node
+    private final Object root;
+    private final int size;
+
+    private PersistentLongMap(Object root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentLongMap<V> empty() {
+        return (PersistentLongMap<V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long hash = mix(key);
+        Object slot = root;
+        for (int shift = 0; slot instanceof Node; shift += BITS) {
+            Node node = (Node) slot;
+            int bit = bit(hash, shift);
+            if ((node.bitmap & bit) == 0)
+                return null;
+            slot = node.slots[node.index(bit)];
+        }
+        return slot != null && ((Leaf) slot).key == key ? (V) ((Leaf) slot).value : null;
+    }
+
+    public PersistentLongMap<V> put(long key, V value) {
+        Objects.requireNonNull(value);
+        Leaf leaf = new Leaf(key, mix(key), value);
+        Object newRoot = put(root, leaf, 0);
+        return new PersistentLongMap<>(newRoot, get(key) == null ? size + 1 : size);
+    }
+
+    /**
+     * @return this map when it has no such key
+     */
+    public PersistentLongMap<V> remove(long key) {
+        Object newRoot = remove(root, key, mix(key), 0);
+        return newRoot == root ? this : new PersistentLongMap<>(newRoot, size - 1);
+    }
+
+    private static Object put(Object slot, Leaf leaf, int shift) {
+        if (slot == null)
+            return leaf;
+        if (slot instanceof Leaf) {
+            Leaf existing = (Leaf) slot;
+            if (existing.key == leaf.key)
+                return leaf;
+            //Both leaves go one level down, splitting again as long as their paths are the same
+            slot = new Node(bit(existing.hash, shift), new Object[]{existing});
+        }
+        Node node = (Node) slot;
+        int bit = bit(leaf.hash, shift);
+        int index = node.index(bit);
+        if ((node.bitmap & bit) == 0) {
+            Object[] slots = new Object[node.slots.length + 1];
+            System.arraycopy(node.slots, 0, slots, 0, index);
+            slots[index] = leaf;
+            System.arraycopy(node.slots, index, slots, index + 1, node.slots.length - index);
+            return new Node(node.bitmap | bit, slots);
+        }
+        Object[] slots = node.slots.clone();
+        slots[index] = put(slots[index], leaf, shift + BITS);
+        return new Node(node.bitmap, slots);
+    }
+
+    //Same slot when the key isn't there, a node left with a single leaf is replaced by the leaf
+    private static Object remove(Object slot, long key, long hash, int shift) {
+        if (slot == null)
+            return null;
+        if (slot instanceof Leaf)
+            return ((Leaf) slot).key == key ? null : slot;
+        Node node = (Node) slot;
+        int bit = bit(hash, shift);
+        if ((node.bitmap & bit) == 0)
+            return slot;
+        int index = node.index(bit);
+        Object child = node.slots[index];
+        Object newChild = remove(child, key, hash, shift + BITS);
+        if (newChild == child)
+            return slot;
+        if (newChild != null) {
+            if (node.slots.length == 1 && newChild instanceof Leaf)
+                return newChild;
+            Object[] slots = node.slots.clone();
+            slots[index] = newChild;
+            return new Node(node.bitmap, slots);
+        }
+        if (node.slots.length == 1)
+            return null;
+        if (node.slots.length == 2 && node.slots[1 - index] instanceof Leaf)
+            return node.slots[1 - index];
+        Object[] slots = new Object[node.slots.length - 1];
+        System.arraycopy(node.slots, 0, slots, 0, index);
+        System.arraycopy(node.slots, index + 1, slots, index, slots.length - index);
+        return new Node(node.bitmap & ~bit, slots);
+    }
+
+    private static int bit(long hash, int shift) {
+        return 1 << (int) ((hash >>> shift) & MASK);
+    }
+
+    //Finalizer of MurmurHash3, a bijection so distinct keys keep distinct hashes
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private static final class Leaf {
+        private final long key;
+        private final long hash;
+        private final Object value;
+
+        private Leaf(long key, long hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    //Children are stored compactly, bitmap tells which of the 32 positions are there
+    private static final class Node {
+        private final int bitmap;
+        private final Object[] slots;
+
+        private Node(int bitmap, Object[] slots) {
+            this.bitmap = bitmap;
+            this.slots = slots;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.miro.platform.widget.application.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Assert;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+public class WidgetControllerTest {
+    @Autowired
+    private MockMvc mvc;
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Nested
+    public class WhenInvalidPagination {
+        @Test
+        public void whenInvalidCursor_ThenBadRequest() throws Exception {
+            mvc.perform(get("/widgets").param("limit", "10").param("cursor", "not a cursor"))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(jsonPath("$.message").value("Invalid cursor"));
+        }
+
+        @Test
+        public void whenCursorAndAfterZ_ThenBadRequest() throws Exception {
+            mvc.perform(get("/widgets").param("limit", "10").param("afterZ", "1").param("cursor", "eg"))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        public void whenPageOrSizeNotPositive_ThenBadRequest() throws Exception {
+            mvc.perform(get("/widgets").param("page", "0").param("size", "10"))
+                    .andExpect(status().isBadRequest());
+            mvc.perform(get("/widgets").param("page", "1").param("size", "0"))
+                    .andExpect(status().isBadRequest());
+            mvc.perform(get("/boards/b1/widgets").param("page", "0"))
+                    .andExpect(status().isBadRequest());
+        }
+
+        @Test
+        public void whenLimitNotPositive_ThenBadRequest() throws Exception {
+            mvc.perform(get("/widgets").param("limit", "0"))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(jsonPath("$.message").value("limit must be positive"));
+        }
+    }
+
+    @Nested
+    public class WhenInvalidBatch {
+        @Test
+        public void whenUnknownOperation_ThenBadRequest() throws Exception {
+            mvc.perform(post("/widgets/batch").contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"operations\": [{\"op\": \"frob\", \"id\": 1}]}"))
+                    .andExpect(status().isBadRequest())
+                    .andExpect(jsonPath("$.message").value("Unknown operation: frob, expected add, update or remove"));
+        }
+
+        @Test
+        public void whenNegativeSize_ThenBadRequestAndNothingAdded() throws Exception {
+            mvc.perform(post("/boards/invalid-batch/widgets/batch").contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"operations\": [" +
+                            "{\"op\": \"add\", \"widget\": {\"x\": 0, \"y\": 0, \"width\": 1, \"height\": 1}}, " +
+                            "{\"op\": \"add\", \"widget\": {\"x\": 0, \"y\": 0, \"width\": -1, \"height\": 1}}]}"))
+                    .andExpect(status().isBadRequest());
+            mvc.perform(get("/boards/invalid-batch/widgets").param("page", "1"))
+                    .andExpect(status().isOk())
+                    .andExpect(jsonPath("$").isEmpty());
+        }
+    }
+
+    @Nested
+    public class WhenStreamReconnects {
+        private long version() throws Exception {
+            String body = mvc.perform(get("/widgets/changes").param("since", "0").accept(MediaType.APPLICATION_JSON))
+                    .andReturn().getResponse().getContentAsString();
+            return objectMapper.readTree(body).get("version").asLong();
+        }
+
+        private String stream(String header, Object value) throws Exception {
+            MvcResult result = mvc.perform(get("/widgets/changes").header(header, value).accept(MediaType.TEXT_EVENT_STREAM))
+                    .andExpect(request().asyncStarted())
+                    .andReturn();
+            return result.getResponse().getContentAsString();
+        }
+
+        @Test
+        public void whenLastEventId_ThenMissedChangesFirstWithVersionAsId() throws Exception {
+            long before = version();
+            mvc.perform(post("/widgets").contentType(MediaType.APPLICATION_JSON)
+                    .content("{\"x\": 0, \"y\": 0, \"width\": 1, \"height\": 1}"))
+                    .andExpect(status().isOk());
+            String events = stream("Last-Event-ID", before);
+            Assert.assertTrue(events, events.startsWith("event:changes\nid:" + (before + 1) + "\ndata:["));
+        }
+
+        @Test
+        public void whenVersionNotKept_ThenResyncFirst() throws Exception {
+            long current = version();
+            String events = stream("Last-Event-ID", 1);
+            Assert.assertTrue(events, events.startsWith("event:resync\nid:" + current + "\ndata:{"));
+        }
+
+        @Test
+        public void whenUpToDate_ThenNothingReplayed() throws Exception {
+            Assert.assertEquals("", stream("Last-Event-ID", version()));
+        }
+    }
+}
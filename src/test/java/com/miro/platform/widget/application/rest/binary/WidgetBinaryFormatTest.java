@@ -0,0 +1,70 @@
+package com.miro.platform.widget.application.rest.binary;
+
+import com.miro.platform.widget.application.rest.response.WidgetCursorPage;
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.ResolvableType;
+import org.springframework.http.MediaType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class WidgetBinaryFormatTest {
+    private static byte[] write(List<WidgetRecord> widgets, String cursor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WidgetBinaryFormat.writeList(widgets, out);
+        WidgetBinaryFormat.writeCursor(cursor, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void whenWrittenAndRead_ThenSameWidgets() throws IOException {
+        List<WidgetRecord> widgets = List.of(
+                new WidgetRecord(3, -5, 7, 10, 20, Long.MIN_VALUE, 1_600_000_000_000L),
+                new WidgetRecord(Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE, 1, 1, -1, 1_500_000_000_000L),
+                new WidgetRecord(0, 0, 0, 0, 0, Long.MAX_VALUE, 0));
+        ByteArrayInputStream in = new ByteArrayInputStream(write(widgets, "ejo1"));
+
+        Assert.assertEquals(widgets, WidgetBinaryFormat.readList(in));
+        Assert.assertEquals("ejo1", WidgetBinaryFormat.readCursor(in));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void whenSortedBoard_ThenFewBytesPerWidget() throws IOException {
+        List<WidgetRecord> widgets = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            widgets.add(new WidgetRecord(i, i * 3, 100 - i, 50, 50, i, 1_600_000_000_000L + i));
+        }
+        byte[] bytes = write(widgets, null);
+        //Id and coordinates up to 2 bytes each, deltas and sizes 1 byte
+        Assert.assertTrue(bytes.length < 1000 * 12);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        Assert.assertEquals(widgets, WidgetBinaryFormat.readList(in));
+        Assert.assertNull(WidgetBinaryFormat.readCursor(in));
+    }
+
+    @Test
+    public void whenTruncated_ThenThrowException() throws IOException {
+        byte[] bytes = write(List.of(new WidgetRecord(300, 1, 1, 1, 1, 1, 1)), null);
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(bytes, 3));
+        Assert.assertThrows(EOFException.class, () -> WidgetBinaryFormat.readList(in));
+    }
+
+    @Test
+    public void whenWildcardAccept_ThenConverterNotUsed() {
+        WidgetBinaryHttpMessageConverter converter = new WidgetBinaryHttpMessageConverter();
+        ResolvableType list = ResolvableType.forClassWithGenerics(List.class, WidgetRecord.class);
+        Assert.assertTrue(converter.canWrite(list.getType(), List.class, WidgetBinaryFormat.MEDIA_TYPE));
+        Assert.assertTrue(converter.canWrite(WidgetCursorPage.class, WidgetCursorPage.class, WidgetBinaryFormat.MEDIA_TYPE));
+        Assert.assertFalse(converter.canWrite(list.getType(), List.class, MediaType.ALL));
+        Assert.assertFalse(converter.canWrite(list.getType(), List.class, null));
+        Assert.assertFalse(converter.canWrite(List.class, List.class, WidgetBinaryFormat.MEDIA_TYPE));
+    }
+}
@@ -0,0 +1,241 @@
+package com.miro.platform.widget.application.rest.cache;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.miro.platform.widget.application.rest.response.WidgetCursorPage;
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.service.WidgetCustomService;
+import com.miro.platform.widget.domain.service.WidgetH2Service;
+import com.miro.platform.widget.domain.service.WidgetService;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetResponseCacheTest {
+    private final ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+    private final WidgetService service = new WidgetCustomService(new WidgetCustomRepo(new IdGenerator()));
+    private WidgetResponseCache cache = new WidgetResponseCache(service, objectMapper, 1 << 20);
+
+    private WidgetRecord add(Long zIndex) {
+        return service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+    }
+
+    @BeforeEach
+    public void setup() {
+        for (long zIndex = 0; zIndex < 100; zIndex += 10) {
+            add(zIndex);
+        }
+    }
+
+    @Nested
+    public class GivenWidget {
+        @Test
+        public void whenReadAgain_ThenHit() throws Exception {
+            WidgetRecord widget = service.findById(0L);
+            byte[] first = cache.getWidget(widget);
+            Assert.assertSame(first, cache.getWidget(service.findById(0L)));
+            Assert.assertArrayEquals(objectMapper.writeValueAsBytes(widget), first);
+            Assert.assertEquals(1, cache.getStats().getHits());
+            Assert.assertEquals(1, cache.getStats().getMisses());
+        }
+
+        @Test
+        public void whenShiftedMeanwhile_ThenSerializedAgain() throws Exception {
+            cache.getWidget(service.findById(0L));
+            add(0L);
+            WidgetRecord shifted = service.findById(0L);
+            Assert.assertArrayEquals(objectMapper.writeValueAsBytes(shifted), cache.getWidget(shifted));
+            Assert.assertEquals(1, cache.getStats().getInvalidations());
+        }
+    }
+
+    @Nested
+    public class GivenKeysetPage {
+        @Test
+        public void whenChangedAboveFullPage_ThenKept() {
+            byte[] page = cache.getPageAfter(10L, 3);
+            add(null);
+            add(75L);
+            service.updateWidget(9L, getDummyBuilderNoIdNoZindex().withZIndex(85L).build());
+            Assert.assertSame(page, cache.getPageAfter(10L, 3));
+        }
+
+        @Test
+        public void whenAddedInside_ThenDropped() {
+            byte[] page = cache.getPageAfter(10L, 3);
+            add(25L);
+            Assert.assertNotSame(page, cache.getPageAfter(10L, 3));
+        }
+
+        @Test
+        public void whenWidgetBelowShiftedOntoPage_ThenDropped() {
+            byte[] page = cache.getPageAfter(11L, 3);
+            service.updateWidget(1L, getDummyBuilderNoIdNoZindex().withZIndex(11L).build());
+            add(11L);
+            Assert.assertNotSame(page, cache.getPageAfter(11L, 3));
+        }
+    }
+
+    @Nested
+    public class GivenOffsetPage {
+        @Test
+        public void whenAddedOnTop_ThenKept() {
+            byte[] page = cache.getPage(1, 5);
+            add(null);
+            Assert.assertSame(page, cache.getPage(1, 5));
+        }
+
+        @Test
+        public void whenRemovedAnywhere_ThenDropped() {
+            byte[] page = cache.getPage(1, 5);
+            service.removeWidget(9L);
+            Assert.assertNotSame(page, cache.getPage(1, 5));
+        }
+
+        @Test
+        public void whenAddedAfterLastPage_ThenShowsOnIt() throws Exception {
+            Assert.assertArrayEquals("[]".getBytes(), cache.getPage(3, 5));
+            add(null);
+            Assert.assertArrayEquals(objectMapper.writeValueAsBytes(service.findAll(3, 5)), cache.getPage(3, 5));
+            Assert.assertEquals(1, service.findAll(3, 5).size());
+        }
+    }
+
+    @Test
+    public void whenChangesNotKept_ThenDroppedWithoutReadingTheBoard() {
+        AtomicInteger fullReads = new AtomicInteger();
+        WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator(), new StampedLockStrategy(), null, 2) {
+            @Override
+            public List<WidgetRecord> findAllSorted() {
+                fullReads.incrementAndGet();
+                return super.findAllSorted();
+            }
+        };
+        WidgetService h2Service = new WidgetH2Service(widgetRepo, new StampedLockStrategy(), WidgetH2Service.DENSE, 2);
+        cache = new WidgetResponseCache(h2Service, objectMapper, 1 << 20);
+        for (int i = 0; i < 5; i++) {
+            h2Service.addWidget(getDummyBuilderNoIdNoZindex().build());
+        }
+
+        byte[] page = cache.getPage(1, 5);
+        h2Service.addWidget(getDummyBuilderNoIdNoZindex().build());
+        Assert.assertSame(page, cache.getPage(1, 5));
+        for (int i = 0; i < 3; i++) {
+            h2Service.addWidget(getDummyBuilderNoIdNoZindex().build());
+        }
+        Assert.assertNotSame(page, cache.getPage(1, 5));
+        Assert.assertEquals(1, cache.getStats().getInvalidations());
+        Assert.assertEquals(0, fullReads.get());
+    }
+
+    @Test
+    public void whenFull_ThenLeastRecentlyUsedEvicted() {
+        cache = new WidgetResponseCache(service, objectMapper, 600);
+        for (long id = 0; id < 10; id++) {
+            cache.getWidget(service.findById(id));
+        }
+        Assert.assertTrue(cache.getStats().getBytes() <= 600);
+        Assert.assertTrue(cache.getStats().getEvictions() > 0);
+        cache.getWidget(service.findById(9L));
+        Assert.assertEquals(1, cache.getStats().getHits());
+    }
+
+    @Test
+    public void whenMetricsBound_ThenCountersFollowStats() {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        cache = new WidgetResponseCache(service, objectMapper, 600);
+        cache.bindMetrics(registry);
+        for (long id = 0; id < 10; id++) {
+            cache.getWidget(service.findById(id));
+        }
+        cache.getWidget(service.findById(9L));
+        add(0L);
+        cache.getWidget(service.findById(9L));
+
+        ResponseCacheStats stats = cache.getStats();
+        Assert.assertEquals(stats.getHits(), registry.get("widgets.response-cache.hits").functionCounter().count(), 0);
+        Assert.assertEquals(stats.getMisses(), registry.get("widgets.response-cache.misses").functionCounter().count(), 0);
+        Assert.assertEquals(1, registry.get("widgets.response-cache.invalidations").functionCounter().count(), 0);
+        Assert.assertEquals(stats.getEvictions(), registry.get("widgets.response-cache.evictions").functionCounter().count(), 0);
+        Assert.assertTrue(stats.getEvictions() > 0);
+        Assert.assertEquals(stats.getBytes(), registry.get("widgets.response-cache.bytes").gauge().value(), 0);
+    }
+
+    @Test
+    public void whenReadConcurrently_ThenStaysWithinMaxAndKeepsHotEntries() throws Exception {
+        cache = new WidgetResponseCache(service, objectMapper, 1000);
+        for (long zIndex = 100; zIndex < 200; zIndex++) {
+            add(zIndex);
+        }
+        List<WidgetRecord> widgets = service.findAll();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                Random random = new Random(thread);
+                readers.add(executor.submit(() -> {
+                    for (int i = 0; i < 5_000; i++) {
+                        //Every other read is of the first widget, so it stays hot
+                        cache.getWidget(widgets.get(i % 2 == 0 ? 0 : random.nextInt(widgets.size())));
+                    }
+                }));
+            }
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        ResponseCacheStats stats = cache.getStats();
+        Assert.assertTrue(stats.getBytes() <= 1000);
+        Assert.assertEquals(4 * 5_000, stats.getHits() + stats.getMisses());
+        Assert.assertTrue(stats.getHits() > 0);
+        Assert.assertTrue(stats.getEvictions() > 0);
+        Assert.assertTrue(stats.getEntries() > 0 && stats.getBytes() > 0);
+        //The most read widget is still there
+        cache.getWidget(widgets.get(0));
+        Assert.assertEquals(stats.getHits() + 1, cache.getStats().getHits());
+    }
+
+    @Test
+    public void whenRandomWrites_ThenAlwaysSameAsSerializingAgain() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            List<WidgetRecord> widgets = service.findAll();
+            int operation = random.nextInt(4);
+            if (operation == 0 && !widgets.isEmpty()) {
+                service.removeWidget(widgets.get(random.nextInt(widgets.size())).getId());
+            } else if (operation == 1 && !widgets.isEmpty()) {
+                Widget update = getDummyBuilderNoIdNoZindex().withZIndex((long) random.nextInt(120)).build();
+                service.updateWidget(widgets.get(random.nextInt(widgets.size())).getId(), update);
+            } else {
+                add(random.nextBoolean() ? null : (long) random.nextInt(120));
+            }
+
+            for (Long after : new Long[]{null, 20L, 60L}) {
+                Assert.assertArrayEquals(
+                        objectMapper.writeValueAsBytes(WidgetCursorPage.of(service.findAfterZindex(after, 5), 5)),
+                        cache.getPageAfter(after, 5));
+            }
+            Assert.assertArrayEquals(objectMapper.writeValueAsBytes(service.findAll(1, 5)), cache.getPage(1, 5));
+        }
+        Assert.assertTrue(cache.getStats().getHits() > 0);
+    }
+}
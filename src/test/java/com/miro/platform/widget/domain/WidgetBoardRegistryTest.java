@@ -0,0 +1,75 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.service.WidgetBoardRegistry;
+import com.miro.platform.widget.domain.service.WidgetService;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetBoardRegistryTest {
+    private final WidgetBoardRegistry registry = new WidgetBoardRegistry(boardId -> new WidgetCustomRepo(new IdGenerator()), 3);
+
+    @Test
+    public void whenSameBoard_ThenSameService() {
+        Assert.assertSame(registry.get("a"), registry.get("a"));
+        Assert.assertNotSame(registry.get("a"), registry.get("b"));
+        Assert.assertEquals(2, registry.size());
+    }
+
+    @Test
+    public void whenWritingToOneBoard_ThenOthersUntouched() {
+        WidgetService a = registry.get("a");
+        WidgetService b = registry.get("b");
+        a.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+        b.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+        WidgetRecord added = a.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+
+        //Own ids and own shifting
+        Assert.assertEquals(1L, added.getId());
+        Assert.assertEquals(1L, a.findById(0L).getzIndex());
+        Assert.assertEquals(0L, b.findById(0L).getzIndex());
+        Assert.assertEquals(1, b.findAll().size());
+    }
+
+    @Test
+    public void whenInvalidId_ThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> registry.get("../a"));
+        Assert.assertThrows(IllegalArgumentException.class, () -> registry.get(""));
+        Assert.assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void whenLimitReached_ThenOnlyExistingBoards() {
+        for (String boardId : new String[]{"a", "b", "c"}) {
+            registry.get(boardId);
+        }
+        Assert.assertThrows(IllegalStateException.class, () -> registry.get("d"));
+        Assert.assertNotNull(registry.get("a"));
+    }
+
+    @Test
+    public void whenManyThreadsAskForNewBoard_ThenCreatedOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<WidgetService>> services = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            services.add(executor.submit(() -> {
+                start.await();
+                return registry.get("a");
+            }));
+        }
+        start.countDown();
+        for (Future<WidgetService> service : services) {
+            Assert.assertSame(registry.get("a"), service.get(10, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        Assert.assertEquals(1, registry.size());
+    }
+}
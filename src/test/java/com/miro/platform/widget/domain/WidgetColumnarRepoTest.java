@@ -0,0 +1,231 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import com.miro.platform.widget.domain.repository.WidgetColumnarRepo;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetColumnarRepoTest {
+    private WidgetColumnarRepo widgetRepo = new WidgetColumnarRepo(new IdGenerator());
+
+    @Nested
+    public class GivenExistingWidgets {
+        Long[] zIndexes = new Long[]{-5L, 0L, 5L};
+
+        @BeforeEach
+        public void setup() {
+            List<Widget> widgetList = new ArrayList<>();
+            long i = 0;
+            for (long zIndex : zIndexes) {
+                Widget widget = getDummyBuilderNoIdNoZindex()
+                        .withId(i++)
+                        .withZIndex(zIndex)
+                        .build();
+                widgetList.add(widget);
+            }
+            widgetRepo = new WidgetColumnarRepo(new IdGenerator(zIndexes.length), widgetList);
+        }
+
+        @Test
+        public void whenFindOverlapping_ThenOtherIntersectingWidgetsSorted() {
+            WidgetRecord far = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex(1000L).withZIndex(-10L).build());
+            List<Long> actual = widgetRepo.findOverlapping(1L).stream()
+                    .map(WidgetRecord::getzIndex)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(-5L, 5L), actual);
+            Assert.assertEquals(List.of(), widgetRepo.findOverlapping(far.getId()));
+            Assert.assertThrows(ResourceNotFoundException.class, () -> widgetRepo.findOverlapping(99L));
+        }
+
+        @Test
+        public void whenFindAtPoint_ThenCoveringWidgetsTopmostFirst() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex(1000L).withZIndex(-10L).build());
+            List<Long> actual = widgetRepo.findAtPoint(2, 2).stream()
+                    .map(WidgetRecord::getzIndex)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(5L, 0L, -5L), actual);
+            Assert.assertEquals(List.of(), widgetRepo.findAtPoint(3, 3));
+        }
+
+        @Test
+        public void whenAddWithoutZindex_ThenAppendedOnTop() {
+            WidgetRecord addedWidget = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().build());
+            Assert.assertEquals(6L, addedWidget.getzIndex());
+            Assert.assertEquals(6L, widgetRepo.getForeground());
+            Assert.assertEquals(4, widgetRepo.findAllSorted().size());
+        }
+
+        @Test
+        public void whenAddWithMinExistingZindex_ThenShiftAll() {
+            WidgetRecord addedWidget = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(-5L).build());
+            List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
+            Assert.assertEquals(addedWidget, widgetList.get(0));
+            for (int i = 0; i < zIndexes.length; i++) {
+                Long expectedZindex = zIndexes[i] + 1;
+                Assert.assertEquals(expectedZindex.longValue(), widgetList.get(i + 1).getzIndex());
+                Assert.assertEquals(expectedZindex.longValue(), widgetRepo.findById((long) i).get().getzIndex());
+                Assert.assertEquals(Optional.of(widgetList.get(i + 1)), widgetRepo.findByZindex(expectedZindex));
+            }
+            Assert.assertEquals(Optional.empty(), widgetRepo.findByZindex(5L));
+            Assert.assertEquals(6L, widgetRepo.getForeground());
+        }
+
+        @Test
+        public void whenAddWithNonExistingZindex_ThenNoShifting() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(3L).build());
+            List<Long> actual = widgetRepo.findAllSorted().stream().map(WidgetRecord::getzIndex).collect(Collectors.toList());
+            Assert.assertEquals(List.of(-5L, 0L, 3L, 5L), actual);
+        }
+
+        @Test
+        public void whenFindGreaterThanEqualZindex_ThenOnlyUpperPartSorted() {
+            List<Long> actual = widgetRepo.findGreaterThanEqualZindex(0L).stream()
+                    .map(WidgetRecord::getzIndex)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(0L, 5L), actual);
+        }
+
+        @Test
+        public void whenFindPage_ThenSlicesOfSortedList() {
+            Assert.assertEquals(List.of(0L, 1L), widgetRepo.findPage(1, 2).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(2L), widgetRepo.findPage(2, 2).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(), widgetRepo.findPage(3, 2));
+        }
+
+        @Test
+        public void whenFindAfterZindex_ThenAtMostLimitAfterIt() {
+            Assert.assertEquals(List.of(0L, 1L), widgetRepo.findAfterZindex(null, 2).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(1L, 2L), widgetRepo.findAfterZindex(-5L, 5).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(2L), widgetRepo.findAfterZindex(3L, 5).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(), widgetRepo.findAfterZindex(5L, 5));
+        }
+
+        @Test
+        public void whenUpdateSameZindex_ThenChangeAttributes() {
+            Widget widget = getDummyBuilderNoIdNoZindex(10L).withId(1L).withZIndex(0L).build();
+            WidgetRecord updatedWidget = widgetRepo.updateWidget(widget);
+            Assert.assertEquals(10L, updatedWidget.getX());
+            Assert.assertEquals(Optional.of(updatedWidget), widgetRepo.findById(1L));
+        }
+
+        @Test
+        public void whenUpdateToExistingZindex_ThenMoveAndShift() {
+            Widget widget = getDummyBuilderNoIdNoZindex().withId(2L).withZIndex(-5L).build();
+            widgetRepo.updateWidget(widget);
+            List<Long> actual = widgetRepo.findAllSorted().stream().map(WidgetRecord::getId).collect(Collectors.toList());
+            Assert.assertEquals(List.of(2L, 0L, 1L), actual);
+            Assert.assertEquals(1L, widgetRepo.getForeground());
+        }
+
+        @Test
+        public void whenFindInArea_ThenOnlyContainedWidgetsSorted() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex(1000L).withZIndex(-10L).build());
+            List<Long> actual = widgetRepo.findInArea(new Rectangle(0, 0, 100, 100)).stream()
+                    .map(WidgetRecord::getzIndex)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(-5L, 0L, 5L), actual);
+        }
+
+        @Test
+        public void whenRemovedThenAdded_ThenSlotReused() {
+            widgetRepo.removeWidget(0L);
+            WidgetRecord addedWidget = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            Assert.assertEquals(Optional.of(addedWidget), widgetRepo.findByZindex(0L));
+            Assert.assertEquals(List.of(3L, 1L, 2L), widgetRepo.findAllSorted().stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+        }
+
+        @Test
+        public void whenApplyBatch_ThenFailingCommandSkippedUnderOneVersion() {
+            long before = widgetRepo.findChangesSince(0L).getVersion();
+            List<WidgetCommand.Result> results = widgetRepo.applyBatch(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                    WidgetCommand.remove(99L),
+                    WidgetCommand.remove(1L)));
+            Assert.assertTrue(results.get(0).isSuccess());
+            Assert.assertTrue(results.get(1).getError() instanceof ResourceNotFoundException);
+            Assert.assertTrue(results.get(2).isSuccess());
+            Assert.assertEquals(List.of(0L, 3L, 2L), widgetRepo.findAllSorted().stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(before + 1, widgetRepo.findDeltaSince(before).getVersion());
+        }
+
+        @Test
+        public void whenRemove_ThenRemovedEverywhere() {
+            widgetRepo.removeWidget(2L);
+            Assert.assertEquals(Optional.empty(), widgetRepo.findById(2L));
+            Assert.assertEquals(Optional.empty(), widgetRepo.findByZindex(5L));
+            Assert.assertEquals(0L, widgetRepo.getForeground());
+            Assert.assertThrows(ResourceNotFoundException.class, () -> widgetRepo.removeWidget(2L));
+        }
+    }
+
+    /**
+     * Columnar store should behave exactly like the list based repo for any sequence of operations
+     */
+    @Test
+    public void givenRandomOperations_ThenSameResultAsCustomRepo() {
+        Random random = new Random(42);
+        WidgetCustomRepo customRepo = new WidgetCustomRepo(new IdGenerator());
+        for (int i = 0; i < 2000; i++) {
+            int operation = random.nextInt(10);
+            List<WidgetRecord> current = customRepo.findAllSorted();
+            if (operation < 6 || current.isEmpty()) {
+                Widget.Builder builder = getDummyBuilderNoIdNoZindex((long) i);
+                if (random.nextBoolean())
+                    builder.withZIndex((long) random.nextInt(50) - 25);
+                WidgetRecord added = customRepo.addWidget(builder.build());
+                builder.withId(added.getId());
+                widgetRepo.addWidget(builder.build());
+            } else if (operation < 8) {
+                Long id = current.get(random.nextInt(current.size())).getId();
+                Widget widget = getDummyBuilderNoIdNoZindex((long) i)
+                        .withId(id)
+                        .withZIndex((long) random.nextInt(50) - 25)
+                        .build();
+                customRepo.updateWidget(widget);
+                widgetRepo.updateWidget(widget);
+            } else {
+                Long id = current.get(random.nextInt(current.size())).getId();
+                customRepo.removeWidget(id);
+                widgetRepo.removeWidget(id);
+            }
+
+            Assert.assertEquals(customRepo.getForeground(), widgetRepo.getForeground());
+        }
+
+        List<WidgetRecord> expected = customRepo.findAllSorted();
+        List<WidgetRecord> actual = widgetRepo.findAllSorted();
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals(expected.get(i).getId(), actual.get(i).getId());
+            Assert.assertEquals(expected.get(i).getzIndex(), actual.get(i).getzIndex());
+            Assert.assertEquals(Optional.of(actual.get(i)), widgetRepo.findByZindex(actual.get(i).getzIndex()));
+        }
+    }
+}
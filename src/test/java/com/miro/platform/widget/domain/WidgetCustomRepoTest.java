@@ -1,19 +1,32 @@
 package com.miro.platform.widget.domain;
 
+import com.miro.platform.widget.domain.concurrency.ConcurrencyStrategy;
+import com.miro.platform.widget.domain.concurrency.CopyOnWriteStrategy;
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
 import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
 import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
 import com.miro.platform.widget.domain.utils.IdGenerator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.Assert;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.springframework.dao.DuplicateKeyException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
@@ -28,8 +41,8 @@ public class WidgetCustomRepoTest {
         public void givenWidgetWithoutZindex_ToEmptyPlane_ThenAppendedToListWithZeroZindex() {
             Widget toAdd = getDummyBuilderNoIdNoZindex().build();
 
-            Widget addedWidget = widgetRepo.addWidget(toAdd);
-            Assert.assertEquals("Wrong zIndex value", 0L, addedWidget.getzIndex().longValue());
+            WidgetRecord addedWidget = widgetRepo.addWidget(toAdd);
+            Assert.assertEquals("Wrong zIndex value", 0L, addedWidget.getzIndex());
             Assert.assertEquals("List size mismatch", 1, widgetRepo.findAllSorted().size());
             Assert.assertEquals("Widget not correct", addedWidget, widgetRepo.findAllSorted().get(0));
             Assert.assertEquals(Optional.of(addedWidget), widgetRepo.findByZindex(0L));
@@ -58,15 +71,15 @@ public class WidgetCustomRepoTest {
                 Widget toAdd = getDummyBuilderNoIdNoZindex()
                         .build();
 
-                Widget addedWidget = widgetRepo.addWidget(toAdd);
+                WidgetRecord addedWidget = widgetRepo.addWidget(toAdd);
                 Assert.assertNotNull(addedWidget.getId());
                 Assert.assertNotNull(addedWidget.getzIndex());
-                Assert.assertEquals("Wrong zIndex value", 6L, addedWidget.getzIndex().longValue());
-                List<Widget> widgetList = widgetRepo.findAllSorted();
+                Assert.assertEquals("Wrong zIndex value", 6L, addedWidget.getzIndex());
+                List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
                 Assert.assertEquals("List size mismatch", 4, widgetList.size());
                 Assert.assertEquals("Widget not correct", addedWidget, widgetList.get(widgetList.size() - 1));
                 Assert.assertEquals(Optional.of(addedWidget), widgetRepo.findByZindex(addedWidget.getzIndex()));
-                Assert.assertEquals(addedWidget.getzIndex().longValue(), widgetRepo.getForeground());
+                Assert.assertEquals(addedWidget.getzIndex(), widgetRepo.getForeground());
             }
 
             @Test
@@ -76,19 +89,19 @@ public class WidgetCustomRepoTest {
                         .withZIndex(newZindex)
                         .build();
 
-                Widget addedWidget = widgetRepo.addWidget(toAdd);
-                List<Widget> widgetList = widgetRepo.findAllSorted();
+                WidgetRecord addedWidget = widgetRepo.addWidget(toAdd);
+                List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
                 int expectedWidgetIndex = 1;
                 Assert.assertNotNull(addedWidget.getId());
                 Assert.assertNotNull(addedWidget.getzIndex());
                 Assert.assertEquals("List size mismatch", 4, widgetList.size());
                 Assert.assertEquals("Widget not in the right place", addedWidget, widgetList.get(expectedWidgetIndex));
-                Assert.assertEquals("Wrong zIndex value", zIndexes[0], widgetList.get(0).getzIndex());
+                Assert.assertEquals("Wrong zIndex value", zIndexes[0].longValue(), widgetList.get(0).getzIndex());
                 Assert.assertEquals(6L, widgetRepo.getForeground());
                 for (int i = expectedWidgetIndex + 1, j = 1; i < widgetList.size(); i++, j++) {
                     Long expectedZindex = zIndexes[j] + 1;
-                    Widget tmpWidget = widgetList.get(i);
-                    Assert.assertEquals("Wrong zIndex value", expectedZindex, tmpWidget.getzIndex());
+                    WidgetRecord tmpWidget = widgetList.get(i);
+                    Assert.assertEquals("Wrong zIndex value", expectedZindex.longValue(), tmpWidget.getzIndex());
                     Assert.assertEquals("zIndexMap keys mismatch",
                             widgetRepo.findByZindex(expectedZindex),
                             Optional.of(tmpWidget)
@@ -103,19 +116,19 @@ public class WidgetCustomRepoTest {
                         .withZIndex(newZindex)
                         .build();
 
-                Widget addedWidget = widgetRepo.addWidget(toAdd);
-                List<Widget> widgetList = widgetRepo.findAllSorted();
+                WidgetRecord addedWidget = widgetRepo.addWidget(toAdd);
+                List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
                 int expectedWidgetIndex = 0;
                 Assert.assertEquals("List size mismatch", 4, widgetList.size());
                 Assert.assertEquals("Widget not in the right place", addedWidget, widgetList.get(expectedWidgetIndex));
-                Assert.assertEquals("Wrong zIndex value", zIndexes[0], widgetList.get(0).getzIndex());
+                Assert.assertEquals("Wrong zIndex value", zIndexes[0].longValue(), widgetList.get(0).getzIndex());
                 Assert.assertEquals(6L, widgetRepo.getForeground());
                 Assert.assertNotNull(addedWidget.getId());
                 Assert.assertNotNull(addedWidget.getzIndex());
                 for (int i = expectedWidgetIndex + 1, j = 0; i < widgetList.size(); i++, j++) {
                     Long expectedZindex = zIndexes[j] + 1;
-                    Widget tmpWidget = widgetList.get(i);
-                    Assert.assertEquals("Wrong zIndex value", expectedZindex, tmpWidget.getzIndex());
+                    WidgetRecord tmpWidget = widgetList.get(i);
+                    Assert.assertEquals("Wrong zIndex value", expectedZindex.longValue(), tmpWidget.getzIndex());
                     Assert.assertEquals("zIndexMap keys mismatch",
                             widgetRepo.findByZindex(expectedZindex),
                             Optional.of(tmpWidget)
@@ -130,19 +143,54 @@ public class WidgetCustomRepoTest {
                 Widget toAdd = getDummyBuilderNoIdNoZindex()
                         .withZIndex(newZindex)
                         .build();
-                Widget addedWidget = widgetRepo.addWidget(toAdd);
-                List<Widget> widgetList = widgetRepo.findAllSorted();
+                WidgetRecord addedWidget = widgetRepo.addWidget(toAdd);
+                List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
                 int expectedWidgetIndex = 2;
                 Assert.assertNotNull(addedWidget.getId());
                 Assert.assertNotNull(addedWidget.getzIndex());
                 Assert.assertEquals("List size mismatch", 4, widgetList.size());
                 Assert.assertEquals("Widget not in the right place", addedWidget, widgetList.get(expectedWidgetIndex));
                 Assert.assertEquals(5L, widgetRepo.getForeground());
-                Assert.assertEquals(5L, widgetList.get(widgetList.size() - 1).getzIndex().longValue());
+                Assert.assertEquals(5L, widgetList.get(widgetList.size() - 1).getzIndex());
             }
         }
     }
 
+    @Nested
+    public class WhenInitFromList {
+        @Test
+        public void givenUnsortedLargeList_ThenSortedAndIndexed() {
+            List<Widget> widgetList = new ArrayList<>();
+            //Above the parallel sort threshold, zIndexes in reverse order
+            for (long i = 0; i < 20_000; i++) {
+                widgetList.add(getDummyBuilderNoIdNoZindex(i).withZIndex(-2 * i).build());
+            }
+            widgetRepo = new WidgetCustomRepo(new IdGenerator(), widgetList);
+
+            List<WidgetRecord> sorted = widgetRepo.findAllSorted();
+            Assert.assertEquals(20_000, sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                Assert.assertEquals(-2L * (sorted.size() - 1 - i), sorted.get(i).getzIndex());
+                //Ids are given in zIndex order
+                Assert.assertEquals(i, sorted.get(i).getId());
+            }
+            Assert.assertEquals(0L, widgetRepo.getForeground());
+            Assert.assertEquals(Optional.of(sorted.get(5)), widgetRepo.findByZindex(sorted.get(5).getzIndex()));
+            Assert.assertEquals(Optional.of(sorted.get(5)), widgetRepo.findById(5L));
+            Assert.assertEquals(20_000, widgetRepo.findInArea(new Rectangle(0, 0, 40_000, 40_000)).size());
+        }
+
+        @Test
+        public void givenDuplicates_ThenThrowException() {
+            Assert.assertThrows(IllegalStateException.class, () -> new WidgetCustomRepo(new IdGenerator(), List.of(
+                    getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(1L).build(),
+                    getDummyBuilderNoIdNoZindex().withId(2L).withZIndex(1L).build())));
+            Assert.assertThrows(IllegalStateException.class, () -> new WidgetCustomRepo(new IdGenerator(), List.of(
+                    getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(1L).build(),
+                    getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(2L).build())));
+        }
+    }
+
     @Nested
     public class WhenRemoveWidget {
         //Make sure they are sorted, they will be sorted anyways inside
@@ -193,7 +241,7 @@ public class WidgetCustomRepoTest {
 
         @Test
         public void whenRemoveAllWidgets_ThenResetForeground() {
-            List<Long> idList = widgetRepo.findAllSorted().stream().map(Widget::getId).collect(Collectors.toList());
+            List<Long> idList = widgetRepo.findAllSorted().stream().map(WidgetRecord::getId).collect(Collectors.toList());
             for (Long id : idList) {
                 widgetRepo.removeWidget(id);
             }
@@ -233,15 +281,36 @@ public class WidgetCustomRepoTest {
                     .withId(id)
                     .build();
 
-            Widget updatedWidget = widgetRepo.updateWidget(widget);
-            Assert.assertEquals(id, updatedWidget.getId());
-            Assert.assertEquals(newAttribute, updatedWidget.getX());
-            Assert.assertEquals(newAttribute, updatedWidget.getY());
-            Assert.assertEquals(newAttribute, updatedWidget.getWidth());
-            Assert.assertEquals(newAttribute, updatedWidget.getHeight());
+            WidgetRecord updatedWidget = widgetRepo.updateWidget(widget);
+            Assert.assertEquals(id.longValue(), updatedWidget.getId());
+            Assert.assertEquals(newAttribute.longValue(), updatedWidget.getX());
+            Assert.assertEquals(newAttribute.longValue(), updatedWidget.getY());
+            Assert.assertEquals(newAttribute.longValue(), updatedWidget.getWidth());
+            Assert.assertEquals(newAttribute.longValue(), updatedWidget.getHeight());
             Assert.assertEquals(Optional.of(updatedWidget), widgetRepo.findById(id));
         }
 
+        @Test
+        public void whenInvalidGeometry_ThenRepoUnchanged() {
+            List<WidgetRecord> before = widgetRepo.findAllSorted();
+            long version = widgetRepo.getVersion().getAsLong();
+            List<WidgetChangeEvent> emitted = new ArrayList<>();
+            widgetRepo.setChangeListener((writeVersion, events) -> emitted.addAll(events));
+
+            //zIndex 0 is taken, so a valid add would shift
+            Assert.assertThrows(IllegalArgumentException.class, () -> widgetRepo.addWidget(
+                    getDummyBuilderNoIdNoZindex().withWidth(-5L).withZIndex(0L).build()));
+            Assert.assertThrows(IllegalArgumentException.class, () -> widgetRepo.addWidget(
+                    getDummyBuilderNoIdNoZindex().withX(Long.MAX_VALUE).withZIndex(0L).build()));
+            Assert.assertThrows(IllegalArgumentException.class, () -> widgetRepo.updateWidget(
+                    getDummyBuilderNoIdNoZindex().withId(2L).withHeight(-1L).withZIndex(-5L).build()));
+
+            Assert.assertEquals(before, widgetRepo.findAllSorted());
+            Assert.assertEquals(version, widgetRepo.getVersion().getAsLong());
+            Assert.assertEquals(Optional.of(before.get(1)), widgetRepo.findByZindex(0L));
+            Assert.assertEquals(List.of(), emitted);
+        }
+
         @Test
         public void whenChangeZindex_ThenRemoveAndAddNewWithSameId() {
             Long newAttribute = 10L;
@@ -253,7 +322,7 @@ public class WidgetCustomRepoTest {
                     .withId(id)
                     .build();
 
-            Widget updatedWidget = widgetRepo.updateWidget(widget);
+            WidgetRecord updatedWidget = widgetRepo.updateWidget(widget);
             //Nothing new added
             Assert.assertEquals(3, widgetRepo.findAllSorted().size());
             //No widget with old zIndex
@@ -275,6 +344,468 @@ public class WidgetCustomRepoTest {
 
     }
 
+    @Nested
+    public class WhenFindPage {
+
+        @BeforeEach
+        public void setup() {
+            List<Widget> widgetList = new ArrayList<>();
+            for (long i = 0; i < 7; i++) {
+                widgetList.add(getDummyBuilderNoIdNoZindex().withId(i).withZIndex(i * 2).build());
+            }
+            widgetRepo = new WidgetCustomRepo(new IdGenerator(7L), widgetList);
+        }
+
+        @Test
+        public void whenPagesRequested_ThenSlicesOfSortedList() {
+            List<Long> firstPage = widgetRepo.findPage(1, 3).stream().map(WidgetRecord::getId).collect(Collectors.toList());
+            List<Long> lastPage = widgetRepo.findPage(3, 3).stream().map(WidgetRecord::getId).collect(Collectors.toList());
+            Assert.assertEquals(List.of(0L, 1L, 2L), firstPage);
+            Assert.assertEquals(List.of(6L), lastPage);
+            Assert.assertEquals(List.of(), widgetRepo.findPage(4, 3));
+        }
+
+        @Test
+        public void whenFindAfterZindex_ThenContinuesAfterIt() {
+            Assert.assertEquals(List.of(0L, 1L, 2L), widgetRepo.findAfterZindex(null, 3).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            //Existing and missing zIndexes alike
+            Assert.assertEquals(List.of(3L, 4L), widgetRepo.findAfterZindex(4L, 2).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(3L, 4L), widgetRepo.findAfterZindex(5L, 2).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(6L), widgetRepo.findAfterZindex(10L, 3).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(), widgetRepo.findAfterZindex(12L, 3));
+        }
+
+        @Test
+        public void whenReturnedListChanged_ThenThrowException() {
+            Assert.assertThrows(UnsupportedOperationException.class, () -> widgetRepo.findPage(1, 3).set(0, null));
+            Assert.assertThrows(UnsupportedOperationException.class, () -> widgetRepo.findAllSorted().remove(0));
+            Assert.assertEquals(7, widgetRepo.findAllSorted().size());
+        }
+
+        @Test
+        public void whenAddedAfterReading_ThenNextPageSeesIt() {
+            List<WidgetRecord> before = widgetRepo.findPage(1, 3);
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            Assert.assertEquals(0L, before.get(0).getId());
+            Assert.assertEquals(7L, widgetRepo.findPage(1, 3).get(0).getId());
+            Assert.assertEquals(List.of(1L, 3L, 5L, 7L), widgetRepo.findGreaterThanEqualZindex(1L).stream()
+                    .map(WidgetRecord::getzIndex)
+                    .limit(4)
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    @Nested
+    public class WhenFindInArea {
+
+        @BeforeEach
+        public void setup() {
+            List<Widget> widgetList = new ArrayList<>();
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(3L)
+                    .withX(0L).withY(0L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(2L).withZIndex(1L)
+                    .withX(0L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(3L).withZIndex(2L)
+                    .withX(50L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetRepo = new WidgetCustomRepo(new IdGenerator(4L), widgetList);
+        }
+
+        @Test
+        public void whenWidgetsFullyInside_ThenReturnedSortedByZindex() {
+            List<Long> ids = widgetRepo.findInArea(new Rectangle(0, 0, 100, 150)).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(2L, 1L), ids);
+        }
+
+        @Test
+        public void whenWidgetMovedOrRemoved_ThenIndexFollows() {
+            widgetRepo.updateWidget(getDummyBuilderNoIdNoZindex().withId(3L).withZIndex(2L)
+                    .withX(0L).withY(0L).withWidth(10L).withHeight(10L).build());
+            widgetRepo.removeWidget(1L);
+            List<Long> ids = widgetRepo.findInArea(new Rectangle(0, 0, 100, 150)).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList());
+            Assert.assertEquals(List.of(2L, 3L), ids);
+        }
+    }
+
+    @Nested
+    public class WhenFindAtPoint {
+
+        @BeforeEach
+        public void setup() {
+            List<Widget> widgetList = new ArrayList<>();
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(3L)
+                    .withX(0L).withY(0L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(2L).withZIndex(1L)
+                    .withX(0L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(3L).withZIndex(2L)
+                    .withX(50L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetRepo = new WidgetCustomRepo(new IdGenerator(4L), widgetList);
+        }
+
+        private List<Long> idsAt(long x, long y) {
+            return widgetRepo.findAtPoint(x, y).stream().map(WidgetRecord::getId).collect(Collectors.toList());
+        }
+
+        @Test
+        public void whenCoveredBySeveral_ThenTopmostFirst() {
+            Assert.assertEquals(List.of(1L, 3L, 2L), idsAt(60, 60));
+            Assert.assertEquals(List.of(1L), idsAt(0, 0));
+            Assert.assertEquals(List.of(3L), idsAt(150, 150));
+            Assert.assertEquals(List.of(), idsAt(151, 150));
+        }
+
+        @Test
+        public void whenWidgetMovedOrRemoved_ThenIndexFollows() {
+            widgetRepo.updateWidget(getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(0L)
+                    .withX(55L).withY(55L).withWidth(10L).withHeight(10L).build());
+            widgetRepo.removeWidget(2L);
+            Assert.assertEquals(List.of(3L, 1L), idsAt(60, 60));
+            Assert.assertEquals(List.of(), idsAt(0, 0));
+        }
+
+        @Test
+        public void whenRandomBoard_ThenSameAsScanningAll() {
+            Random random = new Random(5);
+            List<Widget> widgetList = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                //Sizes from a few units to most of the board, so widgets land on every level of the grid
+                long size = 1L << random.nextInt(14);
+                widgetList.add(getDummyBuilderNoIdNoZindex().withZIndex((long) i)
+                        .withX((long) random.nextInt(20_000) - 10_000).withY((long) random.nextInt(20_000) - 10_000)
+                        .withWidth(size).withHeight(1 + (long) random.nextInt((int) size)).build());
+            }
+            for (ConcurrencyStrategy concurrency : new ConcurrencyStrategy[]{new StampedLockStrategy(), new CopyOnWriteStrategy()}) {
+                widgetRepo = new WidgetCustomRepo(new IdGenerator(), widgetList, concurrency);
+                List<WidgetRecord> all = widgetRepo.findAllSorted();
+                for (int i = 0; i < 500; i++) {
+                    long x = random.nextInt(24_000) - 12_000;
+                    long y = random.nextInt(24_000) - 12_000;
+                    List<WidgetRecord> expected = all.stream()
+                            .filter(widget -> Rectangle.of(widget).contains(x, y))
+                            .sorted(Collections.reverseOrder())
+                            .collect(Collectors.toList());
+                    Assert.assertEquals(expected, widgetRepo.findAtPoint(x, y));
+                }
+            }
+        }
+    }
+
+    @Nested
+    public class WhenFindOverlapping {
+
+        @BeforeEach
+        public void setup() {
+            List<Widget> widgetList = new ArrayList<>();
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(1L).withZIndex(3L)
+                    .withX(0L).withY(0L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(2L).withZIndex(1L)
+                    .withX(0L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(3L).withZIndex(2L)
+                    .withX(50L).withY(50L).withWidth(100L).withHeight(100L).build());
+            widgetList.add(getDummyBuilderNoIdNoZindex().withId(4L).withZIndex(4L)
+                    .withX(101L).withY(0L).withWidth(10L).withHeight(10L).build());
+            widgetRepo = new WidgetCustomRepo(new IdGenerator(5L), widgetList);
+        }
+
+        private List<Long> overlapping(long id) {
+            return widgetRepo.findOverlapping(id).stream().map(WidgetRecord::getId).collect(Collectors.toList());
+        }
+
+        @Test
+        public void whenIntersecting_ThenOthersSortedByZindex() {
+            Assert.assertEquals(List.of(2L, 3L), overlapping(1L));
+            Assert.assertEquals(List.of(), overlapping(4L));
+        }
+
+        @Test
+        public void whenMovedOntoOthers_ThenIndexFollows() {
+            widgetRepo.updateWidget(getDummyBuilderNoIdNoZindex().withId(4L).withZIndex(4L)
+                    .withX(100L).withY(0L).withWidth(10L).withHeight(60L).build());
+            //Touching borders count
+            Assert.assertEquals(List.of(2L, 3L, 1L), overlapping(4L));
+        }
+
+        @Test
+        public void whenNoWidget_ThenThrowException() {
+            Assert.assertThrows(ResourceNotFoundException.class, () -> widgetRepo.findOverlapping(9L));
+        }
+
+        @Test
+        public void whenRandomBoard_ThenSameAsScanningAll() {
+            Random random = new Random(8);
+            List<Widget> widgetList = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                long size = 1L << random.nextInt(14);
+                widgetList.add(getDummyBuilderNoIdNoZindex().withZIndex((long) i)
+                        .withX((long) random.nextInt(20_000) - 10_000).withY((long) random.nextInt(20_000) - 10_000)
+                        .withWidth(size).withHeight(1 + (long) random.nextInt((int) size)).build());
+            }
+            for (ConcurrencyStrategy concurrency : new ConcurrencyStrategy[]{new StampedLockStrategy(), new CopyOnWriteStrategy()}) {
+                widgetRepo = new WidgetCustomRepo(new IdGenerator(), widgetList, concurrency);
+                List<WidgetRecord> all = widgetRepo.findAllSorted();
+                for (int i = 0; i < 300; i++) {
+                    WidgetRecord widget = all.get(random.nextInt(all.size()));
+                    List<WidgetRecord> expected = all.stream()
+                            .filter(other -> other != widget && Rectangle.of(widget).intersects(Rectangle.of(other)))
+                            .collect(Collectors.toList());
+                    Assert.assertEquals(expected, widgetRepo.findOverlapping(widget.getId()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void whenForEachSortedDuringWrites_ThenListPublishedAtStart() {
+        for (int i = 0; i < 10; i++) {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().build());
+        }
+        List<WidgetRecord> expected = new ArrayList<>(widgetRepo.findAllSorted());
+        List<WidgetRecord> exported = new ArrayList<>();
+        widgetRepo.forEachSorted(widget -> {
+            exported.add(widget);
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+        });
+        Assert.assertEquals(expected, exported);
+    }
+
+    @Nested
+    public class WhenBindMetrics {
+        private final MeterRegistry registry = new SimpleMeterRegistry();
+
+        @BeforeEach
+        public void bind() {
+            widgetRepo.bindMetrics(registry);
+        }
+
+        @Test
+        public void givenAddsOnTakenZindex_ThenShiftedWidgetsRecorded() {
+            for (int i = 0; i < 3; i++) {
+                widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            }
+            //Adding on top shifts nothing and isn't recorded
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().build());
+
+            DistributionSummary shifts = registry.get("widgets.shift.size").summary();
+            Assert.assertEquals(2, shifts.count());
+            Assert.assertEquals(1 + 2, shifts.totalAmount(), 0);
+            Assert.assertEquals(2, shifts.max(), 0);
+        }
+
+        @Test
+        public void givenWidgets_ThenBoardGaugesFollow() {
+            Assert.assertEquals(0, registry.get("widgets.board.size").gauge().value(), 0);
+            Assert.assertEquals(-1, registry.get("widgets.board.foreground").gauge().value(), 0);
+            WidgetRecord added = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(7L).build());
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(2L).build());
+            Assert.assertEquals(2, registry.get("widgets.board.size").gauge().value(), 0);
+            Assert.assertEquals(7, registry.get("widgets.board.foreground").gauge().value(), 0);
+
+            widgetRepo.removeWidget(added.getId());
+            Assert.assertEquals(1, registry.get("widgets.board.size").gauge().value(), 0);
+            Assert.assertEquals(2, registry.get("widgets.board.foreground").gauge().value(), 0);
+        }
+    }
+
+    @Nested
+    public class WhenGetVersion {
+        @Test
+        public void givenWrites_ThenEveryWriteChangesIt() {
+            long start = widgetRepo.getVersion().getAsLong();
+            WidgetRecord added = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().build());
+            long afterAdd = widgetRepo.getVersion().getAsLong();
+            Assert.assertNotEquals(start, afterAdd);
+
+            widgetRepo.updateWidget(getDummyBuilderNoIdNoZindex().withId(added.getId()).withZIndex(5L).build());
+            Assert.assertNotEquals(afterAdd, widgetRepo.getVersion().getAsLong());
+        }
+
+        @Test
+        public void givenFailedWrite_ThenUnchanged() {
+            long start = widgetRepo.getVersion().getAsLong();
+            Assert.assertThrows(ResourceNotFoundException.class, () -> widgetRepo.removeWidget(42L));
+            Assert.assertEquals(start, widgetRepo.getVersion().getAsLong());
+        }
+    }
+
+    @Nested
+    public class WhenApplyBatch {
+
+        @Test
+        public void givenAddsOnSameZindex_ThenShiftedAsIfAddedOneByOne() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(3L).build());
+            List<WidgetCommand> commands = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                commands.add(WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()));
+            }
+            commands.add(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build()));
+
+            List<WidgetCommand.Result> results = widgetRepo.applyBatch(commands);
+            Assert.assertEquals(List.of(0L, 0L, 0L, 7L), results.stream()
+                    .map(result -> result.getWidget().getzIndex())
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(4L, 3L, 2L, 0L, 1L, 5L), widgetRepo.findAllSorted().stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(List.of(0L, 1L, 2L, 3L, 6L, 7L), widgetRepo.findAllSorted().stream()
+                    .map(WidgetRecord::getzIndex)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(7L, widgetRepo.getForeground());
+            Assert.assertEquals(6L, widgetRepo.findById(1L).get().getzIndex());
+        }
+
+        @Test
+        public void givenFailingCommands_ThenOthersStillApplied() {
+            List<WidgetCommand.Result> results = widgetRepo.applyBatch(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withId(7L).build()),
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withId(7L).build()),
+                    WidgetCommand.remove(100L),
+                    WidgetCommand.add(Widget.Builder.emptyWidget().build()),
+                    WidgetCommand.remove(7L)));
+            Assert.assertTrue(results.get(0).isSuccess());
+            Assert.assertTrue(results.get(1).getError() instanceof DuplicateKeyException);
+            Assert.assertTrue(results.get(2).getError() instanceof ResourceNotFoundException);
+            Assert.assertTrue(results.get(3).getError() instanceof IllegalStateException);
+            Assert.assertTrue(results.get(4).isSuccess());
+            Assert.assertEquals(List.of(), widgetRepo.findAllSorted());
+        }
+
+        @Test
+        public void givenFailingCommand_WhenAppliedAtomically_ThenNothingChanged() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            List<WidgetRecord> before = widgetRepo.findAllSorted();
+            Assert.assertThrows(ResourceNotFoundException.class, () -> widgetRepo.applyAtomically(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                    WidgetCommand.remove(0L),
+                    WidgetCommand.update(getDummyBuilderNoIdNoZindex().withId(0L).withZIndex(3L).build()))));
+            Assert.assertEquals(before, widgetRepo.findAllSorted());
+            Assert.assertEquals(Optional.of(before.get(0)), widgetRepo.findByZindex(0L));
+            Assert.assertEquals(0L, widgetRepo.getForeground());
+        }
+
+        @Test
+        public void givenInvalidGeometry_WhenAppliedAtomically_ThenNothingChanged() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            List<WidgetRecord> before = widgetRepo.findAllSorted();
+            Assert.assertThrows(IllegalArgumentException.class, () -> widgetRepo.applyAtomically(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                    WidgetCommand.update(getDummyBuilderNoIdNoZindex().withId(0L).withWidth(-1L).build()))));
+            Assert.assertThrows(IllegalArgumentException.class, () -> widgetRepo.applyAtomically(List.of(
+                    WidgetCommand.remove(0L),
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withX(Long.MAX_VALUE).build()))));
+            Assert.assertEquals(before, widgetRepo.findAllSorted());
+            Assert.assertEquals(Optional.of(before.get(0)), widgetRepo.findByZindex(0L));
+            Assert.assertEquals(before, widgetRepo.findInArea(new Rectangle(0, 0, 10, 10)));
+            Assert.assertEquals(0L, widgetRepo.getForeground());
+        }
+
+        @Test
+        public void givenInvalidGeometry_WhenAppliedInBatch_ThenOnlyThatCommandFails() {
+            List<WidgetCommand.Result> results = widgetRepo.applyBatch(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withHeight(-1L).build()),
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build())));
+            Assert.assertTrue(results.get(0).getError() instanceof IllegalArgumentException);
+            Assert.assertTrue(results.get(1).isSuccess());
+            Assert.assertEquals(List.of(results.get(1).getWidget()), widgetRepo.findAllSorted());
+            Assert.assertEquals(List.of(results.get(1).getWidget()), widgetRepo.findInArea(new Rectangle(0, 0, 10, 10)));
+        }
+
+        @Test
+        public void givenMixedCommands_WhenAppliedAtomically_ThenAllApplied() {
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(1L).build());
+            List<WidgetRecord> widgets = widgetRepo.applyAtomically(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                    WidgetCommand.update(getDummyBuilderNoIdNoZindex(5L).withId(1L).withZIndex(2L).build()),
+                    WidgetCommand.remove(0L)));
+            Assert.assertEquals(3, widgets.size());
+            Assert.assertNull(widgets.get(2));
+            Assert.assertEquals(List.of(2L, 1L), widgetRepo.findAllSorted().stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(5L, widgetRepo.findByZindex(2L).get().getX());
+            Assert.assertEquals(List.of(1L), widgetRepo.findInArea(new Rectangle(5, 5, 10, 10)).stream()
+                    .map(WidgetRecord::getId)
+                    .collect(Collectors.toList()));
+            Assert.assertEquals(2L, widgetRepo.getForeground());
+        }
+
+        /**
+         * Batch must leave the repo exactly as the same commands applied one by one
+         */
+        @Test
+        public void givenRandomBatches_ThenSameResultAsSingleWrites() {
+            Random random = new Random(11);
+            WidgetCustomRepo expectedRepo = new WidgetCustomRepo(new IdGenerator());
+            for (int batch = 0; batch < 200; batch++) {
+                List<WidgetCommand> commands = new ArrayList<>();
+                List<WidgetRecord> current = expectedRepo.findAllSorted();
+                for (int i = 0; i < random.nextInt(20); i++) {
+                    int operation = random.nextInt(10);
+                    Widget.Builder builder = getDummyBuilderNoIdNoZindex((long) random.nextInt(100));
+                    if (operation < 7 || current.isEmpty()) {
+                        if (random.nextInt(4) > 0)
+                            builder.withZIndex((long) random.nextInt(30) - 10);
+                        commands.add(WidgetCommand.add(builder.build()));
+                    } else if (operation < 9) {
+                        builder.withId(current.get(random.nextInt(current.size())).getId())
+                                .withZIndex((long) random.nextInt(30) - 10);
+                        commands.add(WidgetCommand.update(builder.build()));
+                    } else {
+                        commands.add(WidgetCommand.remove(current.get(random.nextInt(current.size())).getId()));
+                    }
+                }
+
+                List<WidgetCommand.Result> results = widgetRepo.applyBatch(commands);
+                for (int i = 0; i < commands.size(); i++) {
+                    WidgetCommand.Result expected = applyOne(expectedRepo, commands.get(i));
+                    Assert.assertEquals(expected.isSuccess(), results.get(i).isSuccess());
+                    if (expected.getWidget() != null) {
+                        Assert.assertEquals(expected.getWidget().getId(), results.get(i).getWidget().getId());
+                        Assert.assertEquals(expected.getWidget().getzIndex(), results.get(i).getWidget().getzIndex());
+                    }
+                }
+                Assert.assertEquals(expectedRepo.getForeground(), widgetRepo.getForeground());
+                List<WidgetRecord> expected = expectedRepo.findAllSorted();
+                List<WidgetRecord> actual = widgetRepo.findAllSorted();
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    Assert.assertEquals(expected.get(i).getId(), actual.get(i).getId());
+                    Assert.assertEquals(expected.get(i).getzIndex(), actual.get(i).getzIndex());
+                    Assert.assertEquals(Optional.of(actual.get(i)), widgetRepo.findById(actual.get(i).getId()));
+                    Assert.assertEquals(Optional.of(actual.get(i)), widgetRepo.findByZindex(actual.get(i).getzIndex()));
+                }
+            }
+        }
+
+        private WidgetCommand.Result applyOne(WidgetCustomRepo repo, WidgetCommand command) {
+            try {
+                switch (command.getType()) {
+                    case ADD:
+                        return WidgetCommand.Result.ok(repo.addWidget(command.getWidget()));
+                    case UPDATE:
+                        return WidgetCommand.Result.ok(repo.updateWidget(command.getWidget()));
+                    default:
+                        repo.removeWidget(command.getId());
+                        return WidgetCommand.Result.ok(null);
+                }
+            } catch (RuntimeException e) {
+                return WidgetCommand.Result.failed(e);
+            }
+        }
+    }
+
     @Nested
     public class WithConcurrency {
 
@@ -298,9 +829,9 @@ public class WidgetCustomRepoTest {
             }
 
             latch.await();
-            List<Widget> widgetList = widgetRepo.findAllSorted();
+            List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
             int listSize = widgetList.size();
-            Assert.assertEquals(numberOfOperations-1, widgetList.get(listSize-1).getzIndex().longValue());
+            Assert.assertEquals(numberOfOperations-1, widgetList.get(listSize-1).getzIndex());
             Assert.assertEquals(numberOfOperations, listSize);
         }
 
@@ -332,10 +863,42 @@ public class WidgetCustomRepoTest {
             }
 
             latch.await();
-            List<Widget> widgetList = widgetRepo.findAllSorted();
+            List<WidgetRecord> widgetList = widgetRepo.findAllSorted();
             int listSize = widgetList.size();
             //Total widgets is totalOperations - number of updates
             Assert.assertEquals(numberOfOperations-updates.get(), listSize);
         }
+
+        @Test
+        public void pointReadsWhileShifting() throws Exception {
+            for (long zIndex = 0; zIndex < 200; zIndex++) {
+                widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            ExecutorService service = Executors.newFixedThreadPool(4);
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<Integer>> readers = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                readers.add(service.submit(() -> {
+                    int misses = 0;
+                    while (writing.get()) {
+                        //Every shift moves each of these zIndexes to another widget, none is free between two writes
+                        for (long zIndex = 0; zIndex < 200; zIndex++) {
+                            if (widgetRepo.findByZindex(zIndex).isEmpty())
+                                misses++;
+                        }
+                    }
+                    return misses;
+                }));
+            }
+            //Adding at the bottom shifts every widget
+            for (int i = 0; i < 2000; i++) {
+                widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            }
+            writing.set(false);
+            for (Future<Integer> reader : readers) {
+                Assert.assertEquals(0, reader.get().intValue());
+            }
+            service.shutdown();
+        }
     }
 }
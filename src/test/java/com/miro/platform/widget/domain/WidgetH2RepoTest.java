@@ -0,0 +1,185 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.concurrency.TransactionalStrategy;
+import com.miro.platform.widget.domain.events.WidgetChangeLog;
+import com.miro.platform.widget.domain.repository.h2.WidgetH2Repo;
+import com.miro.platform.widget.domain.repository.h2.WidgetJpaRepo;
+import com.miro.platform.widget.domain.service.WidgetH2Service;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.context.annotation.Import;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+/**
+ * Bulk zIndex updates of the H2 repo, on the real schema with its unique zIndex index.
+ * Also the H2 service's batches, which need real commits
+ */
+@DataJpaTest
+@Import(WidgetH2Repo.class)
+public class WidgetH2RepoTest {
+    @Autowired
+    private WidgetH2Repo widgetRepo;
+    @Autowired
+    private WidgetJpaRepo jpaRepo;
+    @Autowired
+    private TestEntityManager entityManager;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+    //Ids in zIndex order as added
+    private final List<Long> ids = new ArrayList<>();
+
+    private void add(long... zIndexes) {
+        for (long zIndex : zIndexes) {
+            ids.add(jpaRepo.saveAndFlush(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build()).getId());
+        }
+    }
+
+    private List<Long> zIndexes() {
+        return widgetRepo.findAllSorted().stream().map(WidgetRecord::getzIndex).collect(Collectors.toList());
+    }
+
+    private List<Long> ids() {
+        return widgetRepo.findAllSorted().stream().map(WidgetRecord::getId).collect(Collectors.toList());
+    }
+
+    private long version(long id) {
+        return entityManager.getEntityManager()
+                .createQuery("select w.version from Widget w where w.id = :id", Long.class)
+                .setParameter("id", id)
+                .getSingleResult();
+    }
+
+    @Test
+    public void whenShiftToTop_ThenAllFromShiftedByOneInOrder() {
+        add(0L, 1L, 2L, 5L);
+        long unshifted = version(ids.get(0));
+        long shifted = version(ids.get(1));
+        Assert.assertEquals(3, widgetRepo.shiftZindexes(1L, Long.MAX_VALUE));
+        Assert.assertEquals(List.of(0L, 2L, 3L, 6L), zIndexes());
+        Assert.assertEquals(ids, ids());
+        Assert.assertEquals(unshifted, version(ids.get(0)));
+        Assert.assertTrue(version(ids.get(1)) > shifted);
+        Assert.assertEquals(6L, widgetRepo.getForeground());
+    }
+
+    @Test
+    public void whenShiftRange_ThenOnlyRangeShifted() {
+        add(0L, 1L, 2L, 5L);
+        Assert.assertEquals(2, widgetRepo.shiftZindexes(1L, 3L));
+        Assert.assertEquals(List.of(0L, 2L, 3L, 5L), zIndexes());
+        Assert.assertEquals(ids, ids());
+    }
+
+    @Test
+    public void whenShiftAboveForeground_ThenNothingShifted() {
+        add(0L, 1L, 2L, 5L);
+        long version = version(ids.get(3));
+        Assert.assertEquals(0, widgetRepo.shiftZindexes(6L, Long.MAX_VALUE));
+        Assert.assertEquals(List.of(0L, 1L, 2L, 5L), zIndexes());
+        Assert.assertEquals(version, version(ids.get(3)));
+    }
+
+    @Test
+    public void whenShiftedZindexReused_ThenAdded() {
+        add(0L, 1L, 2L, 5L);
+        widgetRepo.shiftZindexes(1L, Long.MAX_VALUE);
+        add(1L);
+        Assert.assertEquals(List.of(0L, 1L, 2L, 3L, 6L), zIndexes());
+    }
+
+    @Test
+    public void whenDuplicateZindex_ThenRejectedByIndex() {
+        add(0L, 1L, 2L, 5L);
+        DataIntegrityViolationException e = Assert.assertThrows(DataIntegrityViolationException.class, () -> add(2L));
+        //Another writer took the zIndex, worth retrying
+        Assert.assertTrue(TransactionalStrategy.isConflict(e));
+    }
+
+    @Test
+    public void whenRenumbered_ThenGapsInSameOrder() {
+        add(5L, 6L, 7L, 3000L);
+        List<Long> versions = ids.stream().map(this::version).collect(Collectors.toList());
+        widgetRepo.renumberZindexes(1024L);
+        Assert.assertEquals(List.of(0L, 1024L, 2048L, 3072L), zIndexes());
+        Assert.assertEquals(ids, ids());
+        for (int i = 0; i < ids.size(); i++) {
+            Assert.assertTrue(version(ids.get(i)) > versions.get(i));
+        }
+    }
+
+    @Test
+    public void whenRenumberedEmpty_ThenNothingHappens() {
+        widgetRepo.renumberZindexes(1024L);
+        Assert.assertEquals(List.of(), zIndexes());
+    }
+
+    @Test
+    public void whenSpatialQueries_ThenWidestWidgetStillFound() {
+        //Wide one starts far left of the point, the others near it
+        long wide = jpaRepo.saveAndFlush(getDummyBuilderNoIdNoZindex().withX(0L).withY(0L).withWidth(100L).withZIndex(0L).build()).getId();
+        long near = jpaRepo.saveAndFlush(getDummyBuilderNoIdNoZindex().withX(95L).withY(0L).withWidth(5L).withZIndex(1L).build()).getId();
+        long far = jpaRepo.saveAndFlush(getDummyBuilderNoIdNoZindex().withX(200L).withY(0L).withZIndex(2L).build()).getId();
+
+        Assert.assertEquals(List.of(near, wide), idsOf(widgetRepo.findAtPoint(100L, 1L)));
+        Assert.assertEquals(List.of(wide), idsOf(widgetRepo.findOverlapping(near)));
+        Assert.assertEquals(List.of(), idsOf(widgetRepo.findOverlapping(far)));
+        Assert.assertEquals(List.of(wide, near), idsOf(widgetRepo.findInArea(new Rectangle(0L, 0L, 101L, 2L))));
+    }
+
+    @Test
+    public void whenRangeOnX_ThenReadFromIndex() {
+        String plan = entityManager.getEntityManager()
+                .createNativeQuery("explain select * from widget where x >= 0 and x <= 100")
+                .getSingleResult().toString();
+        Assert.assertTrue(plan, plan.toUpperCase(Locale.ROOT).contains("IX_WIDGET_XY"));
+    }
+
+    private static List<Long> idsOf(List<WidgetRecord> widgets) {
+        return widgets.stream().map(WidgetRecord::getId).collect(Collectors.toList());
+    }
+
+    //Not in the test's transaction, so the batch commits (or not) on its own
+    @Test
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void whenBatchFailsInDatabaseMidway_ThenNothingCommitted() {
+        WidgetH2Repo failingRepo = new WidgetH2Repo(jpaRepo) {
+            @Override
+            public void removeWidget(Long id) {
+                throw new DataAccessResourceFailureException("injected");
+            }
+        };
+        WidgetH2Service service = new WidgetH2Service(failingRepo, new StampedLockStrategy(), WidgetH2Service.DENSE,
+                WidgetChangeLog.DEFAULT_CAPACITY, transactionManager);
+        List<Long> changed = new ArrayList<>();
+        service.setChangeListener((version, events) -> changed.add(version));
+        long before = service.getVersion().getAsLong();
+        try {
+            add(0L, 1L);
+            Assert.assertThrows(DataAccessResourceFailureException.class, () -> service.applyBatch(List.of(
+                    WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                    WidgetCommand.remove(ids.get(1)))));
+            Assert.assertEquals(List.of(0L, 1L), zIndexes());
+            Assert.assertEquals(ids, ids());
+            Assert.assertEquals(List.of(), changed);
+            Assert.assertEquals(before, service.getVersion().getAsLong());
+        } finally {
+            jpaRepo.deleteAll();
+        }
+    }
+}
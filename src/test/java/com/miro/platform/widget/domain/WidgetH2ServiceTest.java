@@ -0,0 +1,178 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.concurrency.TransactionalStrategy;
+import com.miro.platform.widget.domain.events.WidgetChangeEvent;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.service.WidgetH2Service;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+/**
+ * Service logic only, runs on the in memory repo with the default (one by one) shifting.
+ * The bulk shifts of the H2 repo are in WidgetH2RepoTest
+ */
+public class WidgetH2ServiceTest {
+    private final WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+
+    private List<Long> zIndexes() {
+        return widgetRepo.findAllSorted().stream().map(WidgetRecord::getzIndex).collect(Collectors.toList());
+    }
+
+    private List<Long> ids() {
+        return widgetRepo.findAllSorted().stream().map(WidgetRecord::getId).collect(Collectors.toList());
+    }
+
+    @Nested
+    public class GivenDenseAllocation {
+        private final WidgetH2Service service = new WidgetH2Service(widgetRepo, new StampedLockStrategy(), WidgetH2Service.DENSE);
+
+        @Test
+        public void whenAddOnExistingZindex_ThenShiftAllAbove() {
+            for (long zIndex : new long[]{0L, 1L, 5L}) {
+                service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            WidgetRecord added = service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(1L).build());
+            Assert.assertEquals(1L, added.getzIndex());
+            Assert.assertEquals(List.of(0L, 1L, 2L, 6L), zIndexes());
+            Assert.assertEquals(7L, service.addWidget(getDummyBuilderNoIdNoZindex().build()).getzIndex());
+        }
+    }
+
+    @Nested
+    public class GivenGapAllocation {
+        private final WidgetH2Service service = new WidgetH2Service(widgetRepo, new StampedLockStrategy(), WidgetH2Service.GAP);
+
+        @Test
+        public void whenAddOnTop_ThenLeaveGap() {
+            service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            WidgetRecord added = service.addWidget(getDummyBuilderNoIdNoZindex().build());
+            Assert.assertEquals(WidgetH2Service.Z_GAP, added.getzIndex());
+        }
+
+        @Test
+        public void whenAddOnExistingZindex_ThenOnlyAdjacentShifted() {
+            for (long zIndex : new long[]{0L, 1L, 2L, 10L, 11L}) {
+                service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            WidgetRecord added = service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(1L).build());
+            Assert.assertEquals(1L, added.getzIndex());
+            Assert.assertEquals(List.of(0L, 1L, 2L, 3L, 10L, 11L), zIndexes());
+            Assert.assertEquals(List.of(0L, 5L, 1L, 2L, 3L, 4L), ids());
+        }
+
+        @Test
+        public void whenMetricsBound_ThenShiftedWidgetsRecorded() {
+            MeterRegistry registry = new SimpleMeterRegistry();
+            service.bindMetrics(registry);
+            for (long zIndex : new long[]{0L, 1L, 2L, 10L}) {
+                service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(1L).build());
+
+            DistributionSummary shifts = registry.get("widgets.shift.size").tag("component", "h2Service").summary();
+            Assert.assertEquals(1, shifts.count());
+            Assert.assertEquals(2, shifts.totalAmount(), 0);
+            Assert.assertEquals(5, registry.get("widgets.board.size").gauge().value(), 0);
+            Assert.assertEquals(10, registry.get("widgets.board.foreground").gauge().value(), 0);
+        }
+
+        @Test
+        public void whenUpdateOnExistingZindex_ThenOnlyAdjacentShifted() {
+            for (long zIndex : new long[]{0L, 1L, 5L}) {
+                service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            service.updateWidget(2L, getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            Assert.assertEquals(List.of(0L, 1L, 2L), zIndexes());
+            Assert.assertEquals(List.of(2L, 0L, 1L), ids());
+        }
+
+        @Test
+        public void whenRunTooLong_ThenRenumberKeepingOrder() {
+            for (long zIndex = 0; zIndex <= WidgetH2Service.MAX_SHIFT_RUN + 3; zIndex++) {
+                service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+            }
+            List<Long> before = ids();
+            WidgetRecord added = service.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(3L).build());
+
+            //Takes the place of the widget that was on 3, which got renumbered to 3 * gap and then shifted by one
+            Assert.assertEquals(3 * WidgetH2Service.Z_GAP, added.getzIndex());
+            Assert.assertEquals(3 * WidgetH2Service.Z_GAP + 1, zIndexes().get(4).longValue());
+            before.add(3, added.getId());
+            Assert.assertEquals(before, ids());
+            Assert.assertEquals(4 * WidgetH2Service.Z_GAP, zIndexes().get(5).longValue());
+        }
+    }
+
+    @Nested
+    public class GivenTransactionalStrategy {
+        private final FlakyTransactionManager transactionManager = new FlakyTransactionManager();
+        private final WidgetH2Service service = new WidgetH2Service(widgetRepo, new TransactionalStrategy(transactionManager));
+        private final List<List<WidgetChangeEvent>> delivered = new ArrayList<>();
+
+        @Test
+        public void whenCommitFailsAndRetried_ThenChangesDeliveredOnce() {
+            service.addWidget(getDummyBuilderNoIdNoZindex().build());
+            service.setChangeListener((version, events) -> delivered.add(events));
+            transactionManager.failingCommits = 1;
+            WidgetRecord updated = service.updateWidget(0L, getDummyBuilderNoIdNoZindex(5L).build());
+            Assert.assertEquals(List.of(List.of(WidgetChangeEvent.updated(updated))), delivered);
+        }
+
+        @Test
+        public void whenCommitKeepsFailing_ThenNothingDelivered() {
+            service.setChangeListener((version, events) -> delivered.add(events));
+            transactionManager.failingCommits = Integer.MAX_VALUE;
+            Assert.assertThrows(OptimisticLockingFailureException.class,
+                    () -> service.addWidget(getDummyBuilderNoIdNoZindex().build()));
+            Assert.assertEquals(List.of(), delivered);
+        }
+    }
+
+    //Transactions with synchronizations like a real manager, the first commits fail as if they lost a race
+    private static class FlakyTransactionManager extends AbstractPlatformTransactionManager {
+        int failingCommits;
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            if (failingCommits > 0) {
+                failingCommits--;
+                throw new OptimisticLockingFailureException("Stale widget");
+            }
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+
+    @Test
+    public void givenUnknownAllocation_ThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class,
+                () -> new WidgetH2Service(widgetRepo, new StampedLockStrategy(), "sparse"));
+    }
+}
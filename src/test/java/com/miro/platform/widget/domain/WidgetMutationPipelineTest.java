@@ -0,0 +1,125 @@
+package com.miro.platform.widget.domain;
+
+import com.miro.platform.widget.domain.exceptions.ResourceNotFoundException;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.service.WidgetMutationPipeline;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetMutationPipelineTest {
+    private final WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+    private final WidgetMutationPipeline pipeline = new WidgetMutationPipeline(widgetRepo, 64, 16);
+
+    @AfterEach
+    public void tearDown() {
+        pipeline.close();
+    }
+
+    @Test
+    public void givenConcurrentSubmits_ThenEveryFutureCompleted() throws Exception {
+        int numberOfThreads = 8;
+        int addsPerThread = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<List<WidgetRecord>>> futures = new ArrayList<>();
+        for (int thread = 0; thread < numberOfThreads; thread++) {
+            futures.add(executor.submit(() -> {
+                List<CompletableFuture<WidgetRecord>> added = new ArrayList<>();
+                for (int i = 0; i < addsPerThread; i++) {
+                    added.add(pipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build())));
+                }
+                List<WidgetRecord> result = new ArrayList<>();
+                for (CompletableFuture<WidgetRecord> future : added) {
+                    result.add(future.get(10, TimeUnit.SECONDS));
+                }
+                return result;
+            }));
+        }
+        for (Future<List<WidgetRecord>> future : futures) {
+            Assert.assertEquals(addsPerThread, future.get(30, TimeUnit.SECONDS).size());
+        }
+        executor.shutdown();
+
+        List<WidgetRecord> widgets = widgetRepo.findAllSorted();
+        Assert.assertEquals(numberOfThreads * addsPerThread, widgets.size());
+        Assert.assertEquals(numberOfThreads * addsPerThread - 1, widgets.get(widgets.size() - 1).getzIndex());
+    }
+
+    @Test
+    public void whenCommandFails_ThenOnlyItsFutureFails() throws Exception {
+        CompletableFuture<WidgetRecord> removed = pipeline.submit(WidgetCommand.remove(100L));
+        CompletableFuture<WidgetRecord> added = pipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build()));
+
+        ExecutionException exception = Assert.assertThrows(ExecutionException.class, () -> removed.get(10, TimeUnit.SECONDS));
+        Assert.assertTrue(exception.getCause() instanceof ResourceNotFoundException);
+        Assert.assertEquals(0L, added.get(10, TimeUnit.SECONDS).getzIndex());
+    }
+
+    @Test
+    public void whenRepoThrowsError_ThenBatchFailsAndNextOnesApplied() throws Exception {
+        AtomicBoolean failNext = new AtomicBoolean(true);
+        WidgetCustomRepo failingRepo = new WidgetCustomRepo(new IdGenerator()) {
+            @Override
+            public List<WidgetCommand.Result> applyBatch(List<WidgetCommand> commands) {
+                if (failNext.getAndSet(false))
+                    throw new AssertionError("injected");
+                return super.applyBatch(commands);
+            }
+        };
+        try (WidgetMutationPipeline failingPipeline = new WidgetMutationPipeline(failingRepo, 64, 16)) {
+            CompletableFuture<WidgetRecord> failed = failingPipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build()));
+            ExecutionException exception = Assert.assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(exception.getCause() instanceof AssertionError);
+
+            CompletableFuture<WidgetRecord> added = failingPipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build()));
+            Assert.assertEquals(0L, added.get(10, TimeUnit.SECONDS).getzIndex());
+        }
+    }
+
+    @Test
+    public void whenClosedWhileSubmitting_ThenEveryFutureCompleted() throws Exception {
+        WidgetMutationPipeline smallPipeline = new WidgetMutationPipeline(widgetRepo, 2, 1);
+        int numberOfThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        CountDownLatch started = new CountDownLatch(numberOfThreads);
+        List<Future<List<CompletableFuture<WidgetRecord>>>> submitted = new ArrayList<>();
+        for (int thread = 0; thread < numberOfThreads; thread++) {
+            submitted.add(executor.submit(() -> {
+                started.countDown();
+                List<CompletableFuture<WidgetRecord>> futures = new ArrayList<>();
+                for (int i = 0; i < 200; i++) {
+                    futures.add(smallPipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build())));
+                }
+                return futures;
+            }));
+        }
+        started.await();
+        smallPipeline.close();
+
+        for (Future<List<CompletableFuture<WidgetRecord>>> threadFutures : submitted) {
+            for (CompletableFuture<WidgetRecord> future : threadFutures.get(10, TimeUnit.SECONDS)) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void whenClosed_ThenSubmitFails() {
+        pipeline.close();
+        CompletableFuture<WidgetRecord> future = pipeline.submit(WidgetCommand.add(getDummyBuilderNoIdNoZindex().build()));
+        Assert.assertTrue(future.isCompletedExceptionally());
+    }
+}
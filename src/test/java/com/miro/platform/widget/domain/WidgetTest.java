@@ -7,6 +7,8 @@ import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
 public class WidgetTest {
     /**
      * Testing Widget zIndex comparator in Widget
@@ -91,6 +93,17 @@ public class WidgetTest {
                 widget::validForOperationOrThrow);
     }
 
+    @Test
+    public void givenNegativeSizeOrOverflowWhenValidateWidgetThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class,
+                getDummyBuilderNoIdNoZindex().withWidth(-1L).build()::validForOperationOrThrow);
+        Assert.assertThrows(IllegalArgumentException.class,
+                getDummyBuilderNoIdNoZindex().withHeight(-1L).build()::validForOperationOrThrow);
+        Assert.assertThrows(IllegalArgumentException.class,
+                getDummyBuilderNoIdNoZindex().withY(Long.MAX_VALUE).build()::validForOperationOrThrow);
+        getDummyBuilderNoIdNoZindex().withWidth(0L).withX(Long.MAX_VALUE - 1).build().validForOperationOrThrow();
+    }
+
     @Test
     public void givenFullWidgetWhenValidateThenNoException() {
         Widget widget = Widget.Builder.emptyWidget()
@@ -102,4 +115,13 @@ public class WidgetTest {
 
         widget.validForOperationOrThrow();
     }
+
+    @Test
+    public void givenRecordsWhenVersionTagThenChangesWithAnyField() {
+        WidgetRecord record = new WidgetRecord(1, 2, 3, 4, 5, 6, 7);
+        Assert.assertEquals(record.getVersionTag(), new WidgetRecord(1, 2, 3, 4, 5, 6, 7).getVersionTag());
+        Assert.assertNotEquals(record.getVersionTag(), record.withZIndex(7).getVersionTag());
+        Assert.assertNotEquals(record.getVersionTag(), new WidgetRecord(1, 3, 2, 4, 5, 6, 7).getVersionTag());
+        Assert.assertNotEquals(record.getVersionTag(), new WidgetRecord(1, 2, 3, 4, 5, 6, 8).getVersionTag());
+    }
 }
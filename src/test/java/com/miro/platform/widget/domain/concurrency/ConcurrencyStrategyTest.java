@@ -0,0 +1,239 @@
+package com.miro.platform.widget.domain.concurrency;
+
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class ConcurrencyStrategyTest {
+    private static final List<String> TYPES = List.of(
+            ConcurrencyStrategyFactory.SYNCHRONIZED,
+            ConcurrencyStrategyFactory.READ_WRITE,
+            ConcurrencyStrategyFactory.STAMPED,
+            ConcurrencyStrategyFactory.COPY_ON_WRITE);
+
+    @Test
+    public void whenUnknownType_ThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> new ConcurrencyStrategyFactory("spinLock"));
+    }
+
+    @Test
+    public void whenEveryTypeCreated_ThenNewInstanceEachTime() {
+        for (String type : TYPES) {
+            ConcurrencyStrategyFactory factory = new ConcurrencyStrategyFactory(type);
+            Assert.assertNotSame(factory.create(), factory.create());
+        }
+        Assert.assertTrue(ConcurrencyStrategyFactory.create(ConcurrencyStrategyFactory.COPY_ON_WRITE).snapshotReads());
+        Assert.assertFalse(ConcurrencyStrategyFactory.create(ConcurrencyStrategyFactory.STAMPED).snapshotReads());
+    }
+
+    @Test
+    public void whenMeterRegistry_ThenComponentStrategiesMeasured() throws Exception {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        ConcurrencyStrategyFactory factory = new ConcurrencyStrategyFactory(
+                ConcurrencyStrategyFactory.STAMPED, ConcurrencyStrategyFactory.STAMPED, null, registry);
+        Assert.assertTrue(factory.create() instanceof StampedLockStrategy);
+        Assert.assertTrue(new ConcurrencyStrategyFactory(ConcurrencyStrategyFactory.STAMPED).createFor("repo")
+                instanceof StampedLockStrategy);
+        ConcurrencyStrategy strategy = factory.createFor("repo");
+        Assert.assertTrue(strategy instanceof InstrumentedStrategy);
+
+        //A write in the middle of the first optimistic run fails its validation
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            AtomicInteger runs = new AtomicInteger();
+            strategy.read(() -> {
+                if (runs.incrementAndGet() == 1) {
+                    try {
+                        executor.submit(() -> strategy.write(() -> null)).get(10, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+                return null;
+            });
+            strategy.read(() -> null);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Assert.assertEquals(2, registry.get("widgets.lock.reads").tag("component", "repo").counter().count(), 0);
+        Assert.assertEquals(1, registry.get("widgets.lock.read.retries").tag("type", "stamped").counter().count(), 0);
+        Assert.assertEquals(1, registry.get("widgets.lock.write.wait").tag("component", "repo").timer().count());
+    }
+
+    @Test
+    public void whenStampedReadLocked_ThenWaitsForWriter() throws Exception {
+        StampedLockStrategy strategy = new StampedLockStrategy();
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean written = new AtomicBoolean();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<?> writer = executor.submit(() -> strategy.write(() -> {
+                writing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                written.set(true);
+            }));
+            writing.await();
+            CompletableFuture<Boolean> reader = CompletableFuture.supplyAsync(() -> strategy.readLocked(written::get));
+            Thread.sleep(100);
+            Assert.assertFalse(reader.isDone());
+            release.countDown();
+            Assert.assertTrue(reader.get(10, TimeUnit.SECONDS));
+            writer.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void whenTransactionalWithoutTransactionManager_ThenThrowException() {
+        Assert.assertThrows(IllegalStateException.class, () -> new ConcurrencyStrategyFactory(
+                ConcurrencyStrategyFactory.STAMPED, ConcurrencyStrategyFactory.TRANSACTIONAL, (PlatformTransactionManager) null));
+        ConcurrencyStrategyFactory factory = new ConcurrencyStrategyFactory(
+                ConcurrencyStrategyFactory.STAMPED, ConcurrencyStrategyFactory.TRANSACTIONAL, new CountingTransactionManager());
+        Assert.assertTrue(factory.createForH2() instanceof TransactionalStrategy);
+        Assert.assertTrue(factory.create() instanceof StampedLockStrategy);
+    }
+
+    @Test
+    public void whenTransactionalWriteConflicts_ThenRetriedInNewTransaction() {
+        CountingTransactionManager transactionManager = new CountingTransactionManager();
+        TransactionalStrategy strategy = new TransactionalStrategy(transactionManager);
+        AtomicInteger attempts = new AtomicInteger();
+        int result = strategy.write(() -> {
+            if (attempts.incrementAndGet() < 3)
+                throw new OptimisticLockingFailureException("Stale widget");
+            return 42;
+        });
+        Assert.assertEquals(42, result);
+        Assert.assertEquals(2, transactionManager.rollbacks);
+        Assert.assertEquals(1, transactionManager.commits);
+    }
+
+    @Test
+    public void whenTransactionalWriteKeepsFailing_ThenGiveUp() {
+        TransactionalStrategy strategy = new TransactionalStrategy(new CountingTransactionManager());
+        AtomicInteger attempts = new AtomicInteger();
+        Assert.assertThrows(DataIntegrityViolationException.class, () -> strategy.write(() -> {
+            attempts.incrementAndGet();
+            throw new DataIntegrityViolationException("could not execute statement; constraint [UK_WIDGET_ZINDEX_INDEX_8]");
+        }));
+        Assert.assertEquals(TransactionalStrategy.MAX_ATTEMPTS, attempts.get());
+
+        //Not a conflict, failing right away
+        attempts.set(0);
+        Assert.assertThrows(IllegalArgumentException.class, () -> strategy.write(() -> {
+            attempts.incrementAndGet();
+            throw new IllegalArgumentException("Invalid widget");
+        }));
+        Assert.assertEquals(1, attempts.get());
+    }
+
+    @Test
+    public void whenTransactionalWriteViolatesOtherConstraint_ThenNotRetried() {
+        TransactionalStrategy strategy = new TransactionalStrategy(new CountingTransactionManager());
+        AtomicInteger attempts = new AtomicInteger();
+        Assert.assertThrows(DuplicateKeyException.class, () -> strategy.write(() -> {
+            attempts.incrementAndGet();
+            throw new DuplicateKeyException("Trying to insert duplicate id");
+        }));
+        Assert.assertEquals(1, attempts.get());
+
+        attempts.set(0);
+        Assert.assertThrows(DataIntegrityViolationException.class, () -> strategy.write(() -> {
+            attempts.incrementAndGet();
+            throw new DataIntegrityViolationException("could not execute statement",
+                    new IllegalStateException("NULL not allowed for column \"X\""));
+        }));
+        Assert.assertEquals(1, attempts.get());
+    }
+
+    /**
+     * Writers keep adding on zIndex 0 (shifting everything) while readers check
+     * that whatever they find by id is found again by its zIndex
+     */
+    @Test
+    public void givenConcurrentShifts_ThenReadsStayConsistent() throws Exception {
+        for (String type : TYPES) {
+            WidgetCustomRepo repo = new WidgetCustomRepo(new IdGenerator(), new ArrayList<>(),
+                    ConcurrencyStrategyFactory.create(type));
+            ExecutorService executor = Executors.newFixedThreadPool(6);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int writer = 0; writer < 2; writer++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 300; i++) {
+                            repo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+                        }
+                    }));
+                }
+                for (int reader = 0; reader < 4; reader++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < 2000; i++) {
+                            Optional<WidgetRecord> widget = repo.findById((long) ThreadLocalRandom.current().nextInt(600));
+                            if (widget.isPresent())
+                                Assert.assertTrue(repo.findByZindex(widget.get().getzIndex()).isPresent());
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(30, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            List<WidgetRecord> widgets = repo.findAllSorted();
+            Assert.assertEquals(type, 600, widgets.size());
+            for (int i = 0; i < widgets.size(); i++) {
+                Assert.assertEquals(type, i, widgets.get(i).getzIndex());
+                Assert.assertEquals(type, Optional.of(widgets.get(i)), repo.findById(widgets.get(i).getId()));
+            }
+        }
+    }
+
+    private static class CountingTransactionManager implements PlatformTransactionManager {
+        int commits;
+        int rollbacks;
+
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+            commits++;
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+            rollbacks++;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.miro.platform.widget.domain.events;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.repository.WidgetColumnarRepo;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.repository.WidgetRepo;
+import com.miro.platform.widget.domain.repository.WidgetTreapRepo;
+import com.miro.platform.widget.domain.service.WidgetCustomService;
+import com.miro.platform.widget.domain.service.WidgetH2Service;
+import com.miro.platform.widget.domain.service.WidgetService;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetChangeFeedTest {
+    /**
+     * What a client does with the changes, it must end up with the same widgets as the service
+     */
+    private static class Replica implements WidgetChangeListener {
+        private final Map<Long, WidgetRecord> widgets = new HashMap<>();
+        //Version of the last changes applied, what a reconnecting client sends as Last-Event-ID
+        private long version;
+
+        @Override
+        public synchronized void onChanges(long version, List<WidgetChangeEvent> events) {
+            Assert.assertTrue(version > this.version);
+            this.version = version;
+            for (WidgetChangeEvent event : events) {
+                switch (event.getType()) {
+                    case ADD:
+                    case UPDATE:
+                        widgets.put(event.getId(), event.getWidget());
+                        break;
+                    case REMOVE:
+                        widgets.remove(event.getId());
+                        break;
+                    case SHIFT:
+                        widgets.replaceAll((id, widget) -> widget.getzIndex() >= event.getFrom() &&
+                                (event.getTo() == null || widget.getzIndex() < event.getTo()) ?
+                                widget.withZIndex(widget.getzIndex() + event.getBy()) :
+                                widget);
+                        break;
+                    default:
+                        Assert.fail("Unexpected resync");
+                }
+            }
+        }
+
+        //What a polling client does with an answer, returns the version to ask from next time
+        private synchronized long apply(WidgetChanges changes) {
+            if (changes.isResync()) {
+                widgets.clear();
+                changes.getWidgets().forEach(widget -> widgets.put(widget.getId(), widget));
+                version = changes.getVersion();
+            } else if (!changes.getChanges().isEmpty()) {
+                onChanges(changes.getVersion(), changes.getChanges());
+            }
+            return changes.getVersion();
+        }
+
+        private synchronized long getVersion() {
+            return version;
+        }
+
+        private synchronized List<WidgetRecord> sorted() {
+            return widgets.values().stream().sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void randomWrites(WidgetService service, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            int operation = random.nextInt(12);
+            List<WidgetRecord> current = service.findAll();
+            if (operation < 6 || current.isEmpty()) {
+                Widget.Builder builder = getDummyBuilderNoIdNoZindex((long) i);
+                if (random.nextBoolean())
+                    builder.withZIndex((long) random.nextInt(50) - 25);
+                service.addWidget(builder.build());
+            } else if (operation < 8) {
+                Long id = current.get(random.nextInt(current.size())).getId();
+                service.updateWidget(id, getDummyBuilderNoIdNoZindex((long) i)
+                        .withZIndex((long) random.nextInt(50) - 25)
+                        .build());
+            } else if (operation < 10) {
+                service.removeWidget(current.get(random.nextInt(current.size())).getId());
+            } else {
+                Long id = current.get(random.nextInt(current.size())).getId();
+                service.applyBatch(List.of(
+                        WidgetCommand.add(getDummyBuilderNoIdNoZindex((long) i).withZIndex((long) random.nextInt(50) - 25).build()),
+                        WidgetCommand.update(id, getDummyBuilderNoIdNoZindex((long) i).withZIndex((long) random.nextInt(50) - 25).build()),
+                        WidgetCommand.add(getDummyBuilderNoIdNoZindex((long) i).build())));
+            }
+        }
+    }
+
+    private static void assertReplicated(WidgetService service, WidgetRepo widgetRepo) {
+        List<WidgetRecord> replica = replicate(service);
+        Assert.assertEquals(widgetRepo.findAllSorted(), replica);
+    }
+
+    //Every write comes with the board version after it
+    private static List<WidgetRecord> replicate(WidgetService service) {
+        Replica replica = new Replica();
+        service.setChangeListener(replica);
+        randomWrites(service, new Random(5), 1000);
+        Assert.assertEquals(service.getVersion().getAsLong(), replica.getVersion());
+        return replica.sorted();
+    }
+
+    //Polls every few writes, the log only keeps the last 8 writes so some polls get a resync
+    private static void assertPolledReplicated(WidgetService service) {
+        Replica replica = new Replica();
+        long version = replica.apply(service.findChangesSince(0));
+        Random random = new Random(7);
+        int deltas = 0;
+        for (int i = 0; i < 100; i++) {
+            randomWrites(service, random, random.nextInt(12));
+            WidgetChanges changes = service.findChangesSince(version);
+            if (!changes.isResync())
+                deltas++;
+            version = replica.apply(changes);
+            Assert.assertEquals(idsAndZindexes(service.findAll()), idsAndZindexes(replica.sorted()));
+        }
+        Assert.assertTrue(deltas > 0);
+        Assert.assertEquals(List.of(), service.findChangesSince(version).getChanges());
+    }
+
+    private static List<String> idsAndZindexes(List<WidgetRecord> widgets) {
+        return widgets.stream().map(widget -> widget.getId() + "@" + widget.getzIndex()).collect(Collectors.toList());
+    }
+
+    @Nested
+    public class GivenRandomWrites {
+        @Test
+        public void whenCustomRepo_ThenChangesReplicateIt() {
+            WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+            assertReplicated(new WidgetCustomService(widgetRepo), widgetRepo);
+        }
+
+        @Test
+        public void whenTreapRepo_ThenChangesReplicateIt() {
+            WidgetTreapRepo widgetRepo = new WidgetTreapRepo(new IdGenerator());
+            assertReplicated(new WidgetCustomService(widgetRepo), widgetRepo);
+        }
+
+        @Test
+        public void whenColumnarRepo_ThenChangesReplicateIt() {
+            WidgetColumnarRepo widgetRepo = new WidgetColumnarRepo(new IdGenerator());
+            assertReplicated(new WidgetCustomService(widgetRepo), widgetRepo);
+        }
+
+        @Test
+        public void whenH2Service_ThenChangesReplicateIt() {
+            WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+            List<WidgetRecord> replica = replicate(new WidgetH2Service(widgetRepo, new StampedLockStrategy()));
+            //Shifting one by one on the in memory repo also changes lastUpdate, H2 bulk shifts don't
+            Assert.assertEquals(idsAndZindexes(widgetRepo.findAllSorted()), idsAndZindexes(replica));
+        }
+
+        @Test
+        public void whenShiftingWholeBoard_ThenOneChange() {
+            WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+            for (int i = 0; i < 100; i++) {
+                widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().build());
+            }
+            List<List<WidgetChangeEvent>> received = new ArrayList<>();
+            widgetRepo.setChangeListener((version, events) -> received.add(events));
+
+            WidgetRecord added = widgetRepo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+            Assert.assertEquals(List.of(List.of(WidgetChangeEvent.shifted(0L), WidgetChangeEvent.added(added))), received);
+        }
+    }
+
+    @Nested
+    public class GivenPollingClient {
+        @Test
+        public void whenCustomRepo_ThenDeltasReplicateIt() {
+            assertPolledReplicated(new WidgetCustomService(new WidgetCustomRepo(new IdGenerator(), new StampedLockStrategy(), null, 8)));
+        }
+
+        @Test
+        public void whenTreapRepo_ThenDeltasReplicateIt() {
+            assertPolledReplicated(new WidgetCustomService(new WidgetTreapRepo(new IdGenerator(), List.of(), 8)));
+        }
+
+        @Test
+        public void whenColumnarRepo_ThenDeltasReplicateIt() {
+            assertPolledReplicated(new WidgetCustomService(new WidgetColumnarRepo(new IdGenerator(), List.of(), 8)));
+        }
+
+        @Test
+        public void whenH2Service_ThenDeltasReplicateIt() {
+            assertPolledReplicated(new WidgetH2Service(new WidgetCustomRepo(new IdGenerator()), new StampedLockStrategy(),
+                    WidgetH2Service.DENSE, 8));
+        }
+
+        @Test
+        public void whenH2ServiceNotExclusive_ThenAlwaysResync() {
+            //Like the transactional strategy, other instances may write too
+            WidgetH2Service service = new WidgetH2Service(new WidgetCustomRepo(new IdGenerator()), new StampedLockStrategy() {
+                @Override
+                public boolean exclusive() {
+                    return false;
+                }
+            });
+            WidgetChanges first = service.findChangesSince(0);
+            service.addWidget(getDummyBuilderNoIdNoZindex().build());
+            WidgetChanges second = service.findChangesSince(first.getVersion());
+            Assert.assertTrue(second.isResync());
+            Assert.assertEquals(service.findAll(), second.getWidgets());
+        }
+    }
+
+    @Nested
+    public class GivenReconnectingSubscriber {
+        private final WidgetChangeFeed feed = new WidgetChangeFeed(1 << 16);
+
+        @AfterEach
+        public void tearDown() {
+            feed.close();
+        }
+
+        private void awaitVersion(Replica replica, WidgetService service) throws InterruptedException {
+            long version = service.getVersion().getAsLong();
+            for (int i = 0; i < 500 && replica.getVersion() != version; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(version, replica.getVersion());
+        }
+
+        /**
+         * What the stream does with Last-Event-ID, while another thread keeps writing
+         */
+        @Test
+        public void whenCaughtUpFromLastVersion_ThenNoChangeMissedNorRepeated() throws Exception {
+            WidgetCustomRepo widgetRepo = new WidgetCustomRepo(new IdGenerator());
+            WidgetService service = new WidgetCustomService(widgetRepo);
+            service.setChangeListener(feed);
+            Replica replica = new Replica();
+            WidgetChangeFeed.Subscription first = feed.subscribe(replica);
+            randomWrites(service, new Random(3), 200);
+            awaitVersion(replica, service);
+            first.close();
+            randomWrites(service, new Random(4), 100);
+
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            try {
+                Future<?> writes = writer.submit(() -> randomWrites(service, new Random(6), 300));
+                WidgetChangeFeed.Subscription second = feed.subscribeHeld(replica);
+                WidgetChanges missed = service.findChangesSince(replica.getVersion());
+                Assert.assertFalse(missed.isResync());
+                replica.apply(missed);
+                second.resumeAfter(missed.getVersion());
+                writes.get(30, TimeUnit.SECONDS);
+            } finally {
+                writer.shutdownNow();
+            }
+            awaitVersion(replica, service);
+            Assert.assertEquals(widgetRepo.findAllSorted(), replica.sorted());
+        }
+
+        @Test
+        public void whenHeld_ThenOnlyWritesAfterVersionDelivered() throws InterruptedException {
+            LinkedBlockingQueue<Long> versions = new LinkedBlockingQueue<>();
+            WidgetChangeFeed.Subscription subscription = feed.subscribeHeld((version, events) -> versions.add(version));
+            feed.onChanges(1, List.of(WidgetChangeEvent.removed(1L)));
+            feed.onChanges(2, List.of(WidgetChangeEvent.removed(2L)));
+            Assert.assertNull(versions.poll(50, TimeUnit.MILLISECONDS));
+
+            subscription.resumeAfter(1);
+            Assert.assertEquals(Long.valueOf(2), versions.poll(5, TimeUnit.SECONDS));
+            feed.onChanges(3, List.of(WidgetChangeEvent.removed(3L)));
+            Assert.assertEquals(Long.valueOf(3), versions.poll(5, TimeUnit.SECONDS));
+            Assert.assertThrows(IllegalStateException.class, () -> subscription.resumeAfter(3));
+        }
+    }
+
+    @Nested
+    public class GivenSlowSubscriber {
+        private final WidgetChangeFeed feed = new WidgetChangeFeed(4);
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final LinkedBlockingQueue<List<WidgetChangeEvent>> delivered = new LinkedBlockingQueue<>();
+
+        //First delivery blocks until released, everything offered meanwhile gets queued
+        private void subscribe() {
+            feed.subscribe((version, events) -> {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                delivered.add(events);
+            });
+        }
+
+        private WidgetRecord widget(long id, long zIndex) {
+            return new WidgetRecord(id, 1, 1, 1, 1, zIndex, 0);
+        }
+
+        @AfterEach
+        public void tearDown() {
+            feed.close();
+        }
+
+        @Test
+        public void whenQueued_ThenCoalesced() throws InterruptedException {
+            subscribe();
+            feed.onChanges(1, List.of(WidgetChangeEvent.added(widget(0, 0))));
+            Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            feed.onChanges(2, List.of(WidgetChangeEvent.added(widget(1, 1))));
+            feed.onChanges(3, List.of(WidgetChangeEvent.shifted(1L), WidgetChangeEvent.added(widget(2, 1))));
+            feed.onChanges(4, List.of(WidgetChangeEvent.shifted(1L), WidgetChangeEvent.updated(widget(1, 5))));
+            release.countDown();
+
+            Assert.assertEquals(List.of(WidgetChangeEvent.added(widget(0, 0))), delivered.poll(5, TimeUnit.SECONDS));
+            //Later change of widget 1 replaces the queued one after the shifts, shifts of the same range add up
+            Assert.assertEquals(List.of(
+                    WidgetChangeEvent.shifted(1L),
+                    WidgetChangeEvent.added(widget(2, 1)),
+                    WidgetChangeEvent.shifted(1L),
+                    WidgetChangeEvent.added(widget(1, 5))), delivered.poll(5, TimeUnit.SECONDS));
+
+            feed.onChanges(5, List.of(WidgetChangeEvent.shifted(3L, 10L, 1)));
+            feed.onChanges(6, List.of(WidgetChangeEvent.shifted(3L, 10L, 1)));
+            List<WidgetChangeEvent> next = delivered.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(List.of(WidgetChangeEvent.shifted(3L, 10L, 1)).equals(next) ||
+                    List.of(WidgetChangeEvent.shifted(3L, 10L, 2)).equals(next));
+        }
+
+        @Test
+        public void whenBufferOverflows_ThenResync() throws InterruptedException {
+            subscribe();
+            feed.onChanges(1, List.of(WidgetChangeEvent.added(widget(0, 0))));
+            Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+
+            for (long id = 1; id <= 10; id++) {
+                feed.onChanges(id + 1, List.of(WidgetChangeEvent.added(widget(id, id))));
+            }
+            release.countDown();
+
+            Assert.assertEquals(List.of(WidgetChangeEvent.added(widget(0, 0))), delivered.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(List.of(WidgetChangeEvent.resync()), delivered.poll(5, TimeUnit.SECONDS));
+            Assert.assertEquals(1, feed.subscriberCount());
+        }
+
+        @Test
+        public void whenSinkFails_ThenUnsubscribed() throws InterruptedException {
+            CountDownLatch failed = new CountDownLatch(1);
+            feed.subscribe((version, events) -> {
+                failed.countDown();
+                throw new IllegalStateException("Client gone");
+            });
+            feed.onChanges(1, List.of(WidgetChangeEvent.removed(1L)));
+            Assert.assertTrue(failed.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 50 && feed.subscriberCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(0, feed.subscriberCount());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.miro.platform.widget.domain.events;
+
+import com.miro.platform.widget.domain.WidgetRecord;
+import org.junit.Assert;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+public class WidgetChangeLogTest {
+    private final WidgetChangeLog changeLog = new WidgetChangeLog(4);
+
+    private WidgetRecord widget(long id, long zIndex) {
+        return new WidgetRecord(id, 1, 1, 1, 1, zIndex, 0);
+    }
+
+    @Test
+    public void whenCapacityNotPositive_ThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> new WidgetChangeLog(0));
+    }
+
+    @Nested
+    public class GivenSomeWrites {
+        private long start;
+
+        private void write() {
+            start = changeLog.getVersion();
+            changeLog.append(List.of(WidgetChangeEvent.added(widget(1, 1))));
+            changeLog.append(List.of(WidgetChangeEvent.shifted(1L), WidgetChangeEvent.added(widget(2, 1))));
+            changeLog.append(List.of(WidgetChangeEvent.updated(widget(1, 7))));
+        }
+
+        @Test
+        public void whenEveryWrite_ThenNextVersion() {
+            write();
+            Assert.assertEquals(start + 3, changeLog.getVersion());
+        }
+
+        @Test
+        public void whenSinceStart_ThenChangesCoalesced() {
+            write();
+            WidgetChanges changes = changeLog.since(start);
+            Assert.assertFalse(changes.isResync());
+            Assert.assertEquals(start + 3, changes.getVersion());
+            Assert.assertEquals(List.of(
+                    WidgetChangeEvent.shifted(1L),
+                    WidgetChangeEvent.added(widget(2, 1)),
+                    WidgetChangeEvent.added(widget(1, 7))), changes.getChanges());
+        }
+
+        @Test
+        public void whenSinceCurrent_ThenNoChanges() {
+            write();
+            Assert.assertEquals(List.of(), changeLog.since(changeLog.getVersion()).getChanges());
+        }
+
+        @Test
+        public void whenTooOldOrUnknown_ThenNull() {
+            write();
+            changeLog.append(List.of(WidgetChangeEvent.removed(1L)));
+            changeLog.append(List.of(WidgetChangeEvent.removed(2L)));
+            //Only the last 4 writes are kept
+            Assert.assertNull(changeLog.since(start));
+            Assert.assertNotNull(changeLog.since(start + 1));
+            Assert.assertNull(changeLog.since(0));
+            Assert.assertNull(changeLog.since(changeLog.getVersion() + 1));
+        }
+
+        @Test
+        public void whenResyncLogged_ThenNull() {
+            write();
+            changeLog.append(List.of(WidgetChangeEvent.resync()));
+            Assert.assertNull(changeLog.since(start + 1));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.miro.platform.widget.domain.persistence;
+
+import com.miro.platform.widget.domain.Widget;
+import com.miro.platform.widget.domain.WidgetCommand;
+import com.miro.platform.widget.domain.WidgetRecord;
+import com.miro.platform.widget.domain.concurrency.StampedLockStrategy;
+import com.miro.platform.widget.domain.repository.WidgetCustomRepo;
+import com.miro.platform.widget.domain.spatial.Rectangle;
+import com.miro.platform.widget.domain.utils.IdGenerator;
+import org.junit.Assert;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.miro.platform.widget.Utils.getDummyBuilderNoIdNoZindex;
+
+public class WidgetStoreTest {
+    @TempDir
+    Path dir;
+    private final List<WidgetCustomRepo> opened = new ArrayList<>();
+
+    @AfterEach
+    public void tearDown() {
+        opened.forEach(WidgetCustomRepo::close);
+    }
+
+    private WidgetCustomRepo open(int snapshotEvery) {
+        WidgetCustomRepo repo = new WidgetCustomRepo(new IdGenerator(), new StampedLockStrategy(),
+                new WidgetStore(dir, 0, snapshotEvery));
+        opened.add(repo);
+        return repo;
+    }
+
+    private WidgetCustomRepo reopen(WidgetCustomRepo repo, int snapshotEvery) {
+        repo.close();
+        opened.remove(repo);
+        return open(snapshotEvery);
+    }
+
+    private List<String> files(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(prefix))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Random adds (shifting or on top), updates and removes, all have to be back after restart
+     */
+    private static void randomWrites(WidgetCustomRepo repo, Random random, int count) {
+        for (int i = 0; i < count; i++) {
+            int operation = random.nextInt(10);
+            List<WidgetRecord> current = repo.findAllSorted();
+            if (operation < 6 || current.isEmpty()) {
+                Widget.Builder builder = getDummyBuilderNoIdNoZindex((long) i);
+                if (random.nextBoolean())
+                    builder.withZIndex((long) random.nextInt(50) - 25);
+                repo.addWidget(builder.build());
+            } else if (operation < 8) {
+                Widget.Builder builder = getDummyBuilderNoIdNoZindex((long) i)
+                        .withId(current.get(random.nextInt(current.size())).getId());
+                if (random.nextBoolean())
+                    builder.withZIndex((long) random.nextInt(50) - 25);
+                repo.updateWidget(builder.build());
+            } else {
+                repo.removeWidget(current.get(random.nextInt(current.size())).getId());
+            }
+        }
+    }
+
+    @Test
+    public void givenLogFailing_WhenWrite_ThenNothingPublished() {
+        boolean[] failing = new boolean[1];
+        WidgetStore store = new WidgetStore(dir, 0, 100_000) {
+            @Override
+            public synchronized void append(List<WidgetLogEntry> entries) {
+                if (failing[0])
+                    throw new IllegalStateException("Disk full");
+                super.append(entries);
+            }
+        };
+        WidgetCustomRepo repo = new WidgetCustomRepo(new IdGenerator(), new StampedLockStrategy(), store);
+        opened.add(repo);
+        for (long zIndex = 0; zIndex < 3; zIndex++) {
+            repo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(zIndex).build());
+        }
+        List<WidgetRecord> before = repo.findAllSorted();
+        long version = repo.getVersion().getAsLong();
+
+        //Fails after shifting, so the shift must be undone
+        failing[0] = true;
+        Assert.assertThrows(IllegalStateException.class,
+                () -> repo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()));
+        Assert.assertThrows(IllegalStateException.class, () -> repo.removeWidget(1L));
+        Assert.assertEquals(before, repo.findAllSorted());
+        Assert.assertEquals(version, repo.getVersion().getAsLong());
+        Assert.assertEquals(Optional.of(before.get(0)), repo.findByZindex(0L));
+        Assert.assertEquals(Optional.of(before.get(1)), repo.findById(1L));
+        Assert.assertEquals(before, repo.findInArea(new Rectangle(0, 0, 10, 10)));
+        Assert.assertEquals(2, repo.getForeground());
+
+        failing[0] = false;
+        WidgetRecord added = repo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+        Assert.assertEquals(List.of(0L, 1L, 2L, 3L),
+                repo.findAllSorted().stream().map(WidgetRecord::getzIndex).collect(Collectors.toList()));
+        Assert.assertEquals(Optional.of(added), repo.findByZindex(0L));
+    }
+
+    @Test
+    public void givenLoggedWrites_WhenReopened_ThenSameWidgets() {
+        WidgetCustomRepo repo = open(100_000);
+        randomWrites(repo, new Random(7), 500);
+        List<WidgetRecord> expected = repo.findAllSorted();
+        long foreground = repo.getForeground();
+
+        repo = reopen(repo, 100_000);
+        Assert.assertEquals(expected, repo.findAllSorted());
+        Assert.assertEquals(foreground, repo.getForeground());
+        for (WidgetRecord widget : expected) {
+            Assert.assertEquals(widget.getLastUpdateMillis(), repo.findById(widget.getId()).get().getLastUpdateMillis());
+        }
+        //Ids of removed widgets aren't given again
+        long maxId = expected.stream().mapToLong(WidgetRecord::getId).max().orElse(-1);
+        Assert.assertTrue(repo.addWidget(getDummyBuilderNoIdNoZindex().build()).getId() > maxId);
+    }
+
+    @Test
+    public void givenSnapshots_ThenOldSegmentsDeletedAndSameWidgets() throws IOException {
+        WidgetCustomRepo repo = open(50);
+        randomWrites(repo, new Random(11), 520);
+        List<WidgetRecord> expected = repo.findAllSorted();
+
+        repo = reopen(repo, 50);
+        Assert.assertEquals(List.of("widgets.snapshot"), files("widgets"));
+        Assert.assertTrue(files("wal-").size() <= 3);
+        Assert.assertEquals(expected, repo.findAllSorted());
+
+        randomWrites(repo, new Random(12), 30);
+        expected = repo.findAllSorted();
+        repo = reopen(repo, 50);
+        Assert.assertEquals(expected, repo.findAllSorted());
+    }
+
+    @Test
+    public void givenTornEntryAtTheEnd_ThenDroppedAndLogStillUsable() throws IOException {
+        WidgetCustomRepo repo = open(100_000);
+        randomWrites(repo, new Random(3), 100);
+        List<WidgetRecord> expected = repo.findAllSorted();
+        repo.close();
+        opened.remove(repo);
+
+        List<String> segments = files("wal-");
+        Collections.sort(segments);
+        //Half an entry, as if the process died while appending
+        Files.write(dir.resolve(segments.get(segments.size() - 1)), new byte[]{1, 2, 3, 4, 1, 0, 0}, StandardOpenOption.APPEND);
+
+        repo = open(100_000);
+        Assert.assertEquals(expected, repo.findAllSorted());
+        WidgetRecord added = repo.addWidget(getDummyBuilderNoIdNoZindex().withZIndex(0L).build());
+        repo = reopen(repo, 100_000);
+        Assert.assertEquals(Optional.of(added), repo.findById(added.getId()));
+    }
+
+    @Test
+    public void givenDamagedEntryBeforeTheEnd_ThenRecoveryFailsAndNothingTruncated() throws IOException {
+        WidgetCustomRepo repo = open(100_000);
+        randomWrites(repo, new Random(5), 100);
+        repo.close();
+        opened.remove(repo);
+
+        List<String> segments = files("wal-");
+        Assert.assertEquals(1, segments.size());
+        Path segment = dir.resolve(segments.get(0));
+        byte[] bytes = Files.readAllBytes(segment);
+        //A byte in the middle of the log, the entries after it are still whole
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(segment, bytes);
+
+        IllegalStateException e = Assert.assertThrows(IllegalStateException.class, () -> open(100_000));
+        Assert.assertTrue(e.getMessage(), e.getMessage().contains("corrupted"));
+        Assert.assertEquals(bytes.length, Files.size(segment));
+    }
+
+    @Test
+    public void givenBatches_ThenReplayedLikeOneByOne() {
+        WidgetCustomRepo repo = open(100_000);
+        repo.applyAtomically(List.of(
+                WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(0L).build()),
+                WidgetCommand.add(getDummyBuilderNoIdNoZindex().build())));
+        repo.applyBatch(List.of(
+                WidgetCommand.add(getDummyBuilderNoIdNoZindex().withZIndex(1L).build()),
+                WidgetCommand.remove(42L),
+                WidgetCommand.update(getDummyBuilderNoIdNoZindex(5L).withId(0L).withZIndex(0L).build()),
+                WidgetCommand.remove(2L)));
+        List<WidgetRecord> expected = repo.findAllSorted();
+
+        repo = reopen(repo, 100_000);
+        Assert.assertEquals(expected, repo.findAllSorted());
+    }
+}
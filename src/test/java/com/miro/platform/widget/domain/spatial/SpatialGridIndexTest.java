@@ -0,0 +1,77 @@
+package com.miro.platform.widget.domain.spatial;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class SpatialGridIndexTest {
+    private final SpatialGridIndex<Long> index = new SpatialGridIndex<>();
+
+    @Test
+    public void givenItemsOnCellBorders_ThenEachReportedOnce() {
+        //Crossing origin on both axes, so it lives in 4 cells
+        index.put(1L, new Rectangle(-10, -10, 10, 10));
+        index.put(2L, new Rectangle(0, 0, 63, 63));
+        index.put(3L, new Rectangle(64, 64, 100, 100));
+
+        List<Long> result = index.query(new Rectangle(-100, -100, 100, 100), rectangle -> true);
+        Collections.sort(result);
+        Assert.assertEquals(List.of(1L, 2L, 3L), result);
+    }
+
+    @Test
+    public void givenRemovedAndMovedItems_ThenQueryUsesLatestPosition() {
+        index.put(1L, new Rectangle(0, 0, 10, 10));
+        index.put(2L, new Rectangle(0, 0, 10, 10));
+        index.remove(2L);
+        index.put(1L, new Rectangle(1000, 1000, 1010, 1010));
+
+        Assert.assertEquals(List.of(), index.query(new Rectangle(0, 0, 10, 10), rectangle -> true));
+        Assert.assertEquals(List.of(1L), index.query(new Rectangle(900, 900, 2000, 2000), rectangle -> true));
+        Assert.assertEquals(1, index.size());
+    }
+
+    @Test
+    public void givenRandomRectangles_ThenSameAsFullScan() {
+        Random random = new Random(7);
+        Map<Long, Rectangle> rectangles = new HashMap<>();
+        for (long i = 0; i < 3000; i++) {
+            long x = random.nextInt(20000) - 10000;
+            long y = random.nextInt(20000) - 10000;
+            //Mostly small widgets with some big ones
+            int maxSize = random.nextInt(10) == 0 ? 5000 : 200;
+            Rectangle rectangle = new Rectangle(x, y, x + random.nextInt(maxSize), y + random.nextInt(maxSize));
+            rectangles.put(i, rectangle);
+            index.put(i, rectangle);
+        }
+        for (long i = 0; i < 3000; i += 3) {
+            rectangles.remove(i);
+            index.remove(i);
+        }
+
+        for (int i = 0; i < 200; i++) {
+            long x = random.nextInt(24000) - 12000;
+            long y = random.nextInt(24000) - 12000;
+            int size = random.nextInt(8000);
+            Rectangle area = new Rectangle(x, y, x + size, y + size);
+
+            Set<Long> expectedInside = rectangles.entrySet().stream()
+                    .filter(entry -> area.contains(entry.getValue()))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+            Set<Long> expectedIntersecting = rectangles.entrySet().stream()
+                    .filter(entry -> area.intersects(entry.getValue()))
+                    .map(Map.Entry::getKey)
+                    .collect(Collectors.toSet());
+
+            List<Long> inside = index.query(area, area::contains);
+            List<Long> intersecting = index.query(area, area::intersects);
+            Assert.assertEquals(expectedInside.size(), inside.size());
+            Assert.assertEquals(expectedInside, new HashSet<>(inside));
+            Assert.assertEquals(expectedIntersecting.size(), intersecting.size());
+            Assert.assertEquals(expectedIntersecting, new HashSet<>(intersecting));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.miro.platform.widget.domain.utils;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class ChunkedListTest {
+
+    /**
+     * Every version is published from the lowest index changed since the previous one,
+     * like the list of the custom repo, and must equal the list it was published from
+     */
+    @Test
+    public void givenRandomChanges_ThenEveryVersionEqualsItsList() {
+        Random random = new Random(17);
+        List<Integer> list = new ArrayList<>();
+        ChunkedList<Integer> published = ChunkedList.empty();
+        List<ChunkedList<Integer>> versions = new ArrayList<>();
+        List<List<Integer>> copies = new ArrayList<>();
+        for (int i = 0; i < 2_000; i++) {
+            int changedFrom = Integer.MAX_VALUE;
+            for (int change = random.nextInt(4); change >= 0; change--) {
+                int index = list.isEmpty() ? 0 : random.nextInt(list.size());
+                switch (list.isEmpty() ? 0 : random.nextInt(4)) {
+                    case 0:
+                        index = random.nextBoolean() ? list.size() : index;
+                        list.add(index, i);
+                        break;
+                    case 1:
+                        list.set(index, -i);
+                        break;
+                    case 2:
+                        list.remove(index);
+                        break;
+                    default:
+                        index = list.size();
+                        list.add(i);
+                }
+                changedFrom = Math.min(changedFrom, index);
+            }
+            published = ChunkedList.of(published, list, changedFrom);
+            Assert.assertEquals(list, published);
+            if (i % 100 == 0) {
+                versions.add(published);
+                copies.add(new ArrayList<>(list));
+            }
+        }
+        for (int i = 0; i < versions.size(); i++) {
+            Assert.assertEquals(copies.get(i), versions.get(i));
+        }
+    }
+
+    @Test
+    public void whenIndexOutOfBounds_ThenThrowException() {
+        List<Integer> list = List.of(1, 2, 3);
+        ChunkedList<Integer> published = ChunkedList.of(ChunkedList.empty(), list, 0);
+        Assert.assertThrows(IndexOutOfBoundsException.class, () -> published.get(3));
+        Assert.assertThrows(UnsupportedOperationException.class, () -> published.add(4));
+    }
+}
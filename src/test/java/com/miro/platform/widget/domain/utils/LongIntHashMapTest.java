@@ -0,0 +1,51 @@
+package com.miro.platform.widget.domain.utils;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class LongIntHashMapTest {
+    private final LongIntHashMap map = new LongIntHashMap();
+
+    @Test
+    public void whenPutAndRemove_ThenGetReflectsLatest() {
+        Assert.assertEquals(LongIntHashMap.NO_VALUE, map.put(Long.MIN_VALUE, 1));
+        Assert.assertEquals(1, map.put(Long.MIN_VALUE, 2));
+        Assert.assertEquals(2, map.get(Long.MIN_VALUE));
+        Assert.assertEquals(2, map.remove(Long.MIN_VALUE));
+        Assert.assertEquals(LongIntHashMap.NO_VALUE, map.get(Long.MIN_VALUE));
+        Assert.assertEquals(LongIntHashMap.NO_VALUE, map.remove(Long.MIN_VALUE));
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void whenNegativeValue_ThenThrowException() {
+        Assert.assertThrows(IllegalArgumentException.class, () -> map.put(1L, -1));
+    }
+
+    /**
+     * Small key range so probe runs collide and removals have to move entries back
+     */
+    @Test
+    public void givenRandomOperations_ThenSameResultAsHashMap() {
+        Random random = new Random(7);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(5_000) - 2_500;
+            if (random.nextInt(3) == 0) {
+                Integer removed = expected.remove(key);
+                Assert.assertEquals(removed == null ? LongIntHashMap.NO_VALUE : removed, map.remove(key));
+            } else {
+                Integer previous = expected.put(key, i);
+                Assert.assertEquals(previous == null ? LongIntHashMap.NO_VALUE : previous, map.put(key, i));
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (long key = -2_500; key < 2_500; key++) {
+            Assert.assertEquals((int) expected.getOrDefault(key, LongIntHashMap.NO_VALUE), map.get(key));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.miro.platform.widget.domain.utils;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class PersistentLongMapTest {
+
+    @Test
+    public void whenPutAndRemove_ThenOlderVersionsUnchanged() {
+        PersistentLongMap<String> empty = PersistentLongMap.empty();
+        PersistentLongMap<String> one = empty.put(Long.MIN_VALUE, "a");
+        PersistentLongMap<String> two = one.put(Long.MIN_VALUE, "b").put(Long.MAX_VALUE, "c");
+        PersistentLongMap<String> removed = two.remove(Long.MIN_VALUE);
+
+        Assert.assertNull(empty.get(Long.MIN_VALUE));
+        Assert.assertEquals("a", one.get(Long.MIN_VALUE));
+        Assert.assertEquals("b", two.get(Long.MIN_VALUE));
+        Assert.assertEquals(2, two.size());
+        Assert.assertNull(removed.get(Long.MIN_VALUE));
+        Assert.assertEquals("c", removed.get(Long.MAX_VALUE));
+        Assert.assertEquals(1, removed.size());
+        Assert.assertSame(removed, removed.remove(42L));
+    }
+
+    /**
+     * Sequential keys like generated ids, checked against a HashMap and against a version kept from halfway
+     */
+    @Test
+    public void givenRandomOperations_ThenSameResultAsHashMap() {
+        Random random = new Random(13);
+        Map<Long, Integer> expected = new HashMap<>();
+        PersistentLongMap<Integer> map = PersistentLongMap.empty();
+        Map<Long, Integer> expectedHalfway = null;
+        PersistentLongMap<Integer> halfway = null;
+        for (int i = 0; i < 100_000; i++) {
+            long key = random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            if (i == 50_000) {
+                expectedHalfway = new HashMap<>(expected);
+                halfway = map;
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        Assert.assertEquals(expectedHalfway.size(), halfway.size());
+        for (long key = 0; key < 5_000; key++) {
+            Assert.assertEquals(expected.get(key), map.get(key));
+            Assert.assertEquals(expectedHalfway.get(key), halfway.get(key));
+        }
+    }
+}